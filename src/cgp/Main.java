@@ -23,9 +23,18 @@ import javax.swing.JOptionPane;
 import javax.swing.KeyStroke;
 import javax.swing.WindowConstants;
 
+import cgp.algos.BVH;
+import cgp.algos.CompressedBVH;
+import cgp.algos.Grid;
 import cgp.algos.Hitter;
+import cgp.algos.HitterCache;
+import cgp.algos.HitterFactory;
 import cgp.algos.KdTree;
+import cgp.algos.LBVH;
 import cgp.algos.Octree;
+import cgp.algos.QBVH;
+import cgp.algos.SBVH;
+import cgp.algos.Scene;
 import cgp.algos.SimpleStorage;
 import cgp.algos.Triangles;
 import cgp.consume.BaryConsumer;
@@ -37,6 +46,7 @@ import cgp.consume.TestCountConsumer;
 import cgp.consume.ViewConsumer;
 import cgp.data.AffineTransform4;
 import cgp.data.Vec4;
+import cgp.io.CachedMeshLoader;
 import cgp.io.ExampleMesh;
 import cgp.io.MeshLoader;
 import cgp.io.OBJReader;
@@ -44,6 +54,7 @@ import cgp.ogl.OpenGLView;
 import cgp.tracer.RayProducer;
 import cgp.tracer.RayShooter;
 import cgp.tracer.SimpleRayProducer;
+import cgp.tracer.TileScheduler;
 
 /**
  * The entry point for the application.
@@ -72,14 +83,14 @@ public final class Main {
     final Dimension dim = new Dimension(800, 600);
     final RayProducer rp = new SimpleRayProducer(dim.width, dim.height, 45, 1, 50);
     final RayShooter rs = new RayShooter(rp);
-    final Triangles ts = new Triangles();
+    final Scene scene = new Scene();
     final String name = args.length == 1 ? args[0] : MESH_PRESET[2];
-    loadPreset(name, rp, ts);
-    fillHitter(STORAGE_PRESET[0], ts, rs);
+    loadPreset(name, rp, scene);
+    fillHitter(STORAGE_PRESET[0], scene, rs);
     // open Gl
     final AtomicBoolean isRunning = new AtomicBoolean();
     final AtomicBoolean requestRefresh = new AtomicBoolean();
-    final OpenGLView ogl = new OpenGLView(name, rp, ts, isRunning, requestRefresh);
+    final OpenGLView ogl = new OpenGLView(name, rp, scene, isRunning, requestRefresh);
     // setup frame
     final ImageConsumer[] consumer = {
         new ViewConsumer(),
@@ -113,8 +124,8 @@ public final class Main {
         public void actionPerformed(final ActionEvent ae) {
           if(isRunning.get()) return;
           try {
-            loadPreset(p, rp, ts);
-            fillHitter(null, ts, rs);
+            loadPreset(p, rp, scene);
+            fillHitter(null, scene, rs);
           } catch(final IOException e) {
             e.printStackTrace();
           }
@@ -132,7 +143,7 @@ public final class Main {
         @Override
         public void actionPerformed(final ActionEvent ae) {
           if(isRunning.get()) return;
-          fillHitter(p, ts, rs);
+          fillHitter(p, scene, rs);
         }
 
       });
@@ -144,11 +155,10 @@ public final class Main {
 
       @Override
       public void actionPerformed(final ActionEvent e) {
-        final long startLoading = System.nanoTime();
         final Object st = JOptionPane.showInputDialog(frame,
             "Choose the storage algorithm:",
             "Storage Algorithm", JOptionPane.PLAIN_MESSAGE, null, new String[] {
-            "kd-Tree", "Octree"}, "kd-Tree");
+            "kd-Tree", "Octree", "BVH"}, "kd-Tree");
         if(st == null) return;
         int maxD;
         for(;;) {
@@ -178,17 +188,95 @@ public final class Main {
             // nothing to do
           }
         }
-        CUR_STORAGE = st == "kd-Tree" ? new KdTree(maxD, minT) : new Octree(maxD, minT);
-        System.out.println("algorithm is " + CUR_STORAGE.getClass().getSimpleName());
-        CUR_STORAGE.fromTriangles(ts);
-        System.out.println("building - took "
-            + ((System.nanoTime() - startLoading) * 1e-6) + "ms");
-        rs.setHitter(CUR_STORAGE);
+        final int depth = maxD;
+        final int triangles = minT;
+        CUR_STORAGE = new HitterFactory() {
+
+          @Override
+          public Hitter create() {
+            if(st == "kd-Tree") return new KdTree(depth, triangles);
+            if(st == "Octree") return new Octree(depth, triangles);
+            return new BVH(depth, triangles);
+          }
+
+        };
+        fillHitter(null, scene, rs);
       }
 
     });
+    final Menu mTracing = new Menu("Tracing");
+    for(final int size : PACKET_SIZES) {
+      final MenuItem mi = new MenuItem(size == 1 ? "Single rays" : size + "x" + size + " packets");
+      mi.addActionListener(new ActionListener() {
+
+        @Override
+        public void actionPerformed(final ActionEvent ae) {
+          if(isRunning.get()) return;
+          rs.setPacketSize(size);
+        }
+
+      });
+      mTracing.add(mi);
+    }
+    mTracing.addSeparator();
+    for(final boolean gb : new boolean[] { false, true}) {
+      final MenuItem mi = new MenuItem(gb ? "Write G-buffer" : "Keep hit objects");
+      mi.addActionListener(new ActionListener() {
+
+        @Override
+        public void actionPerformed(final ActionEvent ae) {
+          if(isRunning.get()) return;
+          rs.setGBufferMode(gb);
+        }
+
+      });
+      mTracing.add(mi);
+    }
+    mTracing.addSeparator();
+    for(final boolean st : new boolean[] { false, true}) {
+      final MenuItem mi = new MenuItem(st ? "Stream finished regions" : "Consume after image");
+      mi.addActionListener(new ActionListener() {
+
+        @Override
+        public void actionPerformed(final ActionEvent ae) {
+          if(isRunning.get()) return;
+          rs.setStreaming(st);
+        }
+
+      });
+      mTracing.add(mi);
+    }
+    mTracing.addSeparator();
+    for(final boolean pc : new boolean[] { false, true}) {
+      final MenuItem mi = new MenuItem(pc ? "Consume in parallel" : "Consume serially");
+      mi.addActionListener(new ActionListener() {
+
+        @Override
+        public void actionPerformed(final ActionEvent ae) {
+          if(isRunning.get()) return;
+          rs.setParallelConsumers(pc);
+        }
+
+      });
+      mTracing.add(mi);
+    }
+    mTracing.addSeparator();
+    for(final String p : TILE_PRESET) {
+      final MenuItem mi = new MenuItem(p);
+      mi.addActionListener(new ActionListener() {
+
+        @Override
+        public void actionPerformed(final ActionEvent ae) {
+          if(isRunning.get()) return;
+          rs.setTileScheduler(createTileScheduler(p));
+        }
+
+      });
+      mTracing.add(mi);
+    }
     mbar.add(mMesh);
     mbar.add(mStorage);
+    mbar.add(mTracing);
     frame.setMenuBar(mbar);
     final AbstractAction setTitle = new AbstractAction() {
 
@@ -313,6 +401,24 @@ public final class Main {
 
     });
     im.put(KeyStroke.getKeyStroke(KeyEvent.VK_C, 0), keyC);
+    // turn key
+    final Object keyT = new Object();
+    am.put(keyT, new AbstractAction() {
+
+      @Override
+      public void actionPerformed(final ActionEvent e) {
+        if(isRunning.get()) return;
+        if(scene.instanceCount() != 1 || scene.getTransform(0) != AffineTransform4.IDENTITY) {
+          System.out.println("only single objects can be turned");
+          return;
+        }
+        scene.getMesh(0).transform(AffineTransform4.rotateY(Math.PI / 16));
+        rs.getHitter().refit();
+        requestRefresh.set(true);
+      }
+
+    });
+    im.put(KeyStroke.getKeyStroke(KeyEvent.VK_T, 0), keyT);
     // quit key
     final Object keyESC = new Object();
     am.put(keyESC, new AbstractAction() {
@@ -344,23 +450,34 @@ public final class Main {
       "edgecase",
   };
 
+  /**
+   * Creates a loader for an object file. The mesh is cached in a binary file
+   * next to the object file.
+   *
+   * @param file The object file.
+   * @return The loader.
+   */
+  private static MeshLoader objLoader(final String file) {
+    return new CachedMeshLoader(file, new OBJReader(file, !SINGLE_THREAD));
+  }
+
   /**
    * Loads a model from a preset.
    *
    * @param preset The preset name.
    * @param rp The ray producer.
-   * @param ts The triangle storage.
+   * @param scene The scene.
    * @throws IOException I/O Exception.
    */
   public static void loadPreset(
-      final String preset, final RayProducer rp, final Triangles ts) throws IOException {
+      final String preset, final RayProducer rp, final Scene scene) throws IOException {
     final long startLoading = System.nanoTime();
     final AffineTransform4 aff;
     final String file;
     final Vec4 origin;
     final Vec4 view;
     final Vec4 up;
-    ts.clear();
+    scene.clear();
     switch(preset) {
       case "bunny":
         aff = AffineTransform4.scale(5, 5, 5);
@@ -395,7 +512,9 @@ public final class Main {
         view = new Vec4(-0.336540091036, -0.4630411288692, -0.8199595600398, false);
         up = new Vec4(-0.14784898151236, 0.8849330414311, -0.4416267551328, false);
         final AffineTransform4 aff1 = AffineTransform4.scale(.05, .05, .05);
-        ts.setTriangles(new OBJReader("objs/teapot.obj"), aff1);
+        scene.addObject(objLoader("objs/teapot.obj"), aff1);
+        final Triangles lamp = scene.addMesh(objLoader("objs/lamp.obj"),
+            AffineTransform4.IDENTITY);
         final int count = 7;
         final AffineTransform4 aff2 = AffineTransform4.scale(.1, .1, .1).concatenate(
             AffineTransform4.translation(0.5, 27, -1));
@@ -403,24 +522,58 @@ public final class Main {
           final AffineTransform4 r = aff2.concatenate(
               AffineTransform4.rotateY(2.0 * Math.PI * i / count));
           final AffineTransform4 a = r.concatenate(AffineTransform4.translation(3, -1, 0));
-          ts.setTriangles(new OBJReader("objs/lamp.obj"),
-              a.concatenate(AffineTransform4.scale(0.5, 0.5, 0.5)));
+          scene.addInstance(lamp, a.concatenate(AffineTransform4.scale(0.5, 0.5, 0.5)));
         }
         rp.setView(origin, view, up);
-        System.out.println(preset + ": " + ts.size() + " triangles loaded - took "
+        System.out.println(preset + ": " + scene.size() + " triangles in "
+            + scene.instanceCount() + " instances (" + scene.storedSize()
+            + " stored) loaded - took "
             + ((System.nanoTime() - startLoading) * 1e-6) + "ms");
         return;
       }
       default:
         throw new IllegalArgumentException(preset);
     }
-    final MeshLoader loader = file == null ? new ExampleMesh() : new OBJReader(file);
-    ts.setTriangles(loader, aff);
+    final MeshLoader loader = file == null ? new ExampleMesh() : objLoader(file);
+    scene.addObject(loader, aff);
     rp.setView(origin, view, up);
-    System.out.println(preset + ": " + ts.size() + " triangles loaded - took "
+    System.out.println(preset + ": " + scene.size() + " triangles loaded - took "
         + ((System.nanoTime() - startLoading) * 1e-6) + "ms");
   }
 
+  /** The selectable widths and heights of ray packets. */
+  public static final int[] PACKET_SIZES = { 1, 2, 4};
+
+  /** Tile scheduler preset names. */
+  public static final String[] TILE_PRESET = {
+      "Split in halves",
+      "16x16 tiles in Z-order",
+      "16x16 tiles in Hilbert order",
+      "64x64 tiles in Hilbert order",
+  };
+
+  /**
+   * Creates a tile scheduler from a preset.
+   *
+   * @param preset The preset.
+   * @return The tile scheduler or <code>null</code> if the image is split in
+   *         halves.
+   */
+  public static TileScheduler createTileScheduler(final String preset) {
+    switch(preset) {
+      case "Split in halves":
+        return null;
+      case "16x16 tiles in Z-order":
+        return new TileScheduler(16, false);
+      case "16x16 tiles in Hilbert order":
+        return new TileScheduler(16, true);
+      case "64x64 tiles in Hilbert order":
+        return new TileScheduler(64, true);
+      default:
+        throw new IllegalArgumentException(preset);
+    }
+  }
+
   /** Storage preset names. */
   public static final String[] STORAGE_PRESET = {
       "KdTree 1 triangle threshold",
@@ -449,6 +602,22 @@ public final class Main {
       "Octree 16 depth threshold",
       "Octree 32 depth threshold",
       "Octree max depth",
+      "BVH 1 triangle threshold",
+      "BVH 4 triangle threshold",
+      "BVH 10 triangle threshold",
+      "BVH 25 triangle threshold",
+      "LBVH 1 triangle threshold",
+      "LBVH 4 triangle threshold",
+      "LBVH 4 triangle threshold 30 bit codes",
+      "QBVH 1 triangle threshold",
+      "QBVH 4 triangle threshold",
+      "Compressed BVH 4 triangle threshold 8 bit",
+      "Compressed BVH 4 triangle threshold 16 bit",
+      "SBVH 1 triangle threshold",
+      "SBVH 4 triangle threshold",
+      "SBVH 4 triangle threshold 100% duplication",
+      "Grid",
+      "Grid two level",
       "Simple list",
   };
 
@@ -512,6 +681,38 @@ public final class Main {
         return new Octree(32, 1);
       case "Octree max depth":
         return new Octree(Integer.MAX_VALUE, 1);
+      case "BVH 1 triangle threshold":
+        return new BVH(Integer.MAX_VALUE, 1);
+      case "BVH 4 triangle threshold":
+        return new BVH(Integer.MAX_VALUE, 4);
+      case "BVH 10 triangle threshold":
+        return new BVH(Integer.MAX_VALUE, 10);
+      case "BVH 25 triangle threshold":
+        return new BVH(Integer.MAX_VALUE, 25);
+      case "LBVH 1 triangle threshold":
+        return new LBVH(63, 1);
+      case "LBVH 4 triangle threshold":
+        return new LBVH(63, 4);
+      case "LBVH 4 triangle threshold 30 bit codes":
+        return new LBVH(30, 4);
+      case "QBVH 1 triangle threshold":
+        return new QBVH(1);
+      case "QBVH 4 triangle threshold":
+        return new QBVH(4);
+      case "Compressed BVH 4 triangle threshold 8 bit":
+        return new CompressedBVH(4, 8);
+      case "Compressed BVH 4 triangle threshold 16 bit":
+        return new CompressedBVH(4, 16);
+      case "SBVH 1 triangle threshold":
+        return new SBVH(1, 0.3);
+      case "SBVH 4 triangle threshold":
+        return new SBVH(4, 0.3);
+      case "SBVH 4 triangle threshold 100% duplication":
+        return new SBVH(4, 1);
+      case "Grid":
+        return new Grid(2, false);
+      case "Grid two level":
+        return new Grid(2, true);
       case "Simple list":
         return new SimpleStorage();
       default:
@@ -519,28 +720,46 @@ public final class Main {
     }
   }
 
-  /** The current storage preset. */
-  public static Hitter CUR_STORAGE;
+  /**
+   * Creates a factory for a preset.
+   *
+   * @param preset The preset.
+   * @return The factory.
+   */
+  public static HitterFactory createFactory(final String preset) {
+    // fail early for unknown presets
+    createHitter(preset);
+    return new HitterFactory() {
+
+      @Override
+      public Hitter create() {
+        return createHitter(preset);
+      }
+
+    };
+  }
+
+  /** The factory of the current storage. */
+  public static HitterFactory CUR_STORAGE;
+
+  /** The cache for built storages. */
+  private static final HitterCache STORAGE_CACHE = new HitterCache("cache");
 
   /**
    * Fills the hitter.
    *
    * @param preset The preset.
-   * @param ts The triangles.
+   * @param scene The scene.
    * @param rs The ray shooter.
    */
   public static void fillHitter(
-      final String preset, final Triangles ts, final RayShooter rs) {
+      final String preset, final Scene scene, final RayShooter rs) {
     final long startLoading = System.nanoTime();
-    final Hitter ht;
-    if(preset == null) {
-      ht = CUR_STORAGE;
-    } else {
-      ht = createHitter(preset);
+    if(preset != null) {
+      CUR_STORAGE = createFactory(preset);
     }
-    CUR_STORAGE = ht;
+    final Hitter ht = scene.createHitter(CUR_STORAGE, STORAGE_CACHE);
     System.out.println("algorithm is " + ht.getClass().getSimpleName());
-    ht.fromTriangles(ts);
     System.out.println("building - took "
         + ((System.nanoTime() - startLoading) * 1e-6) + "ms");
     rs.setHitter(ht);
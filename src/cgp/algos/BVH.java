@@ -0,0 +1,907 @@
+package cgp.algos;
+
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import cgp.Main;
+import cgp.data.BoundingBox;
+import cgp.data.Ray;
+import cgp.data.Vec4;
+import cgp.tracer.Hit;
+import cgp.tracer.TestCounter;
+
+/**
+ * A bounding volume hierarchy that is built using the surface area heuristic.
+ * The split candidates are computed by binning the triangle centroids. When
+ * the triangles move the bounding boxes can be refitted without changing the
+ * hierarchy until the quality of the hierarchy gets too bad. Packets of rays
+ * traverse the hierarchy together and every node tests the boxes of its
+ * children only against the rays of the packet that are still active.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class BVH extends Hitter {
+
+  /**
+   * An internal node of the bounding volume hierarchy.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  protected final class Node {
+
+    /** The bounding box. */
+    private BoundingBox box;
+    /** The lower inclusive index in the triangle order. */
+    private final int from;
+    /** The upper exclusive index in the triangle order. */
+    private final int to;
+    /** The left child or <code>null</code> if leaf. */
+    private Node left;
+    /** The right child or <code>null</code> if leaf. */
+    private Node right;
+
+    /**
+     * Creates a new node.
+     *
+     * @param box The bounding box.
+     * @param from The lower inclusive index in the triangle order.
+     * @param to The upper exclusive index in the triangle order.
+     */
+    public Node(final BoundingBox box, final int from, final int to) {
+      this.box = Objects.requireNonNull(box);
+      this.from = from;
+      this.to = to;
+      left = null;
+      right = null;
+    }
+
+    /**
+     * Getter.
+     *
+     * @return Whether this node is a leaf.
+     */
+    public boolean isLeaf() {
+      return left == null;
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The bounding box.
+     */
+    public BoundingBox getBox() {
+      return box;
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The lower inclusive index in the triangle order.
+     */
+    public int getFrom() {
+      return from;
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The upper exclusive index in the triangle order.
+     */
+    public int getTo() {
+      return to;
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The left child or <code>null</code> if leaf.
+     */
+    public Node getLeft() {
+      return left;
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The right child or <code>null</code> if leaf.
+     */
+    public Node getRight() {
+      return right;
+    }
+
+    /**
+     * Turns the node into an inner node.
+     *
+     * @param left The left child.
+     * @param right The right child.
+     */
+    public void setChildren(final Node left, final Node right) {
+      this.left = Objects.requireNonNull(left);
+      this.right = Objects.requireNonNull(right);
+    }
+
+    /**
+     * Tests for the closest hit in this subtree.
+     *
+     * @param r The ray.
+     * @param c The test counter.
+     * @param closest The closest hit so far. The result is stored here.
+     */
+    public void getHit(final Ray r, final TestCounter c, final Closest closest) {
+      if(isLeaf()) {
+        for(int i = from; i < to; ++i) {
+          final int index = order[i];
+          final double dist = ts.hit(index, r, c);
+          if(r.isValidDistance(dist) && dist < closest.dist) {
+            closest.dist = dist;
+            closest.index = index;
+          }
+        }
+        return;
+      }
+      final double dl = left.box.intersects(r, c);
+      final double dr = right.box.intersects(r, c);
+      final boolean leftFirst = dr < 0 || (dl >= 0 && dl <= dr);
+      final Node near = leftFirst ? left : right;
+      final Node far = leftFirst ? right : left;
+      final double dn = leftFirst ? dl : dr;
+      final double df = leftFirst ? dr : dl;
+      if(dn >= 0 && dn < closest.dist) {
+        near.getHit(r, c, closest);
+      }
+      if(df >= 0 && df < closest.dist) {
+        far.getHit(r, c, closest);
+      }
+    }
+
+    /**
+     * Counts the number of bounding boxes in the subtree.
+     *
+     * @return The number of bounding boxes in the subtree.
+     */
+    public int countBoundingBoxes() {
+      if(isLeaf()) return 1;
+      return 1 + left.countBoundingBoxes() + right.countBoundingBoxes();
+    }
+
+  } // Node
+
+  /**
+   * Refits the bounding boxes of a subtree in the fork join pool.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private final class RefitAction extends RecursiveAction {
+
+    /** The root of the subtree. */
+    private final Node node;
+    /** The depth of the node. */
+    private final int depth;
+
+    /**
+     * Creates a refit action.
+     *
+     * @param node The root of the subtree.
+     * @param depth The depth of the node.
+     */
+    public RefitAction(final Node node, final int depth) {
+      this.node = node;
+      this.depth = depth;
+    }
+
+    @Override
+    protected void compute() {
+      refit(node, depth);
+    }
+
+  } // RefitAction
+
+  /**
+   * The closest hit of a ray.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class Closest {
+
+    /** The distance of the closest hit. */
+    private double dist = Double.POSITIVE_INFINITY;
+    /** The index of the closest triangle or <code>-1</code>. */
+    private int index = -1;
+
+  } // Closest
+
+  /**
+   * The state of a packet traversal. Every thread has its own state.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class Packet {
+
+    /** The rays of the packet that are active at every depth. */
+    private int[][] active = new int[0][0];
+    /** The distances to the left child of the active rays at every depth. */
+    private double[][] left = new double[0][0];
+    /** The distances to the right child of the active rays at every depth. */
+    private double[][] right = new double[0][0];
+    /** The distance of the closest hit of every ray. */
+    private double[] minDist = new double[0];
+    /** The closest triangle of every ray or <code>-1</code>. */
+    private int[] best = new int[0];
+
+    /**
+     * Prepares the state for a new packet.
+     *
+     * @param depth The maximum depth of the hierarchy.
+     * @param size The number of rays in the packet.
+     */
+    public void nextPacket(final int depth, final int size) {
+      if(active.length <= depth || minDist.length < size) {
+        final int d = Math.max(active.length, depth + 1);
+        final int s = Math.max(minDist.length, size);
+        active = new int[d][s];
+        left = new double[d][s];
+        right = new double[d][s];
+        minDist = new double[s];
+        best = new int[s];
+      }
+      for(int i = 0; i < size; ++i) {
+        minDist[i] = Double.POSITIVE_INFINITY;
+        best[i] = -1;
+      }
+    }
+
+  } // Packet
+
+  /** The number of bins used to find split candidates. */
+  protected static final int BINS = 16;
+  /** The cost of traversing an inner node relative to a triangle test. */
+  protected static final double TRAVERSAL_COST = 1;
+  /**
+   * The maximal number of triangles of a leaf that is created because no split
+   * is cheaper than testing all triangles.
+   */
+  protected static final int MAX_LEAF_SIZE = 16;
+  /** The depth up to which subtrees are refitted by their own task. */
+  private static final int REFIT_FORK_DEPTH = 8;
+
+  /**
+   * The threshold when nodes are not being split anymore because of the number
+   * of triangles in the node.
+   */
+  protected final int triangleThreshold;
+  /**
+   * The threshold when nodes are not being split anymore because of the depth
+   * of the tree.
+   */
+  protected final int depthThreshold;
+  /** The maximum depth of the hierarchy. */
+  protected int maximumDepth;
+  /** The triangle indices ordered such that every node has a range. */
+  protected int[] order;
+  /** The root node. */
+  protected Node root;
+  /**
+   * The surface area heuristic cost of the hierarchy when it was built or
+   * {@link Double#NaN} if it has not been computed yet.
+   */
+  private double buildCost = Double.NaN;
+  /**
+   * The ratio of the current cost to the cost at build time above which a
+   * refit builds the hierarchy again.
+   */
+  private double rebuildThreshold = 1.5;
+
+  /** The packet traversal state of each thread. */
+  private final ThreadLocal<Packet> packets = new ThreadLocal<Packet>() {
+
+    @Override
+    protected Packet initialValue() {
+      return new Packet();
+    }
+
+  };
+
+  /** The minimal coordinates of the triangles. Only used while building. */
+  private double[] triMin;
+  /** The maximal coordinates of the triangles. Only used while building. */
+  private double[] triMax;
+
+  /**
+   * Creates a bounding volume hierarchy.
+   *
+   * @param depthThreshold The depth threshold.
+   * @param triangleThreshold The triangle threshold.
+   */
+  public BVH(final int depthThreshold, final int triangleThreshold) {
+    if(triangleThreshold < 1) throw new IllegalArgumentException("" + triangleThreshold);
+    if(depthThreshold < 1) throw new IllegalArgumentException("" + depthThreshold);
+    this.depthThreshold = depthThreshold;
+    this.triangleThreshold = triangleThreshold;
+  }
+
+  /**
+   * Setter.
+   *
+   * @param rebuildThreshold The ratio of the surface area heuristic cost after
+   *          a refit to the cost at build time above which the hierarchy is
+   *          built again. Must be at least <code>1</code>.
+   */
+  public void setRebuildThreshold(final double rebuildThreshold) {
+    if(!(rebuildThreshold >= 1)) throw new IllegalArgumentException("" + rebuildThreshold);
+    this.rebuildThreshold = rebuildThreshold;
+  }
+
+  @Override
+  public void fromTriangles(final Triangles ts) {
+    buildCost = Double.NaN;
+    super.fromTriangles(ts);
+  }
+
+  @Override
+  protected void build() {
+    maximumDepth = 0;
+    root = null;
+    final int size = ts.size();
+    order = new int[size];
+    triMin = new double[size * 3];
+    triMax = new double[size * 3];
+    for(int i = 0; i < size; ++i) {
+      order[i] = i;
+      for(int axis = 0; axis < 3; ++axis) {
+        triMin[i * 3 + axis] = ts.getMin(i, axis);
+        triMax[i * 3 + axis] = ts.getMax(i, axis);
+      }
+    }
+    root = buildNode(0, size, 0);
+    triMin = null;
+    triMax = null;
+    System.out.println("Depth of BVH: " + maximumDepth);
+    System.out.println("Bounding boxes in BVH: " + root.countBoundingBoxes());
+  }
+
+  /**
+   * Builds the subtree for the given range of the triangle order.
+   *
+   * @param from The lower inclusive index.
+   * @param to The upper exclusive index.
+   * @param depth The depth of the node.
+   * @return The node.
+   */
+  private Node buildNode(final int from, final int to, final int depth) {
+    maximumDepth = Math.max(depth, maximumDepth);
+    final double[] bounds = new double[6];
+    final double[] cBounds = new double[6];
+    computeBounds(from, to, bounds, cBounds);
+    final Node node = new Node(toBox(bounds), from, to);
+    final int count = to - from;
+    if(count <= triangleThreshold || depth >= depthThreshold) return node;
+    final int mid = partition(from, to, bounds, cBounds);
+    if(mid <= from || mid >= to) return node;
+    node.left = buildNode(from, mid, depth + 1);
+    node.right = buildNode(mid, to, depth + 1);
+    return node;
+  }
+
+  /**
+   * Creates a bounding box.
+   *
+   * @param bounds The minimal and maximal coordinates.
+   * @return The bounding box.
+   */
+  protected static BoundingBox toBox(final double[] bounds) {
+    return new BoundingBox(
+        new Vec4(bounds[0], bounds[1], bounds[2], true),
+        new Vec4(bounds[3], bounds[4], bounds[5], true));
+  }
+
+  /**
+   * Computes the bounds of the triangles and of their centroids.
+   *
+   * @param from The lower inclusive index.
+   * @param to The upper exclusive index.
+   * @param bounds The minimal and maximal coordinates of the triangles.
+   * @param cBounds The minimal and maximal coordinates of the centroids.
+   */
+  private void computeBounds(final int from, final int to,
+      final double[] bounds, final double[] cBounds) {
+    for(int axis = 0; axis < 3; ++axis) {
+      bounds[axis] = Double.POSITIVE_INFINITY;
+      bounds[axis + 3] = Double.NEGATIVE_INFINITY;
+      cBounds[axis] = Double.POSITIVE_INFINITY;
+      cBounds[axis + 3] = Double.NEGATIVE_INFINITY;
+    }
+    for(int i = from; i < to; ++i) {
+      final int t = order[i] * 3;
+      for(int axis = 0; axis < 3; ++axis) {
+        final double min = triMin[t + axis];
+        final double max = triMax[t + axis];
+        final double center = (min + max) * 0.5;
+        bounds[axis] = Math.min(bounds[axis], min);
+        bounds[axis + 3] = Math.max(bounds[axis + 3], max);
+        cBounds[axis] = Math.min(cBounds[axis], center);
+        cBounds[axis + 3] = Math.max(cBounds[axis + 3], center);
+      }
+    }
+  }
+
+  /**
+   * Partitions the given range of the triangle order by the best split
+   * according to the surface area heuristic. When no split is cheaper than a
+   * leaf the range is not split unless it contains more than
+   * {@link #MAX_LEAF_SIZE} triangles. Then the triangles are split at the
+   * median centroid on the longest axis of the centroid bounds.
+   *
+   * @param from The lower inclusive index.
+   * @param to The upper exclusive index.
+   * @param bounds The bounds of the triangles.
+   * @param cBounds The bounds of the centroids.
+   * @return The index of the first triangle in the right partition. If the
+   *         result is <code>from</code> or <code>to</code> the range should
+   *         not be split.
+   */
+  private int partition(final int from, final int to,
+      final double[] bounds, final double[] cBounds) {
+    final int count = to - from;
+    final int[] binCount = new int[BINS];
+    final double[] binBounds = new double[BINS * 6];
+    final double[] rightArea = new double[BINS];
+    final double[] acc = new double[6];
+    double bestCost = count;
+    int bestAxis = -1;
+    int bestBin = -1;
+    final double nodeArea = area(bounds, 0);
+    for(int axis = 0; axis < 3; ++axis) {
+      final double cMin = cBounds[axis];
+      final double extent = cBounds[axis + 3] - cMin;
+      if(!(extent > 0)) {
+        continue;
+      }
+      final double scale = BINS / extent;
+      for(int b = 0; b < BINS; ++b) {
+        binCount[b] = 0;
+        reset(binBounds, b * 6);
+      }
+      for(int i = from; i < to; ++i) {
+        final int t = order[i] * 3;
+        final int b = bin(triMin[t + axis], triMax[t + axis], cMin, scale);
+        ++binCount[b];
+        grow(binBounds, b * 6, t);
+      }
+      // sweep from the right to get the area of all right partitions
+      reset(acc, 0);
+      for(int b = BINS - 1; b > 0; --b) {
+        union(acc, binBounds, b * 6);
+        rightArea[b] = area(acc, 0);
+      }
+      // sweep from the left and evaluate the cost of every split
+      reset(acc, 0);
+      int leftCount = 0;
+      for(int b = 0; b < BINS - 1; ++b) {
+        union(acc, binBounds, b * 6);
+        leftCount += binCount[b];
+        final int rightCount = count - leftCount;
+        if(leftCount == 0 || rightCount == 0) {
+          continue;
+        }
+        final double cost = TRAVERSAL_COST
+            + (area(acc, 0) * leftCount + rightArea[b + 1] * rightCount) / nodeArea;
+        if(cost < bestCost) {
+          bestCost = cost;
+          bestAxis = axis;
+          bestBin = b;
+        }
+      }
+    }
+    if(bestAxis < 0) {
+      if(count <= MAX_LEAF_SIZE) return from;
+      return medianSplit(from, to, cBounds);
+    }
+    final double cMin = cBounds[bestAxis];
+    final double scale = BINS / (cBounds[bestAxis + 3] - cMin);
+    int lo = from;
+    int hi = to - 1;
+    while(lo <= hi) {
+      final int t = order[lo] * 3;
+      if(bin(triMin[t + bestAxis], triMax[t + bestAxis], cMin, scale) <= bestBin) {
+        ++lo;
+      } else {
+        final int tmp = order[lo];
+        order[lo] = order[hi];
+        order[hi] = tmp;
+        --hi;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Splits the given range of the triangle order at the median centroid on the
+   * longest axis of the centroid bounds.
+   *
+   * @param from The lower inclusive index.
+   * @param to The upper exclusive index.
+   * @param cBounds The bounds of the centroids.
+   * @return The index of the first triangle in the right partition.
+   */
+  private int medianSplit(final int from, final int to, final double[] cBounds) {
+    int axis = 0;
+    for(int a = 1; a < 3; ++a) {
+      if(cBounds[a + 3] - cBounds[a] > cBounds[axis + 3] - cBounds[axis]) {
+        axis = a;
+      }
+    }
+    final int mid = from + (to - from) / 2;
+    // all centroids coincide and every split is equally good
+    if(!(cBounds[axis + 3] > cBounds[axis])) return mid;
+    int lo = from;
+    int hi = to - 1;
+    while(lo < hi) {
+      // median of three
+      final int m = (lo + hi) >>> 1;
+      if(less(order[m], order[lo], axis)) {
+        swap(m, lo);
+      }
+      if(less(order[hi], order[lo], axis)) {
+        swap(hi, lo);
+      }
+      if(less(order[hi], order[m], axis)) {
+        swap(hi, m);
+      }
+      final int pivot = order[m];
+      int i = lo;
+      int j = hi;
+      while(i <= j) {
+        while(less(order[i], pivot, axis)) {
+          ++i;
+        }
+        while(less(pivot, order[j], axis)) {
+          --j;
+        }
+        if(i <= j) {
+          swap(i++, j--);
+        }
+      }
+      if(mid <= j) {
+        hi = j;
+      } else if(mid >= i) {
+        lo = i;
+      } else {
+        break;
+      }
+    }
+    return mid;
+  }
+
+  /**
+   * Compares two triangles by their centroid and their index.
+   *
+   * @param a The first triangle.
+   * @param b The second triangle.
+   * @param axis The axis.
+   * @return Whether the first triangle comes before the second.
+   */
+  private boolean less(final int a, final int b, final int axis) {
+    final double ca = triMin[a * 3 + axis] + triMax[a * 3 + axis];
+    final double cb = triMin[b * 3 + axis] + triMax[b * 3 + axis];
+    final int cmp = Double.compare(ca, cb);
+    return cmp < 0 || (cmp == 0 && a < b);
+  }
+
+  /**
+   * Swaps two entries of the triangle order.
+   *
+   * @param a The first position.
+   * @param b The second position.
+   */
+  private void swap(final int a, final int b) {
+    final int tmp = order[a];
+    order[a] = order[b];
+    order[b] = tmp;
+  }
+
+  /**
+   * Computes the bin of a triangle.
+   *
+   * @param min The minimal coordinate of the triangle on the axis.
+   * @param max The maximal coordinate of the triangle on the axis.
+   * @param cMin The minimal centroid coordinate on the axis.
+   * @param scale The number of bins per unit.
+   * @return The bin.
+   */
+  private static int bin(final double min, final double max,
+      final double cMin, final double scale) {
+    final int b = (int) (((min + max) * 0.5 - cMin) * scale);
+    return Math.max(0, Math.min(BINS - 1, b));
+  }
+
+  /**
+   * Resets the bounds at the given offset to an empty box.
+   *
+   * @param b The bounds array.
+   * @param off The offset.
+   */
+  protected static void reset(final double[] b, final int off) {
+    for(int axis = 0; axis < 3; ++axis) {
+      b[off + axis] = Double.POSITIVE_INFINITY;
+      b[off + axis + 3] = Double.NEGATIVE_INFINITY;
+    }
+  }
+
+  /**
+   * Grows the bounds at the given offset by a triangle.
+   *
+   * @param b The bounds array.
+   * @param off The offset.
+   * @param t The offset of the triangle in the coordinate arrays.
+   */
+  private void grow(final double[] b, final int off, final int t) {
+    for(int axis = 0; axis < 3; ++axis) {
+      b[off + axis] = Math.min(b[off + axis], triMin[t + axis]);
+      b[off + axis + 3] = Math.max(b[off + axis + 3], triMax[t + axis]);
+    }
+  }
+
+  /**
+   * Grows the bounds by other bounds.
+   *
+   * @param acc The bounds to grow.
+   * @param b The other bounds array.
+   * @param off The offset of the other bounds.
+   */
+  protected static void union(final double[] acc, final double[] b, final int off) {
+    for(int axis = 0; axis < 3; ++axis) {
+      acc[axis] = Math.min(acc[axis], b[off + axis]);
+      acc[axis + 3] = Math.max(acc[axis + 3], b[off + axis + 3]);
+    }
+  }
+
+  /**
+   * Computes half the surface area of the given bounds.
+   *
+   * @param b The bounds array.
+   * @param off The offset.
+   * @return Half the surface area or <code>0</code> for empty bounds.
+   */
+  protected static double area(final double[] b, final int off) {
+    final double dx = b[off + 3] - b[off];
+    final double dy = b[off + 4] - b[off + 1];
+    final double dz = b[off + 5] - b[off + 2];
+    if(dx < 0 || dy < 0 || dz < 0) return 0;
+    return dx * dy + dy * dz + dz * dx;
+  }
+
+  /**
+   * Computes half the surface area of a bounding box.
+   *
+   * @param box The bounding box.
+   * @return Half the surface area.
+   */
+  protected static double area(final BoundingBox box) {
+    final double w = box.getWidth();
+    final double h = box.getHeight();
+    final double d = box.getDepth();
+    return w * h + h * d + d * w;
+  }
+
+  /**
+   * Updates the bounding boxes from the leafs to the root. The hierarchy stays
+   * the same. If the surface area heuristic cost of the refitted hierarchy
+   * exceeds the cost at build time by the rebuild threshold the hierarchy is
+   * built again.
+   *
+   * @see #setRebuildThreshold(double)
+   */
+  @Override
+  public void refit() {
+    if(Double.isNaN(buildCost)) {
+      buildCost = sahCost();
+    }
+    final long nano = System.nanoTime();
+    final ForkJoinPool fjp = Main.SINGLE_THREAD ? new ForkJoinPool(1) : new ForkJoinPool();
+    try {
+      refitBounds(fjp);
+    } finally {
+      fjp.shutdown();
+    }
+    final double cost = sahCost();
+    System.out.println("Refit of " + getClass().getSimpleName() + " took "
+        + ((System.nanoTime() - nano) * 1e-6) + "ms");
+    System.out.println("SAH cost: " + cost + " (built " + buildCost + ")");
+    if(cost > buildCost * rebuildThreshold) {
+      System.out.println("SAH cost degraded - building again");
+      build();
+      buildCost = Double.NaN;
+    }
+  }
+
+  /**
+   * Updates the bounding boxes from the leafs to the root.
+   *
+   * @param fjp The fork join pool.
+   */
+  protected void refitBounds(final ForkJoinPool fjp) {
+    fjp.invoke(new RefitAction(root, 0));
+  }
+
+  /**
+   * Updates the bounding boxes of a subtree. The children of nodes near the
+   * root are refitted in parallel.
+   *
+   * @param node The root of the subtree.
+   * @param depth The depth of the node.
+   */
+  void refit(final Node node, final int depth) {
+    final double[] bounds = new double[6];
+    reset(bounds, 0);
+    if(node.isLeaf()) {
+      for(int i = node.from; i < node.to; ++i) {
+        final int t = order[i];
+        for(int axis = 0; axis < 3; ++axis) {
+          bounds[axis] = Math.min(bounds[axis], ts.getMin(t, axis));
+          bounds[axis + 3] = Math.max(bounds[axis + 3], ts.getMax(t, axis));
+        }
+      }
+    } else {
+      if(depth < REFIT_FORK_DEPTH) {
+        ForkJoinTask.invokeAll(new RefitAction(node.left, depth + 1),
+            new RefitAction(node.right, depth + 1));
+      } else {
+        refit(node.left, depth + 1);
+        refit(node.right, depth + 1);
+      }
+      include(bounds, node.left.box);
+      include(bounds, node.right.box);
+    }
+    node.box = toBox(bounds);
+  }
+
+  /**
+   * Grows the bounds by a bounding box.
+   *
+   * @param bounds The bounds to grow.
+   * @param box The bounding box.
+   */
+  private static void include(final double[] bounds, final BoundingBox box) {
+    final Vec4 min = box.get(true, true, true);
+    final Vec4 max = box.get(false, false, false);
+    for(int axis = 0; axis < 3; ++axis) {
+      bounds[axis] = Math.min(bounds[axis], min.get(axis));
+      bounds[axis + 3] = Math.max(bounds[axis + 3], max.get(axis));
+    }
+  }
+
+  /**
+   * Computes the expected cost of a ray that hits the root according to the
+   * surface area heuristic.
+   *
+   * @return The cost relative to a triangle test.
+   */
+  protected double sahCost() {
+    final double rootArea = area(root.box);
+    if(!(rootArea > 0)) return 0;
+    return sahCost(root) / rootArea;
+  }
+
+  /**
+   * Computes the surface area heuristic cost of a subtree not yet divided by
+   * the area of the root.
+   *
+   * @param node The root of the subtree.
+   * @return The cost.
+   */
+  private static double sahCost(final Node node) {
+    final double area = area(node.box);
+    if(node.isLeaf()) return area * (node.to - node.from);
+    return area * TRAVERSAL_COST + sahCost(node.left) + sahCost(node.right);
+  }
+
+  @Override
+  public Hit getHit(final Ray r, final TestCounter c) {
+    if(root.box.intersects(r, c) < 0) return new Hit(r, c);
+    final Closest closest = new Closest();
+    root.getHit(r, c, closest);
+    if(closest.index < 0) return new Hit(r, c);
+    return new Hit(r, ts.getTriangle(closest.index), closest.index, closest.dist, c);
+  }
+
+  @Override
+  public void getHits(final Ray[] packet, final TestCounter[] counters, final Hit[] hits) {
+    final int size = packet.length;
+    final Packet p = packets.get();
+    p.nextPacket(maximumDepth, size);
+    final int[] active = p.active[0];
+    int count = 0;
+    for(int i = 0; i < size; ++i) {
+      if(root.box.intersects(packet[i], counters[i]) >= 0) {
+        active[count++] = i;
+      }
+    }
+    if(count > 0) {
+      getHits(root, 0, count, packet, counters, p);
+    }
+    for(int i = 0; i < size; ++i) {
+      hits[i] = p.best[i] < 0 ? new Hit(packet[i], counters[i])
+          : new Hit(packet[i], ts.getTriangle(p.best[i]), p.best[i], p.minDist[i], counters[i]);
+    }
+  }
+
+  /**
+   * Tests for the closest hits of the active rays in a subtree. The child
+   * that is nearer for most of the rays is visited first.
+   *
+   * @param node The root of the subtree.
+   * @param depth The depth of the node.
+   * @param count The number of active rays.
+   * @param packet The rays.
+   * @param counters The check counter of every ray.
+   * @param p The packet traversal state.
+   */
+  private void getHits(final Node node, final int depth, final int count,
+      final Ray[] packet, final TestCounter[] counters, final Packet p) {
+    final int[] active = p.active[depth];
+    if(node.isLeaf()) {
+      for(int k = 0; k < count; ++k) {
+        final int i = active[k];
+        final Ray r = packet[i];
+        for(int j = node.from; j < node.to; ++j) {
+          final int index = order[j];
+          final double dist = ts.hit(index, r, counters[i]);
+          if(r.isValidDistance(dist) && dist < p.minDist[i]) {
+            p.minDist[i] = dist;
+            p.best[i] = index;
+          }
+        }
+      }
+      return;
+    }
+    final double[] dl = p.left[depth];
+    final double[] dr = p.right[depth];
+    int votes = 0;
+    for(int k = 0; k < count; ++k) {
+      final int i = active[k];
+      dl[k] = node.left.box.intersects(packet[i], counters[i]);
+      dr[k] = node.right.box.intersects(packet[i], counters[i]);
+      if(dl[k] >= 0 && (dr[k] < 0 || dl[k] <= dr[k])) {
+        ++votes;
+      } else if(dr[k] >= 0) {
+        --votes;
+      }
+    }
+    final boolean leftFirst = votes >= 0;
+    visit(leftFirst ? node.left : node.right, leftFirst ? dl : dr,
+        depth, count, packet, counters, p);
+    visit(leftFirst ? node.right : node.left, leftFirst ? dr : dl,
+        depth, count, packet, counters, p);
+  }
+
+  /**
+   * Visits a child with the active rays that hit its box before their
+   * closest hit so far.
+   *
+   * @param child The child.
+   * @param dist The distances of the active rays to the box of the child.
+   * @param depth The depth of the parent.
+   * @param count The number of active rays of the parent.
+   * @param packet The rays.
+   * @param counters The check counter of every ray.
+   * @param p The packet traversal state.
+   */
+  private void visit(final Node child, final double[] dist, final int depth,
+      final int count, final Ray[] packet, final TestCounter[] counters, final Packet p) {
+    final int[] active = p.active[depth];
+    final int[] next = p.active[depth + 1];
+    int n = 0;
+    for(int k = 0; k < count; ++k) {
+      final int i = active[k];
+      if(dist[k] >= 0 && dist[k] < p.minDist[i]) {
+        next[n++] = i;
+      }
+    }
+    if(n > 0) {
+      getHits(child, depth + 1, n, packet, counters, p);
+    }
+  }
+
+}
@@ -0,0 +1,193 @@
+package cgp.algos;
+
+import cgp.tracer.TestCounter;
+
+/**
+ * A {@link QBVH} whose child boxes are quantized relative to the box of their
+ * parent. Every node stores the minimal corner and a power of two grid size
+ * per axis as floats. The child boxes are stored as 8 or 16 bit grid
+ * coordinates packed into integers. Minimal coordinates are rounded down and
+ * maximal coordinates are rounded up so the dequantized boxes always contain
+ * the original boxes and the traversal finds exactly the same hits.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class CompressedBVH extends QBVH {
+
+  /** The number of bits per quantized coordinate. Either 8 or 16. */
+  protected final int bits;
+  /** The largest quantized coordinate. */
+  private final int mask;
+  /** The number of quantized coordinates per integer. */
+  private final int perInt;
+  /** The x, y, and z coordinate of the grid origin of every node. */
+  private float[] origins;
+  /** The x, y, and z grid size of every node. */
+  private float[] scales;
+  /**
+   * The quantized child boxes of every node. The coordinates are ordered like
+   * {@link #boxes} and packed into integers starting with the lowest bits.
+   */
+  private int[] quantized;
+  /** The dequantized child boxes of the current node of each thread. */
+  private final ThreadLocal<double[]> decoded = new ThreadLocal<double[]>() {
+
+    @Override
+    protected double[] initialValue() {
+      return new double[STRIDE];
+    }
+
+  };
+
+  /**
+   * Creates a compressed bounding volume hierarchy.
+   *
+   * @param triangleThreshold The threshold when nodes are not being split
+   *          anymore because of the number of triangles in the node.
+   * @param bits The number of bits per quantized coordinate. Either 8 or 16.
+   */
+  public CompressedBVH(final int triangleThreshold, final int bits) {
+    super(triangleThreshold);
+    if(bits != 8 && bits != 16) throw new IllegalArgumentException("" + bits);
+    this.bits = bits;
+    mask = (1 << bits) - 1;
+    perInt = 32 / bits;
+  }
+
+  @Override
+  protected void build() {
+    super.build();
+    origins = new float[nodeCount * 3];
+    scales = new float[nodeCount * 3];
+    quantized = new int[nodeCount * STRIDE / perInt];
+    for(int node = 0; node < nodeCount; ++node) {
+      for(int axis = 0; axis < 3; ++axis) {
+        quantize(node, axis);
+      }
+    }
+    // the full precision boxes are not needed anymore
+    boxes = null;
+    final int bytes = STRIDE / perInt * 4 + 6 * 4 + WIDTH * 4;
+    System.out.println("Bytes per node in compressed BVH: " + bytes
+        + " (uncompressed " + (STRIDE * 8 + WIDTH * 4) + ")");
+  }
+
+  /**
+   * Builds the hierarchy again since the full precision boxes needed for a
+   * refit are discarded after quantizing.
+   */
+  @Override
+  public void refit() {
+    build();
+  }
+
+  /**
+   * Quantizes the child coordinates of a node on one axis. The grid starts at
+   * the minimal coordinate of all children rounded down to a float. The grid
+   * size is the smallest power of two that covers the extent with the
+   * available grid coordinates and for which every rounded coordinate still
+   * contains the original box.
+   *
+   * @param node The node.
+   * @param axis The axis.
+   */
+  private void quantize(final int node, final int axis) {
+    final int b = node * STRIDE;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for(int i = 0; i < WIDTH; ++i) {
+      if(children[node * WIDTH + i] == EMPTY) {
+        continue;
+      }
+      min = Math.min(min, boxes[b + axis * WIDTH + i]);
+      max = Math.max(max, boxes[b + (axis + 3) * WIDTH + i]);
+    }
+    float o = (float) min;
+    if(o > min) {
+      o = Math.nextAfter(o, Double.NEGATIVE_INFINITY);
+    }
+    final double target = (max - o) / mask;
+    int exp = Math.max(Math.getExponent(target), Float.MIN_EXPONENT);
+    if(Math.scalb(1.0, exp) < target) {
+      ++exp;
+    }
+    while(!quantize(node, axis, o, Math.scalb(1f, exp))) {
+      ++exp;
+    }
+    origins[node * 3 + axis] = o;
+    scales[node * 3 + axis] = Math.scalb(1f, exp);
+  }
+
+  /**
+   * Quantizes the child coordinates of a node on one axis with the given grid.
+   *
+   * @param node The node.
+   * @param axis The axis.
+   * @param origin The grid origin.
+   * @param scale The grid size.
+   * @return Whether all child boxes are contained in their quantized boxes.
+   */
+  private boolean quantize(final int node, final int axis,
+      final double origin, final double scale) {
+    final int b = node * STRIDE;
+    for(int i = 0; i < WIDTH; ++i) {
+      final int lo = b + axis * WIDTH + i;
+      final int hi = b + (axis + 3) * WIDTH + i;
+      if(children[node * WIDTH + i] == EMPTY) {
+        set(lo, 0);
+        set(hi, 0);
+        continue;
+      }
+      final double min = boxes[lo];
+      int qMin = (int) Math.max(0, Math.min(mask, Math.floor((min - origin) / scale)));
+      while(qMin > 0 && origin + qMin * scale > min) {
+        --qMin;
+      }
+      if(origin + qMin * scale > min) return false;
+      final double max = boxes[hi];
+      int qMax = (int) Math.max(0, Math.min(mask, Math.ceil((max - origin) / scale)));
+      while(qMax < mask && origin + qMax * scale < max) {
+        ++qMax;
+      }
+      if(origin + qMax * scale < max) return false;
+      set(lo, qMin);
+      set(hi, qMax);
+    }
+    return true;
+  }
+
+  /**
+   * Sets a quantized coordinate.
+   *
+   * @param pos The position of the coordinate in the layout of {@link #boxes}.
+   * @param q The quantized coordinate.
+   */
+  private void set(final int pos, final int q) {
+    final int shift = (pos % perInt) * bits;
+    final int i = pos / perInt;
+    quantized[i] = (quantized[i] & ~(mask << shift)) | (q << shift);
+  }
+
+  @Override
+  protected void intersect(final int node,
+      final double ox, final double oy, final double oz,
+      final double ix, final double iy, final double iz,
+      final double near, final double far, final double[] dist,
+      final TestCounter c) {
+    final double[] bx = decoded.get();
+    final int q = node * STRIDE / perInt;
+    for(int g = 0; g < 6; ++g) {
+      // the same expression as during quantization
+      final double origin = origins[node * 3 + g % 3];
+      final double scale = scales[node * 3 + g % 3];
+      for(int i = 0; i < WIDTH; ++i) {
+        final int k = g * WIDTH + i;
+        final int v = (quantized[q + k / perInt] >>> ((k % perInt) * bits)) & mask;
+        bx[k] = origin + v * scale;
+      }
+    }
+    intersect(bx, 0, ox, oy, oz, ix, iy, iz, near, far, dist);
+    countChecks(node, c);
+  }
+
+}
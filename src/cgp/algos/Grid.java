@@ -0,0 +1,442 @@
+package cgp.algos;
+
+import java.util.Arrays;
+
+import cgp.data.Ray;
+import cgp.data.Vec4;
+import cgp.tracer.Hit;
+import cgp.tracer.TestCounter;
+
+/**
+ * A uniform grid. Triangles are registered in every cell their bounding box
+ * overlaps. The resolution is chosen so that the number of cells is
+ * proportional to the number of triangles and the cells are roughly cubes.
+ * Rays step through the cells with the 3D-DDA of Amanatides and Woo. The grid
+ * is built in linear time. Optionally, cells containing many triangles get a
+ * nested grid of their own which handles scenes with non-uniform triangle
+ * density. Every visited cell is counted as a bounding box test.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class Grid extends Hitter {
+
+  /**
+   * A grid level.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class Level {
+
+    /** The minimal and maximal coordinates of the grid. */
+    private final double[] bounds;
+    /** The number of cells on every axis. */
+    private final int[] res;
+    /** The size of the cells on every axis. */
+    private final double[] size;
+    /**
+     * The first position in {@link #cellTris} of every cell. The last entry is
+     * the total number of references.
+     */
+    private final int[] cellStart;
+    /** The triangles of every cell. */
+    private final int[] cellTris;
+    /** The nested grid of every cell or <code>null</code>. */
+    private Level[] children;
+
+    /**
+     * Creates a grid level.
+     *
+     * @param bounds The minimal and maximal coordinates of the grid.
+     * @param res The number of cells on every axis.
+     * @param cellStart The first position of every cell.
+     * @param cellTris The triangles of every cell.
+     */
+    public Level(final double[] bounds, final int[] res,
+        final int[] cellStart, final int[] cellTris) {
+      this.bounds = bounds;
+      this.res = res;
+      this.cellStart = cellStart;
+      this.cellTris = cellTris;
+      size = new double[3];
+      for(int axis = 0; axis < 3; ++axis) {
+        size[axis] = (bounds[axis + 3] - bounds[axis]) / res[axis];
+      }
+      children = null;
+    }
+
+    /**
+     * Getter.
+     *
+     * @param x The x index.
+     * @param y The y index.
+     * @param z The z index.
+     * @return The cell index.
+     */
+    public int cell(final int x, final int y, final int z) {
+      return (z * res[1] + y) * res[0] + x;
+    }
+
+  } // Level
+
+  /**
+   * The state of a traversal. Every thread has its own state.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class Traversal {
+
+    /** The mailbox of already tested triangles. */
+    private final Mailbox mailbox = new Mailbox(0);
+    /** The distance of the closest hit. */
+    private double minDist;
+    /** The closest triangle or <code>-1</code>. */
+    private int best;
+
+  } // Traversal
+
+  /** The maximal number of cells per axis. */
+  private static final int MAX_RES = 256;
+  /**
+   * The number of triangles of a cell relative to the average number of
+   * triangles per cell above which the cell gets a nested grid.
+   */
+  private static final int NESTED_FACTOR = 8;
+  /** The minimal number of triangles in a cell with a nested grid. */
+  private static final int NESTED_MIN = 32;
+
+  /** The number of cells per triangle. */
+  protected final double density;
+  /** Whether crowded cells get a nested grid. */
+  protected final boolean nested;
+  /** The top level grid or <code>null</code> if there are no triangles. */
+  private Level top;
+  /** The traversal state of each thread. */
+  private final ThreadLocal<Traversal> traversal = new ThreadLocal<Traversal>() {
+
+    @Override
+    protected Traversal initialValue() {
+      return new Traversal();
+    }
+
+  };
+
+  /**
+   * Creates a grid.
+   *
+   * @param density The number of cells per triangle.
+   * @param nested Whether crowded cells get a nested grid.
+   */
+  public Grid(final double density, final boolean nested) {
+    if(!(density > 0)) throw new IllegalArgumentException("" + density);
+    this.density = density;
+    this.nested = nested;
+  }
+
+  @Override
+  protected void build() {
+    final int size = ts.size();
+    top = null;
+    if(size == 0) {
+      System.out.println("Cells in grid: 0");
+      return;
+    }
+    final int[] tris = new int[size];
+    final double[] bounds = new double[6];
+    for(int axis = 0; axis < 3; ++axis) {
+      bounds[axis] = Double.POSITIVE_INFINITY;
+      bounds[axis + 3] = Double.NEGATIVE_INFINITY;
+    }
+    for(int i = 0; i < size; ++i) {
+      tris[i] = i;
+      for(int axis = 0; axis < 3; ++axis) {
+        bounds[axis] = Math.min(bounds[axis], ts.getMin(i, axis));
+        bounds[axis + 3] = Math.max(bounds[axis + 3], ts.getMax(i, axis));
+      }
+    }
+    top = buildLevel(tris, bounds);
+    int cells = top.cellStart.length - 1;
+    int nestedCells = 0;
+    if(nested) {
+      final double average = (double) top.cellTris.length / cells;
+      final int threshold = (int) Math.max(NESTED_MIN, average * NESTED_FACTOR);
+      for(int cell = 0; cell < cells; ++cell) {
+        final int from = top.cellStart[cell];
+        final int to = top.cellStart[cell + 1];
+        if(to - from <= threshold) {
+          continue;
+        }
+        if(top.children == null) {
+          top.children = new Level[cells];
+        }
+        final Level child = buildLevel(
+            Arrays.copyOfRange(top.cellTris, from, to), cellBounds(top, cell));
+        top.children[cell] = child;
+        nestedCells += child.cellStart.length - 1;
+      }
+    }
+    System.out.println("Resolution of grid: " + top.res[0] + "x" + top.res[1] + "x" + top.res[2]);
+    System.out.println("Cells in grid: " + cells + " + " + nestedCells + " nested");
+    System.out.println("References in grid: " + top.cellTris.length);
+  }
+
+  /**
+   * Computes the bounds of a cell.
+   *
+   * @param level The grid level.
+   * @param cell The cell index.
+   * @return The minimal and maximal coordinates of the cell.
+   */
+  private static double[] cellBounds(final Level level, final int cell) {
+    final int[] idx = {
+        cell % level.res[0],
+        (cell / level.res[0]) % level.res[1],
+        cell / level.res[0] / level.res[1]
+    };
+    final double[] bounds = new double[6];
+    for(int axis = 0; axis < 3; ++axis) {
+      final double min = level.bounds[axis];
+      bounds[axis] = min + idx[axis] * level.size[axis];
+      bounds[axis + 3] = idx[axis] == level.res[axis] - 1
+          ? level.bounds[axis + 3] : min + (idx[axis] + 1) * level.size[axis];
+    }
+    return bounds;
+  }
+
+  /**
+   * Builds a grid level. The number of cells is proportional to the number of
+   * triangles and the cells are as close to cubes as possible. Every triangle
+   * is registered in all cells its bounding box overlaps. Triangles are
+   * counted first so the references can be stored in one array without
+   * sorting.
+   *
+   * @param tris The triangles.
+   * @param bounds The bounds of the grid.
+   * @return The grid level.
+   */
+  private Level buildLevel(final int[] tris, final double[] bounds) {
+    final double[] extent = new double[3];
+    double maxExtent = 0;
+    for(int axis = 0; axis < 3; ++axis) {
+      extent[axis] = bounds[axis + 3] - bounds[axis];
+      maxExtent = Math.max(maxExtent, extent[axis]);
+    }
+    // flat axes get a small thickness so the volume is not zero
+    final double minExtent = maxExtent > 0 ? maxExtent * 1e-3 : 1;
+    double volume = 1;
+    for(int axis = 0; axis < 3; ++axis) {
+      volume *= Math.max(extent[axis], minExtent);
+    }
+    final double cellsPerUnit = Math.cbrt(density * tris.length / volume);
+    final int[] res = new int[3];
+    for(int axis = 0; axis < 3; ++axis) {
+      res[axis] = (int) Math.max(1, Math.min(MAX_RES,
+          Math.ceil(extent[axis] * cellsPerUnit)));
+    }
+    final int cells = res[0] * res[1] * res[2];
+    final int[] cellStart = new int[cells + 1];
+    final Level level = new Level(bounds, res, cellStart, null);
+    final int[] range = new int[6];
+    for(final int t : tris) {
+      cellRange(level, t, range);
+      for(int z = range[2]; z <= range[5]; ++z) {
+        for(int y = range[1]; y <= range[4]; ++y) {
+          for(int x = range[0]; x <= range[3]; ++x) {
+            ++cellStart[level.cell(x, y, z) + 1];
+          }
+        }
+      }
+    }
+    for(int cell = 0; cell < cells; ++cell) {
+      cellStart[cell + 1] += cellStart[cell];
+    }
+    final int[] cellTris = new int[cellStart[cells]];
+    final int[] pos = Arrays.copyOf(cellStart, cells);
+    for(final int t : tris) {
+      cellRange(level, t, range);
+      for(int z = range[2]; z <= range[5]; ++z) {
+        for(int y = range[1]; y <= range[4]; ++y) {
+          for(int x = range[0]; x <= range[3]; ++x) {
+            cellTris[pos[level.cell(x, y, z)]++] = t;
+          }
+        }
+      }
+    }
+    return new Level(bounds, res, cellStart, cellTris);
+  }
+
+  /**
+   * Computes the cells overlapped by the bounding box of a triangle.
+   *
+   * @param level The grid level.
+   * @param t The triangle.
+   * @param range Receives the minimal and maximal inclusive cell index on
+   *          every axis.
+   */
+  private void cellRange(final Level level, final int t, final int[] range) {
+    for(int axis = 0; axis < 3; ++axis) {
+      range[axis] = index(level, axis, ts.getMin(t, axis));
+      range[axis + 3] = index(level, axis, ts.getMax(t, axis));
+    }
+  }
+
+  /**
+   * Computes the cell index of a coordinate. Coordinates outside of the grid
+   * are clamped to the border cells.
+   *
+   * @param level The grid level.
+   * @param axis The axis.
+   * @param value The coordinate.
+   * @return The cell index on the axis.
+   */
+  private static int index(final Level level, final int axis, final double value) {
+    final double size = level.size[axis];
+    if(!(size > 0)) return 0;
+    final int i = (int) Math.floor((value - level.bounds[axis]) / size);
+    return Math.max(0, Math.min(level.res[axis] - 1, i));
+  }
+
+  @Override
+  public Hit getHit(final Ray r, final TestCounter c) {
+    if(top == null) return new Hit(r, c);
+    c.addBBoxCheck();
+    final Vec4 o = r.getOrigin();
+    final Vec4 d = r.getDirection();
+    final double[] range = { r.getNear(), r.getFar()};
+    if(!clip(top, o, d, range)) return new Hit(r, c);
+    final Traversal tr = traversal.get();
+    tr.mailbox.nextRay(ts.size());
+    tr.minDist = Double.POSITIVE_INFINITY;
+    tr.best = -1;
+    traverse(top, r, range[0], range[1], tr, c);
+    if(tr.best < 0) return new Hit(r, c);
+    return new Hit(r, ts.getTriangle(tr.best), tr.best, tr.minDist, c);
+  }
+
+  /**
+   * Clips the ray with the bounds of a grid level.
+   *
+   * @param level The grid level.
+   * @param o The origin of the ray.
+   * @param d The direction of the ray.
+   * @param range The range of the ray. The result is stored here.
+   * @return Whether the ray intersects the grid.
+   */
+  private static boolean clip(final Level level, final Vec4 o, final Vec4 d,
+      final double[] range) {
+    double tmin = range[0];
+    double tmax = range[1];
+    for(int axis = 0; axis < 3; ++axis) {
+      final double oa = o.get(axis);
+      final double da = d.get(axis);
+      final double min = level.bounds[axis];
+      final double max = level.bounds[axis + 3];
+      if(da == 0) {
+        if(oa < min || oa > max) return false;
+        continue;
+      }
+      final double t0 = (min - oa) / da;
+      final double t1 = (max - oa) / da;
+      tmin = Math.max(tmin, Math.min(t0, t1));
+      tmax = Math.min(tmax, Math.max(t0, t1));
+    }
+    range[0] = tmin;
+    range[1] = tmax;
+    return tmin <= tmax;
+  }
+
+  /**
+   * Steps through the cells of a grid level with the 3D-DDA. The traversal
+   * stops as soon as the closest hit lies within the current cell.
+   *
+   * @param level The grid level.
+   * @param r The ray.
+   * @param tEnter The distance at which the ray enters the grid.
+   * @param tLeave The distance at which the ray leaves the grid.
+   * @param tr The traversal state.
+   * @param c The test counter.
+   * @return Whether the closest hit has been found.
+   */
+  private boolean traverse(final Level level, final Ray r,
+      final double tEnter, final double tLeave, final Traversal tr, final TestCounter c) {
+    final Vec4 o = r.getOrigin();
+    final Vec4 d = r.getDirection();
+    final int[] cur = new int[3];
+    final int[] step = new int[3];
+    final double[] tNext = new double[3];
+    final double[] tDelta = new double[3];
+    for(int axis = 0; axis < 3; ++axis) {
+      final double oa = o.get(axis);
+      final double da = d.get(axis);
+      final int i = index(level, axis, oa + da * tEnter);
+      cur[axis] = i;
+      final double min = level.bounds[axis];
+      final double size = level.size[axis];
+      if(da > 0) {
+        step[axis] = 1;
+        tNext[axis] = (min + (i + 1) * size - oa) / da;
+        tDelta[axis] = size / da;
+      } else if(da < 0) {
+        step[axis] = -1;
+        tNext[axis] = (min + i * size - oa) / da;
+        tDelta[axis] = -size / da;
+      } else {
+        step[axis] = 0;
+        tNext[axis] = Double.POSITIVE_INFINITY;
+        tDelta[axis] = Double.POSITIVE_INFINITY;
+      }
+    }
+    double t = tEnter;
+    for(;;) {
+      final int axis = tNext[0] < tNext[1]
+          ? (tNext[0] < tNext[2] ? 0 : 2) : (tNext[1] < tNext[2] ? 1 : 2);
+      final double tExit = Math.min(tNext[axis], tLeave);
+      final int cell = level.cell(cur[0], cur[1], cur[2]);
+      c.addBBoxCheck();
+      final Level child = level.children != null ? level.children[cell] : null;
+      if(child != null) {
+        final double[] range = { t, tExit};
+        if(clip(child, o, d, range) && traverse(child, r, range[0], range[1], tr, c)) {
+          return true;
+        }
+      } else {
+        test(level, cell, r, tr, c);
+      }
+      // no later cell can contain a closer hit
+      if(tr.minDist <= tExit) return true;
+      if(tExit >= tLeave) return false;
+      cur[axis] += step[axis];
+      if(cur[axis] < 0 || cur[axis] >= level.res[axis]) return false;
+      t = tExit;
+      tNext[axis] += tDelta[axis];
+    }
+  }
+
+  /**
+   * Tests the triangles of a cell.
+   *
+   * @param level The grid level.
+   * @param cell The cell.
+   * @param r The ray.
+   * @param tr The traversal state.
+   * @param c The test counter.
+   */
+  private void test(final Level level, final int cell, final Ray r,
+      final Traversal tr, final TestCounter c) {
+    final Vec4 o = r.getOrigin();
+    final Vec4 d = r.getDirection();
+    final int to = level.cellStart[cell + 1];
+    for(int i = level.cellStart[cell]; i < to; ++i) {
+      final int t = level.cellTris[i];
+      if(!tr.mailbox.visit(t)) {
+        continue;
+      }
+      final double dist = ts.hit(t, o.getX(), o.getY(), o.getZ(),
+          d.getX(), d.getY(), d.getZ(), c);
+      if(r.isValidDistance(dist) && dist < tr.minDist) {
+        tr.minDist = dist;
+        tr.best = t;
+      }
+    }
+  }
+
+}
@@ -1,6 +1,7 @@
 package cgp.algos;
 
 import cgp.data.Ray;
+import cgp.data.Triangle;
 import cgp.tracer.Hit;
 import cgp.tracer.TestCounter;
 
@@ -27,6 +28,16 @@ public abstract class Hitter {
   /** Builds the data structure. */
   protected abstract void build();
 
+  /**
+   * Updates the data structure after the vertices of the triangles have been
+   * moved, for example by {@link Triangles#transform(cgp.data.AffineTransform4)}.
+   * The faces of the triangles must not change. The default implementation
+   * builds the data structure again.
+   */
+  public void refit() {
+    build();
+  }
+
   /**
    * Checks whether the ray hits a triangle.
    *
@@ -36,4 +47,29 @@ public abstract class Hitter {
    */
   public abstract Hit getHit(Ray r, TestCounter counter);
 
+  /**
+   * Getter.
+   *
+   * @param index The index of a triangle as reported by {@link Hit#getIndex()}.
+   * @return The triangle.
+   */
+  public Triangle getTriangle(final int index) {
+    return ts.getTriangle(index);
+  }
+
+  /**
+   * Checks whether the rays of a packet hit a triangle. Data structures can
+   * traverse coherent rays together to share the work per node. The default
+   * implementation checks every ray on its own.
+   *
+   * @param packet The rays.
+   * @param counters The check counter of every ray.
+   * @param hits Receives the hit of every ray.
+   */
+  public void getHits(final Ray[] packet, final TestCounter[] counters, final Hit[] hits) {
+    for(int i = 0; i < packet.length; ++i) {
+      hits[i] = getHit(packet[i], counters[i]);
+    }
+  }
+
 }
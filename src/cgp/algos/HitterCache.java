@@ -0,0 +1,234 @@
+package cgp.algos;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Stores built data structures on disk. A data structure is identified by the
+ * hash of the triangles and its
+ * {@link PersistentHitter#getPersistenceKey() persistence key}. Every file
+ * starts with a header:
+ *
+ * <pre>
+ * int    magic number
+ * int    version
+ * int    length of the persistence key followed by its UTF-8 bytes
+ * int    length of the content hash followed by its UTF-8 bytes
+ * </pre>
+ *
+ * The data structure follows directly after the header. Files are memory
+ * mapped for loading.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class HitterCache {
+
+  /** The magic number identifying cache files. */
+  private static final int MAGIC = 0x43475054;
+  /**
+   * The version of the file format. The version must be increased whenever
+   * the layout of a stored data structure changes.
+   */
+  private static final int VERSION = 2;
+  /** The file extension of cache files. */
+  private static final String EXTENSION = ".tree";
+
+  /** The cache directory. */
+  private final Path dir;
+
+  /**
+   * Creates a cache in the given directory. The directory is created when the
+   * first data structure is stored.
+   *
+   * @param dir The directory.
+   */
+  public HitterCache(final String dir) {
+    this.dir = Paths.get(Objects.requireNonNull(dir));
+  }
+
+  /**
+   * Fills the data structure with the triangles. If the data structure was
+   * built for the same triangles before it is loaded from the cache. Otherwise
+   * the data structure is built and stored in the cache.
+   *
+   * @param ht The data structure.
+   * @param ts The triangles.
+   */
+  public void fromTriangles(final Hitter ht, final Triangles ts) {
+    if(!(ht instanceof PersistentHitter)) {
+      ht.fromTriangles(ts);
+      return;
+    }
+    final PersistentHitter ph = (PersistentHitter) ht;
+    final String key = ph.getPersistenceKey();
+    final String hash = ts.contentHash();
+    final Path file = dir.resolve(hash.substring(0, 16) + "-" + key + EXTENSION);
+    if(Files.isRegularFile(file)) {
+      try {
+        load(ph, ts, file, key, hash);
+        return;
+      } catch(final IOException e) {
+        System.err.println("could not load " + file + ": " + e);
+      }
+    }
+    ht.fromTriangles(ts);
+    try {
+      save(ph, file, key, hash);
+    } catch(final IOException e) {
+      // the data structure is built anyway
+      System.err.println("could not write " + file + ": " + e);
+    }
+  }
+
+  /**
+   * Loads a data structure.
+   *
+   * @param ht The data structure.
+   * @param ts The triangles.
+   * @param file The file.
+   * @param key The persistence key.
+   * @param hash The content hash of the triangles.
+   * @throws IOException If the file does not match the data structure or is
+   *           malformed.
+   */
+  private static void load(final PersistentHitter ht, final Triangles ts, final Path file,
+      final String key, final String hash) throws IOException {
+    try (final FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long size = fc.size();
+      if(size > Integer.MAX_VALUE) throw new IOException("file too large");
+      final ByteBuffer buf = fc.map(MapMode.READ_ONLY, 0, size);
+      if(buf.getInt() != MAGIC) throw new IOException("no cache file");
+      if(buf.getInt() != VERSION) throw new IOException("outdated version");
+      if(!key.equals(readString(buf))) throw new IOException("different key");
+      if(!hash.equals(readString(buf))) throw new IOException("different triangles");
+      ht.ts = ts;
+      ht.load(buf);
+    } catch(final RuntimeException e) {
+      // buffer underflows or illegal positions
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Reads a string.
+   *
+   * @param buf The buffer.
+   * @return The string.
+   */
+  private static String readString(final ByteBuffer buf) {
+    final byte[] bytes = new byte[buf.getInt()];
+    buf.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Stores a data structure. The file is written to a temporary file first and
+   * then moved in place so other processes never see a partial file.
+   *
+   * @param ht The data structure.
+   * @param file The file.
+   * @param key The persistence key.
+   * @param hash The content hash of the triangles.
+   * @throws IOException I/O Exception.
+   */
+  private void save(final PersistentHitter ht, final Path file, final String key,
+      final String hash) throws IOException {
+    Files.createDirectories(dir);
+    final Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+    try {
+      try (final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, key);
+        writeString(out, hash);
+        ht.save(out);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Writes a string.
+   *
+   * @param out The output.
+   * @param str The string.
+   * @throws IOException I/O Exception.
+   */
+  private static void writeString(final DataOutputStream out, final String str)
+      throws IOException {
+    final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Writes an array with its length.
+   *
+   * @param out The output.
+   * @param arr The array.
+   * @throws IOException I/O Exception.
+   */
+  static void writeInts(final DataOutput out, final int[] arr) throws IOException {
+    out.writeInt(arr.length);
+    for(final int v : arr) {
+      out.writeInt(v);
+    }
+  }
+
+  /**
+   * Reads an array written by {@link #writeInts(DataOutput, int[])}.
+   *
+   * @param buf The buffer.
+   * @return The array.
+   */
+  static int[] readInts(final ByteBuffer buf) {
+    final int[] arr = new int[buf.getInt()];
+    buf.asIntBuffer().get(arr);
+    buf.position(buf.position() + arr.length * 4);
+    return arr;
+  }
+
+  /**
+   * Writes an array with its length.
+   *
+   * @param out The output.
+   * @param arr The array.
+   * @throws IOException I/O Exception.
+   */
+  static void writeDoubles(final DataOutput out, final double[] arr) throws IOException {
+    out.writeInt(arr.length);
+    for(final double v : arr) {
+      out.writeDouble(v);
+    }
+  }
+
+  /**
+   * Reads an array written by {@link #writeDoubles(DataOutput, double[])}.
+   *
+   * @param buf The buffer.
+   * @return The array.
+   */
+  static double[] readDoubles(final ByteBuffer buf) {
+    final double[] arr = new double[buf.getInt()];
+    buf.asDoubleBuffer().get(arr);
+    buf.position(buf.position() + arr.length * 8);
+    return arr;
+  }
+
+}
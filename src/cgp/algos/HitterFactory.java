@@ -0,0 +1,17 @@
+package cgp.algos;
+
+/**
+ * Creates empty data structures of the same type and parameters.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public interface HitterFactory {
+
+  /**
+   * Creates a new data structure. The data structure is not filled yet.
+   *
+   * @return The data structure.
+   */
+  Hitter create();
+
+}
@@ -0,0 +1,330 @@
+package cgp.algos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import cgp.data.AffineTransform4;
+import cgp.data.BoundingBox;
+import cgp.data.Ray;
+import cgp.data.Triangle;
+import cgp.data.Vec4;
+import cgp.tracer.Hit;
+import cgp.tracer.TestCounter;
+
+/**
+ * A two level data structure over object instances. Every instance consists of
+ * a filled data structure in object space and a transformation into world
+ * space. Instances can share the same data structure so repeated objects are
+ * stored and built only once. The top level is a bounding volume hierarchy
+ * over the world space bounding boxes of the instances. Rays are transformed
+ * into the object space of an instance instead of transforming the triangles.
+ * The triangles passed by {@link #fromTriangles(Triangles)} are ignored.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class InstanceTree extends Hitter {
+
+  /**
+   * An instance of an object.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class Instance {
+
+    /** The data structure in object space. */
+    private final Hitter object;
+    /** The transformation from object space to world space. */
+    private final AffineTransform4 toWorld;
+    /** The transformation from world space to object space. */
+    private final AffineTransform4 toObject;
+    /** The bounding box in world space. */
+    private final BoundingBox box;
+    /** The index of the first triangle of this instance. */
+    private final int offset;
+
+    /**
+     * Creates an instance.
+     *
+     * @param object The filled data structure.
+     * @param toWorld The transformation from object space to world space.
+     * @param offset The index of the first triangle of this instance.
+     */
+    public Instance(final Hitter object, final AffineTransform4 toWorld, final int offset) {
+      this.object = Objects.requireNonNull(object);
+      this.toWorld = Objects.requireNonNull(toWorld);
+      this.offset = offset;
+      toObject = toWorld.inverse();
+      box = worldBox(object.ts, toWorld);
+    }
+
+  } // Instance
+
+  /**
+   * A node of the top level hierarchy.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private final class Node {
+
+    /** The bounding box. */
+    private final BoundingBox box;
+    /** The instance if this node is a leaf or <code>null</code>. */
+    private final Instance instance;
+    /** The left child or <code>null</code> if leaf. */
+    private final Node left;
+    /** The right child or <code>null</code> if leaf. */
+    private final Node right;
+
+    /**
+     * Creates a leaf.
+     *
+     * @param instance The instance.
+     */
+    public Node(final Instance instance) {
+      this.instance = Objects.requireNonNull(instance);
+      box = instance.box;
+      left = null;
+      right = null;
+    }
+
+    /**
+     * Creates an inner node.
+     *
+     * @param left The left child.
+     * @param right The right child.
+     */
+    public Node(final Node left, final Node right) {
+      this.left = Objects.requireNonNull(left);
+      this.right = Objects.requireNonNull(right);
+      box = new BoundingBox().add(left.box).add(right.box);
+      instance = null;
+    }
+
+    /**
+     * Tests for the closest hit in this subtree.
+     *
+     * @param r The ray in world space.
+     * @param c The test counter.
+     * @param closest The closest hit so far. The result is stored here.
+     */
+    public void getHit(final Ray r, final TestCounter c, final Closest closest) {
+      if(instance != null) {
+        hitInstance(instance, r, c, closest);
+        return;
+      }
+      final double dl = left.box.intersects(r, c);
+      final double dr = right.box.intersects(r, c);
+      final boolean leftFirst = dr < 0 || (dl >= 0 && dl <= dr);
+      final Node near = leftFirst ? left : right;
+      final Node far = leftFirst ? right : left;
+      final double dn = leftFirst ? dl : dr;
+      final double df = leftFirst ? dr : dl;
+      if(dn >= 0 && dn < closest.dist) {
+        near.getHit(r, c, closest);
+      }
+      if(df >= 0 && df < closest.dist) {
+        far.getHit(r, c, closest);
+      }
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The depth of the subtree.
+     */
+    public int depth() {
+      if(instance != null) return 0;
+      return 1 + Math.max(left.depth(), right.depth());
+    }
+
+  } // Node
+
+  /**
+   * The closest hit of a ray.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class Closest {
+
+    /** The distance of the closest hit in world space. */
+    private double dist = Double.POSITIVE_INFINITY;
+    /** The closest hit in object space or <code>null</code>. */
+    private Hit hit;
+    /** The instance of the closest hit or <code>null</code>. */
+    private Instance instance;
+
+  } // Closest
+
+  /** The instances. */
+  private final List<Instance> instances = new ArrayList<>();
+  /** The root node or <code>null</code> if there are no instances. */
+  private Node root;
+
+  /**
+   * Adds an instance. The tree needs to be built again afterwards.
+   *
+   * @param object The data structure in object space. The data structure must
+   *          already be filled.
+   * @param toWorld The transformation from object space to world space.
+   */
+  public void addInstance(final Hitter object, final AffineTransform4 toWorld) {
+    if(object.ts == null) throw new IllegalArgumentException("object is not filled");
+    // empty objects cannot be hit
+    if(object.ts.size() == 0) return;
+    final int offset;
+    if(instances.isEmpty()) {
+      offset = 0;
+    } else {
+      final Instance last = instances.get(instances.size() - 1);
+      offset = last.offset + last.object.ts.size();
+    }
+    instances.add(new Instance(object, toWorld, offset));
+  }
+
+  /** Builds the top level hierarchy over the added instances. */
+  public void fromInstances() {
+    build();
+  }
+
+  @Override
+  protected void build() {
+    root = instances.isEmpty() ? null : buildNode(
+        instances.toArray(new Instance[instances.size()]), 0, instances.size());
+    System.out.println("Instances: " + instances.size());
+    System.out.println("Depth of instance tree: " + (root == null ? 0 : root.depth()));
+  }
+
+  /**
+   * Builds the subtree for a range of instances. The instances are split at
+   * the median of their centers on the longest axis.
+   *
+   * @param arr The instances. The range gets reordered.
+   * @param from The lower inclusive index.
+   * @param to The upper exclusive index.
+   * @return The node.
+   */
+  private Node buildNode(final Instance[] arr, final int from, final int to) {
+    if(to - from == 1) return new Node(arr[from]);
+    BoundingBox centers = new BoundingBox();
+    for(int i = from; i < to; ++i) {
+      final Vec4 center = arr[i].box.getCenter();
+      centers = centers.add(new BoundingBox(center, center));
+    }
+    final double w = centers.getWidth();
+    final double h = centers.getHeight();
+    final double d = centers.getDepth();
+    final int axis = w >= h && w >= d ? 0 : h >= d ? 1 : 2;
+    // the instance count is small so a sort is fast enough
+    for(int i = from + 1; i < to; ++i) {
+      final Instance cur = arr[i];
+      final double v = cur.box.getCenter().get(axis);
+      int j = i - 1;
+      while(j >= from && arr[j].box.getCenter().get(axis) > v) {
+        arr[j + 1] = arr[j];
+        --j;
+      }
+      arr[j + 1] = cur;
+    }
+    final int mid = (from + to) >>> 1;
+    return new Node(buildNode(arr, from, mid), buildNode(arr, mid, to));
+  }
+
+  /**
+   * Computes the world space bounding box of a filled data structure.
+   *
+   * @param ts The triangles in object space.
+   * @param toWorld The transformation from object space to world space.
+   * @return The bounding box of the transformed corners of the object space
+   *         bounding box.
+   */
+  private static BoundingBox worldBox(final Triangles ts, final AffineTransform4 toWorld) {
+    final double[] min = {
+        Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY
+    };
+    final double[] max = {
+        Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY
+    };
+    for(int v = 0; v < ts.vertexCount(); ++v) {
+      for(int axis = 0; axis < 3; ++axis) {
+        final double c = ts.getCoord(v, axis);
+        min[axis] = Math.min(min[axis], c);
+        max[axis] = Math.max(max[axis], c);
+      }
+    }
+    BoundingBox box = new BoundingBox();
+    if(ts.vertexCount() == 0) return box;
+    for(int corner = 0; corner < 8; ++corner) {
+      final Vec4 p = toWorld.transform(new Vec4(
+          (corner & 1) == 0 ? min[0] : max[0],
+          (corner & 2) == 0 ? min[1] : max[1],
+          (corner & 4) == 0 ? min[2] : max[2], true));
+      box = box.add(new BoundingBox(p, p));
+    }
+    return box;
+  }
+
+  /**
+   * Tests an instance for a closer hit. The ray is transformed into object
+   * space. Since the direction of the transformed ray gets normalized,
+   * distances in object space are distances in world space multiplied by the
+   * length of the transformed direction.
+   *
+   * @param inst The instance.
+   * @param r The ray in world space.
+   * @param c The test counter.
+   * @param closest The closest hit so far. The result is stored here.
+   */
+  private static void hitInstance(final Instance inst, final Ray r, final TestCounter c,
+      final Closest closest) {
+    final Vec4 dir = inst.toObject.transform(r.getDirection());
+    final double scale = Math.sqrt(dir.lengthSq());
+    final double far = Math.min(r.getFar(), closest.dist);
+    final Ray objRay = new Ray(inst.toObject.transform(r.getOrigin()), dir,
+        r.getNear() * scale, far * scale);
+    final Hit hit = inst.object.getHit(objRay, c);
+    if(!hit.hasHit()) return;
+    final double dist = hit.getDistance() / scale;
+    if(r.isValidDistance(dist) && dist < closest.dist) {
+      closest.dist = dist;
+      closest.hit = hit;
+      closest.instance = inst;
+    }
+  }
+
+  @Override
+  public Hit getHit(final Ray r, final TestCounter c) {
+    if(root == null || root.box.intersects(r, c) < 0) return new Hit(r, c);
+    final Closest closest = new Closest();
+    root.getHit(r, c, closest);
+    if(closest.hit == null) return new Hit(r, c);
+    final Instance inst = closest.instance;
+    return new Hit(r, inst.toWorld.transform(closest.hit.getTriangle()),
+        inst.offset + closest.hit.getIndex(), closest.dist, c);
+  }
+
+  /**
+   * Getter.
+   *
+   * @param index The index of the triangle. The triangles of the instances
+   *          are numbered consecutively in the order the instances were added.
+   * @return The triangle in world space.
+   */
+  @Override
+  public Triangle getTriangle(final int index) {
+    int lo = 0;
+    int hi = instances.size() - 1;
+    while(lo < hi) {
+      final int mid = (lo + hi + 1) >>> 1;
+      if(instances.get(mid).offset <= index) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    if(index < 0 || instances.isEmpty()) throw new IndexOutOfBoundsException("" + index);
+    final Instance inst = instances.get(lo);
+    return inst.toWorld.transform(inst.object.getTriangle(index - inst.offset));
+  }
+
+}
@@ -1,16 +1,15 @@
 package cgp.algos;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Objects;
-import java.util.Set;
-
-import cgp.data.BoundingBox;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import cgp.Main;
 import cgp.data.Ray;
-import cgp.data.Triangle;
 import cgp.data.Vec4;
 import cgp.tracer.Hit;
 import cgp.tracer.TestCounter;
@@ -20,7 +19,7 @@ import cgp.tracer.TestCounter;
  *
  * @author Timothy Chu
  */
-public class KdTree extends Hitter {
+public class KdTree extends PersistentHitter {
 
   /**
    * Internal node for the kd-tree
@@ -44,224 +43,245 @@ public class KdTree extends Hitter {
      * Split value along axis
      */
     private double splitValue;
-    /**
-     * Bounding box
-     */
-    private final BoundingBox box;
     /**
      * triangles contained within node. Value is null if node is not a leaf
      */
-    private List<Triangle> tri;
-    /**
-     * Triangles that are stored in both of the current node's children. Used
-     * for hit checking.
-     */
-    private final Set<Triangle> crossingTriangles;
+    private int[] tri;
 
     /**
      * Constructor for a new KdNode
      *
-     * @param box The bounding box for this node
-     * @param splitType The axis that the bounding box is being split on
+     * @param splitType The axis that the node is being split on
      */
-    public KdNode(final BoundingBox box, final int splitType) {
-      this.box = Objects.requireNonNull(box);
+    public KdNode(final int splitType) {
       children = new KdNode[2];
       this.splitType = splitType;
       tri = null;
-      crossingTriangles = new HashSet<>();
     }
 
     /**
-     * @param triangles The triangles present in the KdNode
+     * @param triangles The indices of the triangles present in the KdNode
      * @param depth Depth of the node
      */
 
-    public void buildKdTree(final List<Triangle> triangles, final int depth) {
-      maximumDepth = Math.max(depth, maximumDepth);
-      // Sort the list appropriately
+    public void buildKdTree(final int[] triangles, final int depth) {
       if(depth >= depthThreshold) {
         tri = triangles;
         return;
       }
-      if(triangles.size() <= triangleThreshold) {
+      if(triangles.length <= triangleThreshold) {
         tri = triangles;
         return;
       }
-      if(triangles.size() <= 1) {
+      if(triangles.length <= 1) {
         tri = triangles;
         return;
       }
-      final List<Triangle> ts = new ArrayList<>(triangles);
-      final int splitType = this.splitType;
-      Collections.sort(ts, new Comparator<Triangle>() {
-
-        // Triangles need to be sorted
-        @Override
-        public int compare(final Triangle t1, final Triangle t2) {
-          final Vec4 min1 = t1.getMin();
-          final Vec4 min2 = t2.getMin();
-          return Double.compare(min1.get(splitType), min2.get(splitType));
-        }
-
-      });
-      splitIndex = (ts.size() - 1) / 2;
-      switch(splitType) {
-        case 0:
-          splitValue = Math.min(ts.get(splitIndex).getA().getX(), Math.min(
-              ts.get(splitIndex).getB().getX(),
-              ts.get(splitIndex).getC().getX()));
-          break;
-        case 1:
-          splitValue = Math.min(ts.get(splitIndex).getA().getY(), Math.min(
-              ts.get(splitIndex).getB().getY(),
-              ts.get(splitIndex).getC().getY()));
-          break;
-        case 2:
-          splitValue = Math.min(ts.get(splitIndex).getA().getZ(), Math.min(
-              ts.get(splitIndex).getB().getZ(),
-              ts.get(splitIndex).getC().getZ()));
-          break;
-      }
-      final List<Triangle> leftBottomNear = new ArrayList<>(
-          ts.subList(0, splitIndex));
-      final List<Triangle> rightTopFar = new ArrayList<>(
-          ts.subList(splitIndex, ts.size()));
+      final int[] ts = triangles.clone();
+      splitIndex = (ts.length - 1) / 2;
+      // Only the triangle at the split index needs to be at its sorted
+      // position
+      select(ts, splitIndex, splitType);
+      splitValue = getMin(ts[splitIndex], splitType);
+      final int[] leftBottomNear = Arrays.copyOfRange(ts, 0, splitIndex);
       // Add any triangles that intersect the split line to both lists
-      for(final Triangle t : leftBottomNear) {
-        switch(splitType) {
-          case 0:
-            if(Math.max(t.getA().getX(), Math.max(t.getB().getX(),
-                t.getC().getX())) > splitValue) {
-              rightTopFar.add(t);
-              crossingTriangles.add(t);
-            }
-            break;
-          case 1:
-            if(Math.max(t.getA().getY(), Math.max(t.getB().getY(),
-                t.getC().getY())) > splitValue) {
-              rightTopFar.add(t);
-              crossingTriangles.add(t);
-            }
-            break;
-          case 2:
-            if(Math.max(t.getA().getZ(), Math.max(t.getB().getZ(),
-                t.getC().getZ())) > splitValue) {
-              rightTopFar.add(t);
-              crossingTriangles.add(t);
-            }
-            break;
+      final int[] crossing = new int[leftBottomNear.length];
+      int crossingCount = 0;
+      for(final int t : leftBottomNear) {
+        if(getMax(t, splitType) > splitValue) {
+          crossing[crossingCount++] = t;
         }
       }
-      final Vec4 min = box.get(true, true, true);
-      final Vec4 max = box.get(false, false, false);
-      Vec4 max1 = null;
-      Vec4 min2 = null;
-      switch(splitType) {
-        case 0:
-          max1 = new Vec4(splitValue, max.getY(), max.getZ(), max.isPoint());
-          min2 = new Vec4(splitValue, min.getY(), min.getZ(), min.isPoint());
-          break;
-        case 1:
-          max1 = new Vec4(max.getX(), splitValue, max.getZ(), max.isPoint());
-          min2 = new Vec4(min.getX(), splitValue, min.getZ(), min.isPoint());
-          break;
-        case 2:
-          max1 = new Vec4(max.getX(), max.getY(), splitValue, max.isPoint());
-          min2 = new Vec4(min.getX(), min.getY(), splitValue, min.isPoint());
-          break;
-      }
-      final BoundingBox b1 = new BoundingBox(min, max1);
-      children[0] = leftBottomNear.isEmpty() ? null : new KdNode(b1, (splitType + 1) % 3);
-      final BoundingBox b2 = new BoundingBox(min2, max);
-      children[1] = rightTopFar.isEmpty() ? null : new KdNode(b2, (splitType + 1) % 3);
-      if(leftBottomNear.size() == ts.size()
-          || rightTopFar.size() == ts.size()) {
+      final int[] rightTopFar = new int[ts.length - splitIndex + crossingCount];
+      System.arraycopy(ts, splitIndex, rightTopFar, 0, ts.length - splitIndex);
+      System.arraycopy(crossing, 0, rightTopFar, ts.length - splitIndex, crossingCount);
+      children[0] = leftBottomNear.length == 0 ? null : new KdNode((splitType + 1) % 3);
+      children[1] = rightTopFar.length == 0 ? null : new KdNode((splitType + 1) % 3);
+      if(leftBottomNear.length == ts.length
+          || rightTopFar.length == ts.length) {
         tri = ts;
         children[0] = null;
         children[1] = null;
         return;
       }
+      if(children[0] != null && children[1] != null
+          && ts.length >= PARALLEL_THRESHOLD) {
+        ForkJoinTask.invokeAll(new BuildAction(children[0], leftBottomNear, depth + 1),
+            new BuildAction(children[1], rightTopFar, depth + 1));
+        return;
+      }
       if(children[0] != null) {
         children[0].buildKdTree(leftBottomNear, depth + 1);
-        ++totalBoundingBoxes;
       }
       if(children[1] != null) {
         children[1].buildKdTree(rightTopFar, depth + 1);
-        ++totalBoundingBoxes;
       }
     }
 
     /**
-     * Tests for a hit.
+     * Writes the subtree into the flat arrays.
      *
-     * @param r The ray.
-     * @param c The test counter.
-     * @return The hit.
+     * @param index The index of this node in the flat arrays.
+     * @param pos The next free node index and the next free position in the
+     *          triangle array.
      */
-    public Hit getHit(final Ray r, final TestCounter c) {
-      if(box.intersects(r, c) < 0) return new Hit(r, c);
-      if(tri != null) return getLevelHit(r, c);
-      int firstCheck = 0;
-      switch(splitType) {
-        case 0:
-          firstCheck = r.getDirection().getX() > 0 ? 0 : 1;
-          break;
-        case 1:
-          firstCheck = r.getDirection().getY() > 0 ? 0 : 1;
-          break;
-        case 2:
-          firstCheck = r.getDirection().getZ() > 0 ? 0 : 1;
-          break;
+    public void flatten(final int index, final int[] pos) {
+      if(tri != null) {
+        axes[index] = LEAF;
+        firsts[index] = pos[1];
+        counts[index] = tri.length;
+        System.arraycopy(tri, 0, nodeTriangles, pos[1], tri.length);
+        pos[1] += tri.length;
+        return;
       }
-      for(int i = 0; i < 2; i++) {
-        final int index = (firstCheck + i) % 2;
-        if(children[index] == null) {
-          continue;
-        }
-        final Hit hit = children[index].getHit(r, c);
-        if(hit.hasHit()) {
-          if(crossingTriangles.contains(hit.getTriangle())) {
-            final Hit hit2 = children[(index + 1) % 2].getHit(r, c);
-            if(hit2.hasHit()) return hit.getDistance() < hit2.getDistance() ? hit : hit2;
-          }
-          return hit;
+      axes[index] = splitType;
+      splits[index] = splitValue;
+      final int child = pos[0];
+      pos[0] += 2;
+      nodeChildren[index] = child;
+      for(int i = 0; i < 2; ++i) {
+        if(children[i] == null) {
+          axes[child + i] = EMPTY;
+        } else {
+          children[i].flatten(child + i, pos);
         }
       }
-      return new Hit(r, c);
     }
 
     /**
-     * Checks for a hit in a leaf node.
+     * Counts the nodes and the triangle references in the subtree. Also
+     * computes the number of bounding boxes and the maximum depth.
      *
-     * @param r The ray.
-     * @param c The test counter.
-     * @return The hit.
+     * @param sizes The number of nodes and the number of triangle references.
+     *          The values of the subtree get added.
+     * @param depth The depth of this node.
      */
-    private Hit getLevelHit(final Ray r, final TestCounter c) {
-      double minDist = Double.POSITIVE_INFINITY;
-      Triangle curBest = null;
-      for(final Triangle t : tri) {
-        final double dist = t.hit(r, c);
-        if(r.isValidDistance(dist) && dist < minDist) {
-          minDist = dist;
-          curBest = t;
+    public void count(final int[] sizes, final int depth) {
+      maximumDepth = Math.max(depth, maximumDepth);
+      ++totalBoundingBoxes;
+      if(tri != null) {
+        sizes[1] += tri.length;
+        return;
+      }
+      sizes[0] += 2;
+      for(final KdNode c : children) {
+        if(c != null) {
+          c.count(sizes, depth + 1);
         }
       }
-      return new Hit(r, curBest, minDist, c);
     }
 
   } // Node
 
   /**
-   * The bounding box that encompasses all of the triangles
+   * Builds a subtree in the fork join pool.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private final class BuildAction extends RecursiveAction {
+
+    /** The root of the subtree. */
+    private final KdNode node;
+    /** The triangles of the subtree. */
+    private final int[] triangles;
+    /** The depth of the subtree. */
+    private final int depth;
+
+    /**
+     * Creates a build action.
+     *
+     * @param node The root of the subtree.
+     * @param triangles The triangles of the subtree.
+     * @param depth The depth of the subtree.
+     */
+    public BuildAction(final KdNode node, final int[] triangles, final int depth) {
+      this.node = node;
+      this.triangles = triangles;
+      this.depth = depth;
+    }
+
+    @Override
+    protected void compute() {
+      node.buildKdTree(triangles, depth);
+    }
+
+  } // BuildAction
+
+  /**
+   * The number of triangles of a node above which both subtrees are built in
+   * parallel.
+   */
+  private static final int PARALLEL_THRESHOLD = 4096;
+
+  /**
+   * The minimal coordinates of the bounding box that encompasses all of the
+   * triangles followed by its maximal coordinates.
+   */
+  private final double[] rootBounds = new double[6];
+
+  /**
+   * The traversal state of each thread.
+   */
+  private final ThreadLocal<Traversal> traversal = new ThreadLocal<Traversal>() {
+
+    @Override
+    protected Traversal initialValue() {
+      return new Traversal();
+    }
+
+  };
+
+  /**
+   * Marks a leaf in {@link #axes}.
+   */
+  private static final int LEAF = 3;
+
+  /**
+   * Marks a missing child in {@link #axes}.
    */
-  private BoundingBox bbox;
+  private static final int EMPTY = -1;
 
   /**
-   * The root node of the kd-tree
+   * The split axis of each node, {@link #LEAF}, or {@link #EMPTY}. The root
+   * node has the index 0.
    */
-  private KdNode root;
+  private int[] axes;
+
+  /**
+   * The split value of each inner node.
+   */
+  private double[] splits;
+
+  /**
+   * The index of the first child of each inner node. The second child directly
+   * follows the first child.
+   */
+  private int[] nodeChildren;
+
+  /**
+   * The position of the first triangle of each leaf in {@link #nodeTriangles}.
+   */
+  private int[] firsts;
+
+  /**
+   * The number of triangles of each leaf in {@link #nodeTriangles}.
+   */
+  private int[] counts;
+
+  /**
+   * The triangle indices of all leafs.
+   */
+  private int[] nodeTriangles;
+
+  /**
+   * The minimal coordinates of the triangles. Only used while building.
+   */
+  private double[] triMin;
+
+  /**
+   * The maximal coordinates of the triangles. Only used while building.
+   */
+  private double[] triMax;
 
   /**
    * Threshold for the depth of the KdTree
@@ -289,7 +309,6 @@ public class KdTree extends Hitter {
    * @param triangleThreshold Threshold for KdNode size
    */
   public KdTree(final int depthThreshold, final int triangleThreshold) {
-    root = null;
     this.depthThreshold = depthThreshold;
     this.triangleThreshold = triangleThreshold;
   }
@@ -298,22 +317,341 @@ public class KdTree extends Hitter {
   protected void build() {
     maximumDepth = 0;
     totalBoundingBoxes = 0;
-    root = null;
-    bbox = new BoundingBox();
-    for(final Triangle t : ts.getList()) {
-      bbox = bbox.add(new BoundingBox(t));
+    final int size = ts.size();
+    final int[] all = new int[size];
+    triMin = new double[size * 3];
+    triMax = new double[size * 3];
+    for(int axis = 0; axis < 3; ++axis) {
+      rootBounds[axis] = Double.POSITIVE_INFINITY;
+      rootBounds[axis + 3] = Double.NEGATIVE_INFINITY;
+    }
+    for(int i = 0; i < size; ++i) {
+      all[i] = i;
+      for(int axis = 0; axis < 3; ++axis) {
+        final double min = ts.getMin(i, axis);
+        final double max = ts.getMax(i, axis);
+        triMin[i * 3 + axis] = min;
+        triMax[i * 3 + axis] = max;
+        rootBounds[axis] = Math.min(rootBounds[axis], min);
+        rootBounds[axis + 3] = Math.max(rootBounds[axis + 3], max);
+      }
     }
     final int splitType = 0;
-    root = new KdNode(bbox, splitType);
-    ++totalBoundingBoxes;
-    root.buildKdTree(ts.getList(), 0);
+    final KdNode root = new KdNode(splitType);
+    final ForkJoinPool fjp = Main.SINGLE_THREAD ? new ForkJoinPool(1) : new ForkJoinPool();
+    try {
+      fjp.invoke(new BuildAction(root, all, 0));
+    } finally {
+      fjp.shutdown();
+    }
+    triMin = null;
+    triMax = null;
+    final int[] sizes = { 1, 0};
+    root.count(sizes, 0);
+    axes = new int[sizes[0]];
+    splits = new double[sizes[0]];
+    nodeChildren = new int[sizes[0]];
+    firsts = new int[sizes[0]];
+    counts = new int[sizes[0]];
+    nodeTriangles = new int[sizes[1]];
+    root.flatten(0, new int[] { 1, 0});
     System.out.println("Depth of kd-tree: " + maximumDepth);
     System.out.println("Bounding boxes in kd-tree: " + totalBoundingBoxes);
   }
 
+  @Override
+  public String getPersistenceKey() {
+    return "KdTree-" + depthThreshold + "-" + triangleThreshold;
+  }
+
+  @Override
+  protected void save(final DataOutput out) throws IOException {
+    out.writeInt(maximumDepth);
+    out.writeInt(totalBoundingBoxes);
+    HitterCache.writeDoubles(out, rootBounds);
+    HitterCache.writeInts(out, axes);
+    HitterCache.writeDoubles(out, splits);
+    HitterCache.writeInts(out, nodeChildren);
+    HitterCache.writeInts(out, firsts);
+    HitterCache.writeInts(out, counts);
+    HitterCache.writeInts(out, nodeTriangles);
+  }
+
+  @Override
+  protected void load(final ByteBuffer in) throws IOException {
+    maximumDepth = in.getInt();
+    totalBoundingBoxes = in.getInt();
+    final double[] bounds = HitterCache.readDoubles(in);
+    if(bounds.length != rootBounds.length) throw new IOException("" + bounds.length);
+    System.arraycopy(bounds, 0, rootBounds, 0, rootBounds.length);
+    axes = HitterCache.readInts(in);
+    splits = HitterCache.readDoubles(in);
+    nodeChildren = HitterCache.readInts(in);
+    firsts = HitterCache.readInts(in);
+    counts = HitterCache.readInts(in);
+    nodeTriangles = HitterCache.readInts(in);
+    if(splits.length != axes.length || nodeChildren.length != axes.length
+        || firsts.length != axes.length || counts.length != axes.length) throw new IOException(
+        "inconsistent number of nodes");
+    checkNodes();
+  }
+
+  /**
+   * Checks that all indices of the loaded nodes are in range so a corrupt file
+   * is detected while loading instead of during the traversal. Children are
+   * always stored after their parent so the tree cannot contain cycles.
+   *
+   * @throws IOException If a node is inconsistent.
+   */
+  private void checkNodes() throws IOException {
+    if(axes.length == 0 || maximumDepth < 0) throw new IOException("empty tree");
+    final int size = ts.size();
+    for(final int t : nodeTriangles) {
+      if(t < 0 || t >= size) throw new IOException("invalid triangle " + t);
+    }
+    final int[] depths = new int[axes.length];
+    for(int node = 0; node < axes.length; ++node) {
+      final int axis = axes[node];
+      if(axis == EMPTY) {
+        continue;
+      }
+      if(depths[node] > maximumDepth) throw new IOException(
+          "node " + node + " deeper than " + maximumDepth);
+      if(axis == LEAF) {
+        final int first = firsts[node];
+        final int count = counts[node];
+        if(first < 0 || count < 0 || (long) first + count > nodeTriangles.length) throw new IOException(
+            "invalid triangle range of node " + node);
+        continue;
+      }
+      if(axis < 0 || axis > 2) throw new IOException("invalid axis of node " + node);
+      final int child = nodeChildren[node];
+      if(child <= node || child >= axes.length - 1) throw new IOException(
+          "invalid children of node " + node);
+      depths[child] = depths[node] + 1;
+      depths[child + 1] = depths[node] + 1;
+    }
+  }
+
+  /**
+   * Rearranges the triangles so that the triangle at position <code>k</code>
+   * is the one that would be there if the triangles were sorted by their
+   * minimal coordinate on the given axis. Triangles before it are not greater
+   * and triangles after it are not smaller. Ties are broken by the triangle
+   * index so the result only depends on the set of triangles. This takes
+   * linear time on average.
+   *
+   * @param ts The triangles.
+   * @param k The position.
+   * @param axis The axis.
+   */
+  private void select(final int[] ts, final int k, final int axis) {
+    int lo = 0;
+    int hi = ts.length - 1;
+    while(lo < hi) {
+      // median of three
+      final int mid = (lo + hi) >>> 1;
+      if(less(ts[mid], ts[lo], axis)) {
+        swap(ts, mid, lo);
+      }
+      if(less(ts[hi], ts[lo], axis)) {
+        swap(ts, hi, lo);
+      }
+      if(less(ts[hi], ts[mid], axis)) {
+        swap(ts, hi, mid);
+      }
+      final int pivot = ts[mid];
+      int i = lo;
+      int j = hi;
+      while(i <= j) {
+        while(less(ts[i], pivot, axis)) {
+          ++i;
+        }
+        while(less(pivot, ts[j], axis)) {
+          --j;
+        }
+        if(i <= j) {
+          swap(ts, i++, j--);
+        }
+      }
+      if(k <= j) {
+        hi = j;
+      } else if(k >= i) {
+        lo = i;
+      } else return;
+    }
+  }
+
+  /**
+   * Compares two triangles by their minimal coordinate and their index.
+   *
+   * @param a The first triangle.
+   * @param b The second triangle.
+   * @param axis The axis.
+   * @return Whether the first triangle comes before the second.
+   */
+  private boolean less(final int a, final int b, final int axis) {
+    final int cmp = Double.compare(getMin(a, axis), getMin(b, axis));
+    return cmp < 0 || (cmp == 0 && a < b);
+  }
+
+  /**
+   * Swaps two entries of an array.
+   *
+   * @param arr The array.
+   * @param a The first position.
+   * @param b The second position.
+   */
+  private static void swap(final int[] arr, final int a, final int b) {
+    final int tmp = arr[a];
+    arr[a] = arr[b];
+    arr[b] = tmp;
+  }
+
+  /**
+   * Getter.
+   *
+   * @param t The triangle index.
+   * @param axis The axis.
+   * @return The minimal coordinate of the triangle on the given axis.
+   */
+  double getMin(final int t, final int axis) {
+    return triMin[t * 3 + axis];
+  }
+
+  /**
+   * Getter.
+   *
+   * @param t The triangle index.
+   * @param axis The axis.
+   * @return The maximal coordinate of the triangle on the given axis.
+   */
+  double getMax(final int t, final int axis) {
+    return triMax[t * 3 + axis];
+  }
+
+  /**
+   * The state of a traversal. Every thread has its own state.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class Traversal {
+
+    /** The mailbox of already tested triangles. */
+    private final Mailbox mailbox = new Mailbox(0);
+    /** The nodes that still need to be visited. */
+    private int[] nodes = new int[0];
+    /** The entry distances of the nodes that still need to be visited. */
+    private double[] near = new double[0];
+    /** The exit distances of the nodes that still need to be visited. */
+    private double[] far = new double[0];
+
+    /**
+     * Prepares the state for a new ray.
+     *
+     * @param triangles The number of triangles.
+     * @param depth The maximum depth of the tree.
+     */
+    public void nextRay(final int triangles, final int depth) {
+      mailbox.nextRay(triangles);
+      if(nodes.length <= depth) {
+        nodes = new int[depth + 1];
+        near = new double[depth + 1];
+        far = new double[depth + 1];
+      }
+    }
+
+  } // Traversal
+
   @Override
   public Hit getHit(final Ray r, final TestCounter c) {
-    return root.getHit(r, c);
+    c.addBBoxCheck();
+    final Vec4 o = r.getOrigin();
+    final Vec4 d = r.getDirection();
+    double tmin = r.getNear();
+    double tmax = r.getFar();
+    // clip the ray with the bounding box of the scene
+    for(int axis = 0; axis < 3; ++axis) {
+      final double oa = o.get(axis);
+      final double da = d.get(axis);
+      final double min = rootBounds[axis];
+      final double max = rootBounds[axis + 3];
+      if(da == 0) {
+        if(oa < min || oa > max) return new Hit(r, c);
+        continue;
+      }
+      final double t0 = (min - oa) / da;
+      final double t1 = (max - oa) / da;
+      tmin = Math.max(tmin, Math.min(t0, t1));
+      tmax = Math.min(tmax, Math.max(t0, t1));
+    }
+    if(!(tmin <= tmax)) return new Hit(r, c);
+    final Traversal tr = traversal.get();
+    tr.nextRay(ts.size(), maximumDepth);
+    final Mailbox mailbox = tr.mailbox;
+    int stack = 0;
+    int node = 0;
+    double minDist = Double.POSITIVE_INFINITY;
+    int curBest = -1;
+    for(;;) {
+      // descend front to back until a leaf is reached
+      int axis = axes[node];
+      while(axis != LEAF && axis != EMPTY) {
+        final double oa = o.get(axis);
+        final double da = d.get(axis);
+        final double split = splits[node];
+        final int child = nodeChildren[node];
+        final boolean belowFirst = oa < split || (oa == split && da <= 0);
+        final int near = belowFirst ? child : child + 1;
+        final int far = belowFirst ? child + 1 : child;
+        // for da == 0 the result is +/-Inf or NaN
+        final double tSplit = (split - oa) / da;
+        if(!(tSplit > 0) || tSplit > tmax) {
+          node = near;
+        } else if(tSplit < tmin) {
+          node = far;
+        } else {
+          tr.nodes[stack] = far;
+          tr.near[stack] = tSplit;
+          tr.far[stack] = tmax;
+          ++stack;
+          node = near;
+          tmax = tSplit;
+        }
+        axis = axes[node];
+      }
+      if(axis == LEAF) {
+        final int to = firsts[node] + counts[node];
+        for(int i = firsts[node]; i < to; ++i) {
+          final int t = nodeTriangles[i];
+          if(!mailbox.visit(t)) {
+            continue;
+          }
+          final double dist = ts.hit(t, o.getX(), o.getY(), o.getZ(),
+              d.getX(), d.getY(), d.getZ(), c);
+          if(r.isValidDistance(dist) && dist < minDist) {
+            minDist = dist;
+            curBest = t;
+          }
+        }
+        // no later cell can contain a closer hit
+        if(minDist <= tmax) {
+          break;
+        }
+      }
+      if(stack == 0) {
+        break;
+      }
+      --stack;
+      node = tr.nodes[stack];
+      tmin = tr.near[stack];
+      tmax = tr.far[stack];
+      if(tmin > minDist) {
+        break;
+      }
+    }
+    if(curBest < 0) return new Hit(r, c);
+    return new Hit(r, ts.getTriangle(curBest), curBest, minDist, c);
   }
 
 }
@@ -0,0 +1,675 @@
+package cgp.algos;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import cgp.Main;
+import cgp.data.BoundingBox;
+import cgp.data.Ray;
+import cgp.data.Vec4;
+import cgp.tracer.Hit;
+import cgp.tracer.TestCounter;
+
+/**
+ * A linear bounding volume hierarchy. The triangles are sorted along a Morton
+ * curve through their centroids and the hierarchy is emitted from the sorted
+ * codes in linear time as described by Karras in "Maximizing Parallelism in
+ * the Construction of BVHs, Octrees, and k-d Trees". Every step of the build
+ * runs in parallel. The quality of the hierarchy is lower than with the
+ * surface area heuristic but building is much faster. When the triangles move
+ * the bounding boxes are refitted with the same parallel bottom up pass that
+ * computes them during the build.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class LBVH extends Hitter {
+
+  /**
+   * Builds a part of the hierarchy in the fork join pool. The range is split
+   * until it is small enough.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private final class StageAction extends RecursiveAction {
+
+    /** The build stage. */
+    private final int stage;
+    /** The lower inclusive index. */
+    private final int from;
+    /** The upper exclusive index. */
+    private final int to;
+    /** The number of indices that are processed without splitting. */
+    private final int grain;
+
+    /**
+     * Creates a stage action.
+     *
+     * @param stage The build stage.
+     * @param from The lower inclusive index.
+     * @param to The upper exclusive index.
+     * @param grain The number of indices that are processed without splitting.
+     */
+    public StageAction(final int stage, final int from, final int to, final int grain) {
+      this.stage = stage;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if(to - from <= grain) {
+        runStage(stage, from, to);
+        return;
+      }
+      final int mid = from + (to - from) / 2;
+      ForkJoinTask.invokeAll(new StageAction(stage, from, mid, grain),
+          new StageAction(stage, mid, to, grain));
+    }
+
+  } // StageAction
+
+  /**
+   * The state of a traversal. Every thread has its own state.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class Traversal {
+
+    /** The stack of nodes that still need to be visited. */
+    private int[] nodes = new int[0];
+    /** The distances of the bounding boxes of the nodes on the stack. */
+    private double[] distances = new double[0];
+
+    /**
+     * Prepares the state for a new ray.
+     *
+     * @param depth The maximum depth of the hierarchy.
+     */
+    public void nextRay(final int depth) {
+      if(nodes.length < depth + 2) {
+        nodes = new int[depth + 2];
+        distances = new double[depth + 2];
+      }
+    }
+
+  } // Traversal
+
+  /** Computes the bounding boxes of the triangles. */
+  private static final int STAGE_TRIANGLES = 0;
+  /** Computes the Morton codes of the centroids. */
+  private static final int STAGE_CODES = 1;
+  /** Counts the digits of each radix sort chunk. */
+  private static final int STAGE_HISTOGRAM = 2;
+  /** Moves the entries of each radix sort chunk to their sorted position. */
+  private static final int STAGE_SCATTER = 3;
+  /** Computes the children and the range of every inner node. */
+  private static final int STAGE_HIERARCHY = 4;
+  /** Computes the bounding boxes from the leafs to the root. */
+  private static final int STAGE_BOUNDS = 5;
+
+  /** The number of bits per radix sort pass. */
+  private static final int RADIX_BITS = 8;
+  /** The number of buckets per radix sort pass. */
+  private static final int RADIX = 1 << RADIX_BITS;
+  /** The number of indices processed by one task. */
+  private static final int GRAIN = 4096;
+
+  /** The number of bits of the Morton codes. Either 30 or 63. */
+  protected final int mortonBits;
+  /**
+   * The threshold when nodes are treated as leafs because of the number of
+   * triangles in the node.
+   */
+  protected final int triangleThreshold;
+  /** The maximum depth of the hierarchy. */
+  protected int maximumDepth;
+
+  /** The number of triangles. */
+  private int size;
+  /** The triangle indices sorted by their Morton codes. */
+  private int[] order;
+  /**
+   * The left child of every inner node. Inner nodes have the indices
+   * <code>0</code> to <code>size - 2</code> and the leaf for the triangle at
+   * position <code>i</code> in {@link #order} has the index
+   * <code>size - 1 + i</code>. The root has the index <code>0</code>.
+   */
+  private int[] left;
+  /** The right child of every inner node. */
+  private int[] right;
+  /** The first position in {@link #order} covered by every inner node. */
+  private int[] first;
+  /** The last inclusive position in {@link #order} covered by every inner node. */
+  private int[] last;
+  /** The minimal and maximal coordinates of the bounding box of every node. */
+  private double[] bounds;
+  /** The traversal state of each thread. */
+  private final ThreadLocal<Traversal> traversal = new ThreadLocal<Traversal>() {
+
+    @Override
+    protected Traversal initialValue() {
+      return new Traversal();
+    }
+
+  };
+
+  /** The bounding boxes of the triangles. Only used while building. */
+  private double[] triBounds;
+  /** The Morton codes. Only used while building. */
+  private long[] codes;
+  /** The buffer for the Morton codes. Only used while building. */
+  private long[] codesTmp;
+  /** The buffer for the triangle order. Only used while building. */
+  private int[] orderTmp;
+  /** The digit counts of every chunk. Only used while building. */
+  private int[] histograms;
+  /** The number of radix sort chunks. Only used while building. */
+  private int chunks;
+  /** The bit offset of the current radix sort pass. Only used while building. */
+  private int shift;
+  /** The parent of every node. The root has no parent. */
+  private int[] parents;
+  /**
+   * The surface area heuristic cost of the hierarchy when it was built or
+   * {@link Double#NaN} if it has not been computed yet.
+   */
+  private double buildCost;
+  /**
+   * The ratio of the current cost to the cost at build time above which a
+   * refit builds the hierarchy again.
+   */
+  private double rebuildThreshold = 1.5;
+
+  /** The bounds of the centroids. Only used while building. */
+  private final double[] cBounds = new double[6];
+  /** The number of visited children of every inner node. Only used while building. */
+  private AtomicIntegerArray visits;
+
+  /**
+   * Creates a linear bounding volume hierarchy.
+   *
+   * @param mortonBits The number of bits of the Morton codes. Either 30 or 63.
+   * @param triangleThreshold The number of triangles up to which nodes are
+   *          treated as leafs.
+   */
+  public LBVH(final int mortonBits, final int triangleThreshold) {
+    if(mortonBits != 30 && mortonBits != 63) throw new IllegalArgumentException(
+        "" + mortonBits);
+    if(triangleThreshold < 1) throw new IllegalArgumentException("" + triangleThreshold);
+    this.mortonBits = mortonBits;
+    this.triangleThreshold = triangleThreshold;
+  }
+
+  /**
+   * Setter.
+   *
+   * @param rebuildThreshold The ratio of the surface area heuristic cost after
+   *          a refit to the cost at build time above which the hierarchy is
+   *          built again. Must be at least <code>1</code>.
+   */
+  public void setRebuildThreshold(final double rebuildThreshold) {
+    if(!(rebuildThreshold >= 1)) throw new IllegalArgumentException("" + rebuildThreshold);
+    this.rebuildThreshold = rebuildThreshold;
+  }
+
+  @Override
+  protected void build() {
+    size = ts.size();
+    buildCost = Double.NaN;
+    parents = null;
+    order = new int[size];
+    left = new int[Math.max(0, size - 1)];
+    right = new int[Math.max(0, size - 1)];
+    first = new int[Math.max(0, size - 1)];
+    last = new int[Math.max(0, size - 1)];
+    bounds = new double[Math.max(0, 2 * size - 1) * 6];
+    maximumDepth = 0;
+    if(size == 0) {
+      System.out.println("Depth of LBVH: " + maximumDepth);
+      System.out.println("Bounding boxes in LBVH: 0");
+      return;
+    }
+    final ForkJoinPool fjp = Main.SINGLE_THREAD ? new ForkJoinPool(1) : new ForkJoinPool();
+    try {
+      triBounds = new double[size * 6];
+      fjp.invoke(new StageAction(STAGE_TRIANGLES, 0, size, GRAIN));
+      for(int axis = 0; axis < 3; ++axis) {
+        cBounds[axis] = Double.POSITIVE_INFINITY;
+        cBounds[axis + 3] = Double.NEGATIVE_INFINITY;
+      }
+      for(int i = 0; i < size; ++i) {
+        for(int axis = 0; axis < 3; ++axis) {
+          final double center = (triBounds[i * 6 + axis] + triBounds[i * 6 + axis + 3]) * 0.5;
+          cBounds[axis] = Math.min(cBounds[axis], center);
+          cBounds[axis + 3] = Math.max(cBounds[axis + 3], center);
+        }
+      }
+      codes = new long[size];
+      fjp.invoke(new StageAction(STAGE_CODES, 0, size, GRAIN));
+      sort(fjp);
+      parents = new int[2 * size - 1];
+      parents[0] = -1;
+      fjp.invoke(new StageAction(STAGE_HIERARCHY, 0, size - 1, GRAIN));
+      visits = new AtomicIntegerArray(size - 1);
+      fjp.invoke(new StageAction(STAGE_BOUNDS, 0, size, GRAIN));
+    } finally {
+      fjp.shutdown();
+      triBounds = null;
+      codes = null;
+      visits = null;
+    }
+    final int boxes = count(0, 0);
+    System.out.println("Depth of LBVH: " + maximumDepth);
+    System.out.println("Bounding boxes in LBVH: " + boxes);
+  }
+
+  /**
+   * Updates the bounding boxes from the leafs to the root. The hierarchy stays
+   * the same. If the surface area heuristic cost of the refitted hierarchy
+   * exceeds the cost at build time by the rebuild threshold the hierarchy is
+   * built again.
+   *
+   * @see #setRebuildThreshold(double)
+   */
+  @Override
+  public void refit() {
+    if(size == 0) return;
+    if(Double.isNaN(buildCost)) {
+      buildCost = sahCost();
+    }
+    final long nano = System.nanoTime();
+    final ForkJoinPool fjp = Main.SINGLE_THREAD ? new ForkJoinPool(1) : new ForkJoinPool();
+    try {
+      triBounds = new double[size * 6];
+      fjp.invoke(new StageAction(STAGE_TRIANGLES, 0, size, GRAIN));
+      visits = new AtomicIntegerArray(size - 1);
+      fjp.invoke(new StageAction(STAGE_BOUNDS, 0, size, GRAIN));
+    } finally {
+      fjp.shutdown();
+      triBounds = null;
+      visits = null;
+    }
+    final double cost = sahCost();
+    System.out.println("Refit of LBVH took " + ((System.nanoTime() - nano) * 1e-6) + "ms");
+    System.out.println("SAH cost: " + cost + " (built " + buildCost + ")");
+    if(cost > buildCost * rebuildThreshold) {
+      System.out.println("SAH cost degraded - building again");
+      build();
+    }
+  }
+
+  /**
+   * Computes the expected cost of a ray that hits the root according to the
+   * surface area heuristic.
+   *
+   * @return The cost relative to a triangle test.
+   */
+  private double sahCost() {
+    final double rootArea = BVH.area(bounds, 0);
+    if(!(rootArea > 0)) return 0;
+    return sahCost(0) / rootArea;
+  }
+
+  /**
+   * Computes the surface area heuristic cost of a subtree not yet divided by
+   * the area of the root.
+   *
+   * @param node The root of the subtree.
+   * @return The cost.
+   */
+  private double sahCost(final int node) {
+    final double area = BVH.area(bounds, node * 6);
+    if(node >= size - 1) return area;
+    if(isLeaf(node)) return area * (last[node] - first[node] + 1);
+    return area * BVH.TRAVERSAL_COST + sahCost(left[node]) + sahCost(right[node]);
+  }
+
+  /**
+   * Sorts the triangles by their Morton codes with a least significant digit
+   * radix sort. Every pass counts the digits of each chunk in parallel and
+   * then moves the entries of each chunk in parallel.
+   *
+   * @param fjp The fork join pool.
+   */
+  private void sort(final ForkJoinPool fjp) {
+    codesTmp = new long[size];
+    orderTmp = new int[size];
+    chunks = Math.max(1, Math.min(size / GRAIN, fjp.getParallelism() * 4));
+    histograms = new int[chunks * RADIX];
+    for(shift = 0; shift < mortonBits; shift += RADIX_BITS) {
+      fjp.invoke(new StageAction(STAGE_HISTOGRAM, 0, chunks, 1));
+      // exclusive prefix sum over digits first and chunks second
+      int sum = 0;
+      boolean trivial = false;
+      for(int d = 0; d < RADIX; ++d) {
+        final int start = sum;
+        for(int c = 0; c < chunks; ++c) {
+          final int cnt = histograms[c * RADIX + d];
+          histograms[c * RADIX + d] = sum;
+          sum += cnt;
+        }
+        trivial = trivial || sum - start == size;
+      }
+      // all entries have the same digit
+      if(trivial) {
+        continue;
+      }
+      fjp.invoke(new StageAction(STAGE_SCATTER, 0, chunks, 1));
+      final long[] c = codes;
+      codes = codesTmp;
+      codesTmp = c;
+      final int[] o = order;
+      order = orderTmp;
+      orderTmp = o;
+    }
+    codesTmp = null;
+    orderTmp = null;
+    histograms = null;
+  }
+
+  /**
+   * Runs a build stage for a range.
+   *
+   * @param stage The build stage.
+   * @param from The lower inclusive index.
+   * @param to The upper exclusive index.
+   */
+  void runStage(final int stage, final int from, final int to) {
+    switch(stage) {
+      case STAGE_TRIANGLES:
+        for(int i = from; i < to; ++i) {
+          for(int axis = 0; axis < 3; ++axis) {
+            triBounds[i * 6 + axis] = ts.getMin(i, axis);
+            triBounds[i * 6 + axis + 3] = ts.getMax(i, axis);
+          }
+        }
+        break;
+      case STAGE_CODES:
+        for(int i = from; i < to; ++i) {
+          order[i] = i;
+          codes[i] = mortonCode(i);
+        }
+        break;
+      case STAGE_HISTOGRAM:
+        for(int c = from; c < to; ++c) {
+          final int off = c * RADIX;
+          for(int d = 0; d < RADIX; ++d) {
+            histograms[off + d] = 0;
+          }
+          final int end = chunkEnd(c);
+          for(int i = chunkEnd(c - 1); i < end; ++i) {
+            ++histograms[off + digit(codes[i])];
+          }
+        }
+        break;
+      case STAGE_SCATTER:
+        for(int c = from; c < to; ++c) {
+          final int off = c * RADIX;
+          final int end = chunkEnd(c);
+          for(int i = chunkEnd(c - 1); i < end; ++i) {
+            final int pos = histograms[off + digit(codes[i])]++;
+            codesTmp[pos] = codes[i];
+            orderTmp[pos] = order[i];
+          }
+        }
+        break;
+      case STAGE_HIERARCHY:
+        for(int i = from; i < to; ++i) {
+          emitNode(i);
+        }
+        break;
+      case STAGE_BOUNDS:
+        for(int i = from; i < to; ++i) {
+          propagateBounds(i);
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("" + stage);
+    }
+  }
+
+  /**
+   * Getter.
+   *
+   * @param c The radix sort chunk or <code>-1</code>.
+   * @return The upper exclusive index of the chunk.
+   */
+  private int chunkEnd(final int c) {
+    return (int) ((long) size * (c + 1) / chunks);
+  }
+
+  /**
+   * Getter.
+   *
+   * @param code The Morton code.
+   * @return The digit of the current radix sort pass.
+   */
+  private int digit(final long code) {
+    return (int) (code >>> shift) & (RADIX - 1);
+  }
+
+  /**
+   * Computes the Morton code of the centroid of a triangle.
+   *
+   * @param t The triangle index.
+   * @return The Morton code.
+   */
+  private long mortonCode(final int t) {
+    final int bits = mortonBits / 3;
+    final long max = (1L << bits) - 1;
+    long code = 0;
+    for(int axis = 0; axis < 3; ++axis) {
+      final double center = (triBounds[t * 6 + axis] + triBounds[t * 6 + axis + 3]) * 0.5;
+      final double extent = cBounds[axis + 3] - cBounds[axis];
+      final long q = extent > 0 ? Math.max(0, Math.min(max,
+          (long) ((center - cBounds[axis]) / extent * max))) : 0;
+      code |= spread(q) << (2 - axis);
+    }
+    return code;
+  }
+
+  /**
+   * Inserts two zero bits before each of the lower 21 bits.
+   *
+   * @param v The value.
+   * @return The spread value.
+   */
+  private static long spread(final long v) {
+    long x = v & 0x1fffffL;
+    x = (x | x << 32) & 0x1f00000000ffffL;
+    x = (x | x << 16) & 0x1f0000ff0000ffL;
+    x = (x | x << 8) & 0x100f00f00f00f00fL;
+    x = (x | x << 4) & 0x10c30c30c30c30c3L;
+    x = (x | x << 2) & 0x1249249249249249L;
+    return x;
+  }
+
+  /**
+   * Computes the length of the common prefix of the codes at two sorted
+   * positions. Equal codes are distinguished by their position.
+   *
+   * @param i The first position.
+   * @param j The second position.
+   * @return The length of the common prefix or <code>-1</code> if the second
+   *         position is out of range.
+   */
+  private int delta(final int i, final int j) {
+    if(j < 0 || j >= size) return -1;
+    final long a = codes[i];
+    final long b = codes[j];
+    if(a == b) return 64 + Integer.numberOfLeadingZeros(i ^ j);
+    return Long.numberOfLeadingZeros(a ^ b);
+  }
+
+  /**
+   * Computes the range, the split, and the children of an inner node.
+   *
+   * @param i The inner node.
+   */
+  private void emitNode(final int i) {
+    // the direction of the range
+    final int d = delta(i, i + 1) > delta(i, i - 1) ? 1 : -1;
+    // upper bound for the length of the range
+    final int minPrefix = delta(i, i - d);
+    int lmax = 2;
+    while(delta(i, i + lmax * d) > minPrefix) {
+      lmax *= 2;
+    }
+    // the other end of the range with a binary search
+    int l = 0;
+    for(int t = lmax / 2; t >= 1; t /= 2) {
+      if(delta(i, i + (l + t) * d) > minPrefix) {
+        l += t;
+      }
+    }
+    final int j = i + l * d;
+    // the split position with a binary search
+    final int nodePrefix = delta(i, j);
+    int s = 0;
+    int t = l;
+    do {
+      t = (t + 1) >> 1;
+      if(delta(i, i + (s + t) * d) > nodePrefix) {
+        s += t;
+      }
+    } while(t > 1);
+    final int gamma = i + s * d + Math.min(d, 0);
+    final int lo = Math.min(i, j);
+    final int hi = Math.max(i, j);
+    final int leftChild = lo == gamma ? size - 1 + gamma : gamma;
+    final int rightChild = hi == gamma + 1 ? size - 1 + gamma + 1 : gamma + 1;
+    left[i] = leftChild;
+    right[i] = rightChild;
+    first[i] = lo;
+    last[i] = hi;
+    parents[leftChild] = i;
+    parents[rightChild] = i;
+  }
+
+  /**
+   * Computes the bounding box of a leaf and walks up to the root. The second
+   * thread that arrives at an inner node computes its bounding box and
+   * continues.
+   *
+   * @param pos The position of the leaf in the triangle order.
+   */
+  private void propagateBounds(final int pos) {
+    int node = size - 1 + pos;
+    System.arraycopy(triBounds, order[pos] * 6, bounds, node * 6, 6);
+    for(;;) {
+      node = parents[node];
+      if(node < 0) return;
+      // the first arriving child stops
+      if(visits.getAndIncrement(node) == 0) return;
+      final int l = left[node] * 6;
+      final int r = right[node] * 6;
+      for(int axis = 0; axis < 3; ++axis) {
+        bounds[node * 6 + axis] = Math.min(bounds[l + axis], bounds[r + axis]);
+        bounds[node * 6 + axis + 3] = Math.max(bounds[l + axis + 3], bounds[r + axis + 3]);
+      }
+    }
+  }
+
+  /**
+   * Getter.
+   *
+   * @param node The node.
+   * @return Whether the node is traversed as leaf.
+   */
+  private boolean isLeaf(final int node) {
+    return node >= size - 1 || last[node] - first[node] < triangleThreshold;
+  }
+
+  /**
+   * Counts the bounding boxes of the subtree and computes the maximum depth.
+   *
+   * @param node The root of the subtree.
+   * @param depth The depth of the node.
+   * @return The number of bounding boxes.
+   */
+  private int count(final int node, final int depth) {
+    maximumDepth = Math.max(maximumDepth, depth);
+    if(isLeaf(node)) return 1;
+    return 1 + count(left[node], depth + 1) + count(right[node], depth + 1);
+  }
+
+  /**
+   * Computes the distance to the bounding box of a node.
+   *
+   * @param node The node.
+   * @param r The ray.
+   * @param c The test counter.
+   * @return The distance or a negative value if the box is not hit.
+   */
+  private double boxDist(final int node, final Ray r, final TestCounter c) {
+    final int b = node * 6;
+    return BoundingBox.intersects(r, bounds[b], bounds[b + 1], bounds[b + 2],
+        bounds[b + 3], bounds[b + 4], bounds[b + 5], c);
+  }
+
+  @Override
+  public Hit getHit(final Ray r, final TestCounter c) {
+    if(size == 0) return new Hit(r, c);
+    final double rootDist = boxDist(0, r, c);
+    if(rootDist < 0) return new Hit(r, c);
+    final Traversal tr = traversal.get();
+    tr.nextRay(maximumDepth);
+    final int[] nodes = tr.nodes;
+    final double[] distances = tr.distances;
+    final Vec4 o = r.getOrigin();
+    final Vec4 d = r.getDirection();
+    double minDist = Double.POSITIVE_INFINITY;
+    int index = -1;
+    int sp = 0;
+    nodes[sp] = 0;
+    distances[sp] = rootDist;
+    ++sp;
+    while(sp > 0) {
+      --sp;
+      final int node = nodes[sp];
+      if(distances[sp] >= minDist) {
+        continue;
+      }
+      if(isLeaf(node)) {
+        final int from = node >= size - 1 ? node - size + 1 : first[node];
+        final int to = node >= size - 1 ? from : last[node];
+        for(int i = from; i <= to; ++i) {
+          final int t = order[i];
+          final double dist = ts.hit(t,
+              o.getX(), o.getY(), o.getZ(), d.getX(), d.getY(), d.getZ(), c);
+          if(r.isValidDistance(dist) && dist < minDist) {
+            minDist = dist;
+            index = t;
+          }
+        }
+        continue;
+      }
+      final int l = left[node];
+      final int rt = right[node];
+      final double dl = boxDist(l, r, c);
+      final double dr = boxDist(rt, r, c);
+      final boolean leftFirst = dr < 0 || (dl >= 0 && dl <= dr);
+      final int near = leftFirst ? l : rt;
+      final int far = leftFirst ? rt : l;
+      final double dn = leftFirst ? dl : dr;
+      final double df = leftFirst ? dr : dl;
+      // the near child is visited first
+      if(df >= 0 && df < minDist) {
+        nodes[sp] = far;
+        distances[sp] = df;
+        ++sp;
+      }
+      if(dn >= 0 && dn < minDist) {
+        nodes[sp] = near;
+        distances[sp] = dn;
+        ++sp;
+      }
+    }
+    if(index < 0) return new Hit(r, c);
+    return new Hit(r, ts.getTriangle(index), index, minDist, c);
+  }
+
+}
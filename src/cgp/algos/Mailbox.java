@@ -0,0 +1,59 @@
+package cgp.algos;
+
+import java.util.Arrays;
+
+/**
+ * Remembers which triangles have already been tested for the current ray.
+ * Triangles that are referenced by multiple nodes of a storage are then only
+ * tested once per ray. A mailbox must only be used by one thread at a time.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+final class Mailbox {
+
+  /** The id of the ray that last tested the triangle with the given index. */
+  private int[] stamps;
+  /** The id of the current ray. */
+  private int ray;
+
+  /**
+   * Creates a mailbox.
+   *
+   * @param size The number of triangles.
+   */
+  public Mailbox(final int size) {
+    stamps = new int[size];
+    ray = 0;
+  }
+
+  /**
+   * Starts a new ray. All triangles are marked as untested afterwards.
+   *
+   * @param size The number of triangles.
+   */
+  public void nextRay(final int size) {
+    if(stamps.length < size) {
+      stamps = new int[size];
+      ray = 0;
+    }
+    ++ray;
+    if(ray == 0) {
+      // the ray id wrapped around
+      Arrays.fill(stamps, 0);
+      ray = 1;
+    }
+  }
+
+  /**
+   * Marks the given triangle as tested for the current ray.
+   *
+   * @param index The triangle index.
+   * @return Whether the triangle was not tested before for the current ray.
+   */
+  public boolean visit(final int index) {
+    if(stamps[index] == ray) return false;
+    stamps[index] = ray;
+    return true;
+  }
+
+}
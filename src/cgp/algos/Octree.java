@@ -1,14 +1,17 @@
 package cgp.algos;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.BitSet;
-import java.util.Comparator;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
+import cgp.Main;
 import cgp.data.BoundingBox;
 import cgp.data.Ray;
-import cgp.data.Triangle;
 import cgp.data.Vec4;
 import cgp.tracer.Hit;
 import cgp.tracer.TestCounter;
@@ -18,7 +21,7 @@ import cgp.tracer.TestCounter;
  *
  * @author Joschi <josua.krause@gmail.com>
  */
-public class Octree extends Hitter {
+public class Octree extends PersistentHitter {
 
   /**
    * An internal node of the Octree.
@@ -31,14 +34,17 @@ public class Octree extends Hitter {
     private final BoundingBox box;
     /** The depth of the node. */
     private final int depth;
-    /** The set of triangles or <code>null</code> if inner node. */
-    private BitSet tset;
-    /** The offset of the bit set. */
-    private int offset;
+    /**
+     * The sorted triangle indices while building or <code>null</code> if inner
+     * node or already compacted.
+     */
+    private int[] tris;
+    /** The position of the first triangle in {@link #nodeTriangles}. */
+    private int first;
+    /** The number of triangles in {@link #nodeTriangles}. */
+    private int count;
     /** The children or <code>null</code> if leaf. */
     private Node[] children;
-    /** Indicates that this node does not need to be split. */
-    private boolean noSplit;
     /** Whether the children share triangles. */
     private boolean hasSharedChildren;
 
@@ -47,95 +53,123 @@ public class Octree extends Hitter {
      *
      * @param box The bounding box.
      * @param depth The depth of the node.
+     * @param tris The sorted triangle indices.
      */
-    public Node(final BoundingBox box, final int depth) {
+    public Node(final BoundingBox box, final int depth, final int[] tris) {
       this.box = Objects.requireNonNull(box);
       this.depth = depth;
-      tset = new BitSet();
+      this.tris = Objects.requireNonNull(tris);
+      count = tris.length;
       children = null;
-      offset = 0;
-      maximumDepth = Math.max(depth, maximumDepth);
       hasSharedChildren = false;
     }
 
     /**
-     * Adds a triangle.
-     *
-     * @param index The index.
-     * @param t The triangle.
-     * @param parent The parent node or <code>null</code> if root.
-     */
-    public void addTriangle(final int index, final Triangle t, final Node parent) {
-      addTriangle(index, t, 0, null, parent);
-    }
-
-    /**
-     * Adds a triangle.
-     *
-     * @param index The triangle index.
-     * @param t The triangle.
-     * @param boxIndex The index of the bounding box in the parent.
-     * @param mid The middle point of the parent bounding box.
-     * @param parent The parent node or <code>null</code> if root.
-     * @return Whether the triangle was added.
+     * Splits the node. Large nodes split their children in parallel.
      */
-    private boolean addTriangle(final int index, final Triangle t,
-        final int boxIndex, final Vec4 mid, final Node parent) {
-      if(mid != null) {
-        for(int axis = 0; axis < 3; ++axis) {
-          final int rel = t.relToPlane(mid.get(axis), axis);
-          if(rel == 0 && parent != null) {
-            parent.hasSharedChildren = true;
-          }
-          if(isMinNode(boxIndex, axis) ? rel > 0 : rel < 0) return false;
-        }
-      }
-      if(tset != null) {
-        tset.set(index - offset);
-        noSplit = false;
-        return true;
-      }
-      boolean wasAdded = false;
-      final Vec4 center = box.getCenter();
-      for(int i = 0; i < children.length; ++i) {
-        wasAdded = children[i].addTriangle(index, t, i, center, this) || wasAdded;
-      }
-      return wasAdded;
-    }
-
-    /** Splits the node. */
     public void splitNode() {
       if(depth >= depthThreshold) return;
-      if(tset.isEmpty() || tset.cardinality() <= triangleThreshold || noSplit) return;
+      if(count == 0 || count <= triangleThreshold) return;
       if(box.getWidth() <= minDist || box.getHeight() <= minDist
           || box.getDepth() <= minDist) return;
       final BoundingBox[] boxes = new BoundingBox[8];
-      children = new Node[8];
-      final BitSet b = tset;
-      tset = null;
       final Vec4 mid = split(box, boxes);
+      // the children each triangle belongs to -- one bit per child
+      final byte[] masks = new byte[count];
+      final int[] sizes = new int[8];
+      for(int i = 0; i < count; ++i) {
+        final int t = tris[i];
+        int mask = 0xff;
+        for(int axis = 0; axis < 3; ++axis) {
+          final int rel = ts.relToPlane(t, mid.get(axis), axis);
+          if(rel == 0) {
+            hasSharedChildren = true;
+            continue;
+          }
+          for(int c = 0; c < 8; ++c) {
+            if(isMinNode(c, axis) ? rel > 0 : rel < 0) {
+              mask &= ~(1 << c);
+            }
+          }
+        }
+        masks[i] = (byte) mask;
+        for(int c = 0; c < 8; ++c) {
+          if((mask & (1 << c)) != 0) {
+            ++sizes[c];
+          }
+        }
+      }
       boolean unsplit = true;
-      for(int i = 0; i < children.length; ++i) {
-        final Node n = new Node(boxes[i], depth + 1);
-        for(int t = b.nextSetBit(0); t >= 0; t = b.nextSetBit(t + 1)) {
-          final int index = t + offset;
-          unsplit = n.addTriangle(index, ts.getTriangle(index), i, mid, this) && unsplit;
+      for(final int size : sizes) {
+        unsplit = unsplit && size == count;
+      }
+      // every child would contain all triangles
+      if(unsplit) return;
+      children = new Node[8];
+      for(int c = 0; c < 8; ++c) {
+        final int[] childTris = new int[sizes[c]];
+        int pos = 0;
+        for(int i = 0; i < count; ++i) {
+          if((masks[i] & (1 << c)) != 0) {
+            childTris[pos++] = tris[i];
+          }
         }
-        children[i] = n;
-        n.optimize();
+        children[c] = new Node(boxes[c], depth + 1, childTris);
       }
-      if(unsplit) {
-        tset = b;
-        children = null;
-        noSplit = true;
-        optimize();
-      } else {
-        for(final Node n : children) {
-          n.splitNode();
+      tris = null;
+      count = 0;
+      if(masks.length >= PARALLEL_THRESHOLD) {
+        final SplitAction[] actions = new SplitAction[8];
+        for(int c = 0; c < 8; ++c) {
+          actions[c] = new SplitAction(children[c]);
         }
+        ForkJoinTask.invokeAll(actions);
+        return;
+      }
+      for(final Node n : children) {
+        n.splitNode();
       }
     }
 
+    /**
+     * Moves the triangles of all leafs into {@link #nodeTriangles}. Also
+     * computes the maximum depth and the number of bounding boxes.
+     *
+     * @param pos The next free position in {@link #nodeTriangles}.
+     * @param stats The maximum depth and the number of bounding boxes. The
+     *          values of the subtree get added.
+     * @return The next free position after the subtree.
+     */
+    public int compact(final int pos, final int[] stats) {
+      stats[0] = Math.max(stats[0], depth);
+      ++stats[1];
+      if(children == null) {
+        first = pos;
+        System.arraycopy(tris, 0, nodeTriangles, pos, count);
+        tris = null;
+        return pos + count;
+      }
+      int p = pos;
+      for(final Node n : children) {
+        p = n.compact(p, stats);
+      }
+      return p;
+    }
+
+    /**
+     * Counts the triangle references in the subtree.
+     *
+     * @return The number of triangle references.
+     */
+    public int countTriangles() {
+      if(children == null) return count;
+      int sum = 0;
+      for(final Node n : children) {
+        sum += n.countTriangles();
+      }
+      return sum;
+    }
+
     /**
      * Computes the distance to the given bounding box.
      *
@@ -148,50 +182,47 @@ public class Octree extends Hitter {
     }
 
     /**
-     * Tests for a hit.
+     * Tests for a hit. The closest hit is stored in the traversal state.
      *
      * @param r The ray.
      * @param c The test counter.
      * @param dist The minimal distance of the bounding box.
-     * @param ti The index of the hit triangle gets stored in this integer.
-     * @return The hit.
+     * @param tr The traversal state of the current thread.
+     * @return Whether a triangle was hit in this subtree.
      */
-    public Hit getHit(final Ray r, final TestCounter c,
-        final double dist, final AtomicInteger ti) {
-      if(dist < 0) return new Hit(r, c);
-      if(tset != null) return getLevelHit(r, c, ti);
-      final Integer[] order = new Integer[8];
-      final double[] distances = new double[8];
+    public boolean getHit(final Ray r, final TestCounter c,
+        final double dist, final Traversal tr) {
+      if(dist < 0) return false;
+      if(children == null) return getLevelHit(r, c, tr);
+      final int[] order = tr.order;
+      final double[] distances = tr.distances;
+      final int off = depth * 8;
+      // insertion sort by distance -- misses go last
       for(int i = 0; i < 8; ++i) {
-        order[i] = i;
-        distances[i] = children[i].getBBoxDist(r, c);
-      }
-      Arrays.sort(order, new Comparator<Integer>() {
-
-        @Override
-        public int compare(final Integer o1, final Integer o2) {
-          if(distances[o1] < 0) return distances[o2] < 0 ? 0 : 1;
-          if(distances[o2] < 0) return -1;
-          return Double.compare(distances[o1], distances[o2]);
+        final double d = children[i].getBBoxDist(r, c);
+        int pos = off + i;
+        while(pos > off && (distances[pos - 1] < 0
+            ? d >= 0 : d >= 0 && d < distances[pos - 1])) {
+          order[pos] = order[pos - 1];
+          distances[pos] = distances[pos - 1];
+          --pos;
         }
-
-      });
-      Hit best = new Hit(r, c);
-      for(int i = 0; i < 8; ++i) {
-        if(distances[order[i]] < 0) {
-          continue;
+        order[pos] = i;
+        distances[pos] = d;
+      }
+      boolean hasHit = false;
+      for(int i = off; i < off + 8; ++i) {
+        if(distances[i] < 0) {
+          break;
         }
         final Node n = children[order[i]];
-        final Hit hit = n.getHit(r, c, distances[order[i]], ti);
-        if(!hit.hasHit()) {
+        if(!n.getHit(r, c, distances[i], tr)) {
           continue;
         }
-        if(!hasSharedChildren) return hit;
-        if(hit.getDistance() < best.getDistance() || !best.hasHit()) {
-          best = hit;
-        }
+        if(!hasSharedChildren) return true;
+        hasHit = true;
       }
-      return best;
+      return hasHit;
     }
 
     /**
@@ -199,58 +230,117 @@ public class Octree extends Hitter {
      *
      * @param r The ray.
      * @param c The test counter.
-     * @param index The index of the triangle that got hit gets stored in this
-     *          integer.
-     * @return The hit.
+     * @param tr The traversal state. The closest hit gets stored here.
+     * @return Whether a triangle was hit in this node.
      */
-    private Hit getLevelHit(final Ray r, final TestCounter c, final AtomicInteger index) {
-      double minDist = Double.POSITIVE_INFINITY;
-      Triangle curBest = null;
-      for(int t = tset.nextSetBit(0); t >= 0; t = tset.nextSetBit(t + 1)) {
-        final Triangle tri = ts.getTriangle(t + offset);
-        final double dist = tri.hit(r, c);
-        if(r.isValidDistance(dist) && dist < minDist) {
-          minDist = dist;
-          curBest = tri;
-          index.set(t + offset);
+    private boolean getLevelHit(final Ray r, final TestCounter c, final Traversal tr) {
+      boolean hasHit = false;
+      for(int i = first; i < first + count; ++i) {
+        final int t = nodeTriangles[i];
+        final double dist = ts.hit(t, r, c);
+        if(r.isValidDistance(dist)) {
+          hasHit = true;
+          if(dist < tr.minDist) {
+            tr.minDist = dist;
+            tr.index = t;
+          }
         }
       }
-      return new Hit(r, curBest, minDist, c);
+      return hasHit;
     }
 
-    /** Optimizes the bitset storage by shifting it to its lowest set bit. */
-    public void optimize() {
-      if(tset == null) {
-        for(final Node c : children) {
-          c.optimize();
-        }
+    /**
+     * Writes the subtree.
+     *
+     * @param out The output.
+     * @throws IOException I/O Exception.
+     */
+    public void save(final DataOutput out) throws IOException {
+      final Vec4 min = box.get(true, true, true);
+      final Vec4 max = box.get(false, false, false);
+      for(int axis = 0; axis < 3; ++axis) {
+        out.writeDouble(min.get(axis));
+      }
+      for(int axis = 0; axis < 3; ++axis) {
+        out.writeDouble(max.get(axis));
+      }
+      out.writeBoolean(hasSharedChildren);
+      out.writeBoolean(children == null);
+      if(children == null) {
+        HitterCache.writeInts(out, Arrays.copyOfRange(nodeTriangles, first, first + count));
         return;
       }
-      final int lowestIndex = tset.nextSetBit(0);
-      if(lowestIndex <= 0) return;
-      final BitSet set = new BitSet(tset.length() - lowestIndex);
-      for(int t = tset.nextSetBit(0); t >= 0; t = tset.nextSetBit(t + 1)) {
-        set.set(t - lowestIndex);
+      for(final Node n : children) {
+        n.save(out);
       }
-      tset = set;
-      offset += lowestIndex;
     }
 
+  } // Node
+
+  /**
+   * Splits a subtree in the fork join pool.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private final class SplitAction extends RecursiveAction {
+
+    /** The root of the subtree. */
+    private final Node node;
+
     /**
-     * Counts the number of bounding boxes in the octree.
+     * Creates a split action.
      *
-     * @return The number of bounding boxes in the subtree.
+     * @param node The root of the subtree.
      */
-    public int countBoundingBoxes() {
-      if(children == null) return 1;
-      int sum = 1;
-      for(final Node n : children) {
-        sum += n.countBoundingBoxes();
+    public SplitAction(final Node node) {
+      this.node = node;
+    }
+
+    @Override
+    protected void compute() {
+      node.splitNode();
+    }
+
+  } // SplitAction
+
+  /**
+   * The number of triangles of a node above which the children are split in
+   * parallel.
+   */
+  private static final int PARALLEL_THRESHOLD = 4096;
+
+  /**
+   * The state of a traversal. Every thread has its own state so that no
+   * objects need to be allocated while visiting nodes.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class Traversal {
+
+    /** The child order for every depth. Each depth has eight slots. */
+    private int[] order = new int[0];
+    /** The child distances for every depth. Each depth has eight slots. */
+    private double[] distances = new double[0];
+    /** The distance of the closest hit. */
+    private double minDist;
+    /** The index of the closest triangle or <code>-1</code>. */
+    private int index;
+
+    /**
+     * Prepares the state for a new ray.
+     *
+     * @param depth The maximum depth of the tree.
+     */
+    public void nextRay(final int depth) {
+      if(order.length < (depth + 1) * 8) {
+        order = new int[(depth + 1) * 8];
+        distances = new double[(depth + 1) * 8];
       }
-      return sum;
+      minDist = Double.POSITIVE_INFINITY;
+      index = -1;
     }
 
-  } // Node
+  } // Traversal
 
   /**
    * The threshold when boxes are not being split anymore because of the number
@@ -266,6 +356,17 @@ public class Octree extends Hitter {
   private BoundingBox bbox;
   /** The root node. */
   private Node root;
+  /** The triangle indices of all leafs. */
+  private int[] nodeTriangles;
+  /** The traversal state of each thread. */
+  private final ThreadLocal<Traversal> traversal = new ThreadLocal<Traversal>() {
+
+    @Override
+    protected Traversal initialValue() {
+      return new Traversal();
+    }
+
+  };
   /** The minimal distance between triangle end-points. */
   protected double minDist;
   /**
@@ -292,22 +393,103 @@ public class Octree extends Hitter {
     maximumDepth = 0;
     root = null;
     minDist = Double.POSITIVE_INFINITY;
-    bbox = new BoundingBox();
-    for(final Triangle t : ts.getList()) {
-      final BoundingBox cur = new BoundingBox(t);
-      minDist = Math.min(
-          Math.max(Math.max(cur.getWidth(), cur.getHeight()),
-              Math.max(cur.getDepth(), 1e-9)), minDist);
-      bbox = bbox.add(cur);
-    }
-    root = new Node(bbox, 0);
+    final double[] min = {
+        Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+    final double[] max = {
+        Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
     for(int i = 0; i < ts.size(); ++i) {
-      root.addTriangle(i, ts.getTriangle(i), null);
+      double size = 1e-9;
+      for(int axis = 0; axis < 3; ++axis) {
+        final double lo = ts.getMin(i, axis);
+        final double hi = ts.getMax(i, axis);
+        size = Math.max(size, hi - lo);
+        min[axis] = Math.min(min[axis], lo);
+        max[axis] = Math.max(max[axis], hi);
+      }
+      minDist = Math.min(size, minDist);
+    }
+    bbox = ts.size() == 0 ? new BoundingBox() : new BoundingBox(
+        new Vec4(min[0], min[1], min[2], true), new Vec4(max[0], max[1], max[2], true));
+    final int[] all = new int[ts.size()];
+    for(int i = 0; i < all.length; ++i) {
+      all[i] = i;
     }
-    root.splitNode();
-    root.optimize();
+    root = new Node(bbox, 0, all);
+    final ForkJoinPool fjp = Main.SINGLE_THREAD ? new ForkJoinPool(1) : new ForkJoinPool();
+    try {
+      fjp.invoke(new SplitAction(root));
+    } finally {
+      fjp.shutdown();
+    }
+    final int[] stats = { 0, 0};
+    compact(stats);
     System.out.println("Depth of octree: " + maximumDepth);
-    System.out.println("Bounding boxes in octree: " + root.countBoundingBoxes());
+    System.out.println("Bounding boxes in octree: " + stats[1]);
+  }
+
+  /**
+   * Moves the triangles of all leafs into one array.
+   *
+   * @param stats An array of length two. Gets filled with the maximum depth
+   *          and the number of bounding boxes.
+   */
+  private void compact(final int[] stats) {
+    nodeTriangles = new int[root.countTriangles()];
+    root.compact(0, stats);
+    maximumDepth = stats[0];
+  }
+
+  @Override
+  public String getPersistenceKey() {
+    return "Octree-" + depthThreshold + "-" + triangleThreshold;
+  }
+
+  @Override
+  protected void save(final DataOutput out) throws IOException {
+    out.writeInt(maximumDepth);
+    out.writeBoolean(ts.size() == 0);
+    if(ts.size() != 0) {
+      root.save(out);
+    }
+  }
+
+  @Override
+  protected void load(final ByteBuffer in) throws IOException {
+    final int depth = in.getInt();
+    if(in.get() != 0) {
+      bbox = new BoundingBox();
+      root = new Node(bbox, 0, new int[0]);
+    } else {
+      root = loadNode(in, 0);
+      bbox = root.box;
+    }
+    compact(new int[2]);
+    if(maximumDepth != depth) throw new IOException(maximumDepth + " != " + depth);
+  }
+
+  /**
+   * Reads a subtree written by {@link Node#save(DataOutput)}.
+   *
+   * @param in The input.
+   * @param depth The depth of the subtree.
+   * @return The root of the subtree.
+   */
+  private Node loadNode(final ByteBuffer in, final int depth) {
+    final Vec4 min = new Vec4(in.getDouble(), in.getDouble(), in.getDouble(), true);
+    final Vec4 max = new Vec4(in.getDouble(), in.getDouble(), in.getDouble(), true);
+    final BoundingBox box = new BoundingBox(min, max);
+    final boolean hasSharedChildren = in.get() != 0;
+    final boolean isLeaf = in.get() != 0;
+    final Node n = new Node(box, depth, isLeaf ? HitterCache.readInts(in) : new int[0]);
+    n.hasSharedChildren = hasSharedChildren;
+    if(isLeaf) return n;
+    n.tris = null;
+    n.count = 0;
+    n.children = new Node[8];
+    for(int i = 0; i < n.children.length; ++i) {
+      n.children[i] = loadNode(in, depth + 1);
+    }
+    return n;
   }
 
   /**
@@ -366,8 +548,10 @@ public class Octree extends Hitter {
   @Override
   public Hit getHit(final Ray r, final TestCounter c) {
     final double dist = root.getBBoxDist(r, c);
-    final AtomicInteger ti = new AtomicInteger(-1);
-    return root.getHit(r, c, dist, ti);
+    final Traversal tr = traversal.get();
+    tr.nextRay(maximumDepth);
+    if(!root.getHit(r, c, dist, tr)) return new Hit(r, c);
+    return new Hit(r, ts.getTriangle(tr.index), tr.index, tr.minDist, c);
   }
 
 }
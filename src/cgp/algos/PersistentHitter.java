@@ -0,0 +1,41 @@
+package cgp.algos;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A data structure that can be stored on disk once it has been built.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ * @see HitterCache
+ */
+public abstract class PersistentHitter extends Hitter {
+
+  /**
+   * Getter.
+   *
+   * @return A key identifying the type and the parameters of the data
+   *         structure. Data structures with the same key built from the same
+   *         triangles must be identical.
+   */
+  public abstract String getPersistenceKey();
+
+  /**
+   * Writes the built data structure.
+   *
+   * @param out The output.
+   * @throws IOException I/O Exception.
+   */
+  protected abstract void save(DataOutput out) throws IOException;
+
+  /**
+   * Reads a data structure written by {@link #save(DataOutput)}. The triangles
+   * are already set.
+   *
+   * @param in The input starting at the position of the data structure.
+   * @throws IOException If the input is malformed.
+   */
+  protected abstract void load(ByteBuffer in) throws IOException;
+
+}
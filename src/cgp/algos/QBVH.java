@@ -0,0 +1,543 @@
+package cgp.algos;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import cgp.data.BoundingBox;
+import cgp.data.Ray;
+import cgp.data.Vec4;
+import cgp.tracer.Hit;
+import cgp.tracer.TestCounter;
+
+/**
+ * A bounding volume hierarchy with four children per node. The hierarchy is
+ * built as a binary {@link BVH} and then collapsed by pulling up the
+ * grandchildren with the largest surface area. Every node stores the bounding
+ * boxes of its four children as a structure of arrays so all four boxes are
+ * tested against a ray in one tight loop over flat coordinates. Children are
+ * always stored after their parent which allows refitting the boxes with one
+ * backwards sweep over the nodes.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class QBVH extends BVH {
+
+  /**
+   * Refits the leaf boxes of a range of nodes in the fork join pool.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private final class RefitLeafsAction extends RecursiveAction {
+
+    /** The lower inclusive node. */
+    private final int from;
+    /** The upper exclusive node. */
+    private final int to;
+
+    /**
+     * Creates a refit action.
+     *
+     * @param from The lower inclusive node.
+     * @param to The upper exclusive node.
+     */
+    public RefitLeafsAction(final int from, final int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if(to - from <= REFIT_GRAIN) {
+        refitLeafs(from, to);
+        return;
+      }
+      final int mid = from + (to - from) / 2;
+      ForkJoinTask.invokeAll(new RefitLeafsAction(from, mid),
+          new RefitLeafsAction(mid, to));
+    }
+
+  } // RefitLeafsAction
+
+  /**
+   * The state of a traversal. Every thread has its own state.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class Traversal {
+
+    /** The stack of children that still need to be visited. */
+    private int[] nodes = new int[0];
+    /** The distances of the bounding boxes of the children on the stack. */
+    private double[] distances = new double[0];
+    /** The distances of the children of the current node. */
+    private final double[] childDist = new double[WIDTH];
+    /** The children of the current node that got hit ordered by distance. */
+    private final int[] hitSlots = new int[WIDTH];
+
+    /**
+     * Prepares the state for a new ray.
+     *
+     * @param depth The maximum depth of the hierarchy.
+     */
+    public void nextRay(final int depth) {
+      final int size = (WIDTH - 1) * (depth + 1) + 1;
+      if(nodes.length < size) {
+        nodes = new int[size];
+        distances = new double[size];
+      }
+    }
+
+  } // Traversal
+
+  /** The number of children per node. */
+  protected static final int WIDTH = 4;
+  /** The number of coordinates stored per node. */
+  protected static final int STRIDE = WIDTH * 6;
+  /** Marks an unused child slot. */
+  protected static final int EMPTY = Integer.MIN_VALUE;
+  /** The number of nodes whose leafs are refitted without splitting. */
+  private static final int REFIT_GRAIN = 256;
+
+  /** The number of nodes. */
+  protected int nodeCount;
+  /** The maximum depth of the collapsed hierarchy. */
+  private int wideDepth;
+  /**
+   * The child boxes of every node. The coordinates of a node start at
+   * <code>node * 24</code> and are ordered by minimal x, y, z and maximal x,
+   * y, z coordinate. Each of those groups contains the coordinate of the four
+   * children.
+   */
+  protected double[] boxes;
+  /**
+   * The four children of every node. Inner nodes are referenced by their
+   * index and leafs by the bitwise complement of their leaf index. Unused
+   * slots are {@link #EMPTY}.
+   */
+  protected int[] children;
+  /** The lower inclusive index in the triangle order of every leaf. */
+  private int[] leafFrom;
+  /** The upper exclusive index in the triangle order of every leaf. */
+  private int[] leafTo;
+  /** The number of leafs. */
+  private int leafCount;
+  /** The traversal state of each thread. */
+  private final ThreadLocal<Traversal> traversal = new ThreadLocal<Traversal>() {
+
+    @Override
+    protected Traversal initialValue() {
+      return new Traversal();
+    }
+
+  };
+
+  /**
+   * Creates a bounding volume hierarchy with four children per node.
+   *
+   * @param triangleThreshold The threshold when nodes are not being split
+   *          anymore because of the number of triangles in the node.
+   */
+  public QBVH(final int triangleThreshold) {
+    super(Integer.MAX_VALUE, triangleThreshold);
+  }
+
+  @Override
+  protected void build() {
+    super.build();
+    nodeCount = 0;
+    leafCount = 0;
+    wideDepth = 0;
+    final int inner = Math.max(1, countInner(root));
+    boxes = new double[inner * STRIDE];
+    children = new int[inner * WIDTH];
+    leafFrom = new int[inner * (WIDTH - 1) + 1];
+    leafTo = new int[leafFrom.length];
+    if(ts.size() > 0) {
+      if(root.isLeaf()) {
+        final int node = nodeCount++;
+        Arrays.fill(children, node * WIDTH, node * WIDTH + WIDTH, EMPTY);
+        setChild(node, 0, root.getBox(), ~addLeaf(root));
+      } else {
+        collapse(root, 0);
+      }
+    }
+    boxes = Arrays.copyOf(boxes, nodeCount * STRIDE);
+    children = Arrays.copyOf(children, nodeCount * WIDTH);
+    leafFrom = Arrays.copyOf(leafFrom, leafCount);
+    leafTo = Arrays.copyOf(leafTo, leafCount);
+    // the binary hierarchy is not needed anymore
+    root = null;
+    System.out.println("Depth of QBVH: " + wideDepth);
+    System.out.println("Nodes in QBVH: " + nodeCount);
+  }
+
+  /**
+   * Counts the inner nodes of a binary subtree.
+   *
+   * @param node The root of the subtree.
+   * @return The number of inner nodes.
+   */
+  private static int countInner(final Node node) {
+    if(node.isLeaf()) return 0;
+    return 1 + countInner(node.getLeft()) + countInner(node.getRight());
+  }
+
+  /**
+   * Adds a leaf.
+   *
+   * @param node The binary leaf.
+   * @return The leaf index.
+   */
+  private int addLeaf(final Node node) {
+    final int leaf = leafCount++;
+    leafFrom[leaf] = node.getFrom();
+    leafTo[leaf] = node.getTo();
+    return leaf;
+  }
+
+  /**
+   * Collapses a binary inner node and its subtree.
+   *
+   * @param node The binary inner node.
+   * @param depth The depth of the node in the collapsed hierarchy.
+   * @return The index of the node.
+   */
+  private int collapse(final Node node, final int depth) {
+    wideDepth = Math.max(wideDepth, depth);
+    final Node[] slots = new Node[WIDTH];
+    slots[0] = node.getLeft();
+    slots[1] = node.getRight();
+    int count = 2;
+    while(count < WIDTH) {
+      int best = -1;
+      double bestArea = Double.NEGATIVE_INFINITY;
+      for(int i = 0; i < count; ++i) {
+        if(slots[i].isLeaf()) {
+          continue;
+        }
+        final double area = area(slots[i].getBox());
+        if(area > bestArea) {
+          bestArea = area;
+          best = i;
+        }
+      }
+      if(best < 0) {
+        break;
+      }
+      final Node n = slots[best];
+      slots[best] = n.getLeft();
+      slots[count++] = n.getRight();
+    }
+    final int index = nodeCount++;
+    Arrays.fill(children, index * WIDTH, index * WIDTH + WIDTH, EMPTY);
+    for(int i = 0; i < count; ++i) {
+      final Node n = slots[i];
+      setChild(index, i, n.getBox(), n.isLeaf() ? ~addLeaf(n) : collapse(n, depth + 1));
+    }
+    return index;
+  }
+
+  /**
+   * Sets a child of a node.
+   *
+   * @param node The node.
+   * @param slot The slot of the child.
+   * @param box The bounding box of the child.
+   * @param child The reference to the child.
+   */
+  private void setChild(final int node, final int slot,
+      final BoundingBox box, final int child) {
+    final int b = node * STRIDE + slot;
+    final Vec4 min = box.get(true, true, true);
+    final Vec4 max = box.get(false, false, false);
+    boxes[b] = min.getX();
+    boxes[b + WIDTH] = min.getY();
+    boxes[b + 2 * WIDTH] = min.getZ();
+    boxes[b + 3 * WIDTH] = max.getX();
+    boxes[b + 4 * WIDTH] = max.getY();
+    boxes[b + 5 * WIDTH] = max.getZ();
+    children[node * WIDTH + slot] = child;
+  }
+
+  /**
+   * Sets the bounding box of a child.
+   *
+   * @param node The node.
+   * @param slot The slot of the child.
+   * @param bounds The minimal and maximal coordinates.
+   */
+  private void setBox(final int node, final int slot, final double[] bounds) {
+    final int b = node * STRIDE + slot;
+    for(int g = 0; g < 6; ++g) {
+      boxes[b + g * WIDTH] = bounds[g];
+    }
+  }
+
+  /**
+   * Grows the bounds by the bounding box of a child.
+   *
+   * @param bounds The bounds to grow.
+   * @param node The node.
+   * @param slot The slot of the child.
+   */
+  private void include(final double[] bounds, final int node, final int slot) {
+    final int b = node * STRIDE + slot;
+    for(int axis = 0; axis < 3; ++axis) {
+      bounds[axis] = Math.min(bounds[axis], boxes[b + axis * WIDTH]);
+      bounds[axis + 3] = Math.max(bounds[axis + 3], boxes[b + (axis + 3) * WIDTH]);
+    }
+  }
+
+  /**
+   * Updates the leaf boxes first and then the boxes of the inner nodes in
+   * reverse order. Since children come after their parent every inner node
+   * sees the updated boxes of its children.
+   */
+  @Override
+  protected void refitBounds(final ForkJoinPool fjp) {
+    if(nodeCount == 0) return;
+    fjp.invoke(new RefitLeafsAction(0, nodeCount));
+    final double[] bounds = new double[6];
+    for(int node = nodeCount - 1; node >= 0; --node) {
+      for(int slot = 0; slot < WIDTH; ++slot) {
+        final int child = children[node * WIDTH + slot];
+        if(child < 0) {
+          continue;
+        }
+        reset(bounds, 0);
+        for(int i = 0; i < WIDTH; ++i) {
+          if(children[child * WIDTH + i] != EMPTY) {
+            include(bounds, child, i);
+          }
+        }
+        setBox(node, slot, bounds);
+      }
+    }
+  }
+
+  /**
+   * Updates the boxes of the leaf children of a range of nodes.
+   *
+   * @param from The lower inclusive node.
+   * @param to The upper exclusive node.
+   */
+  void refitLeafs(final int from, final int to) {
+    final double[] bounds = new double[6];
+    for(int node = from; node < to; ++node) {
+      for(int slot = 0; slot < WIDTH; ++slot) {
+        final int child = children[node * WIDTH + slot];
+        if(child >= 0 || child == EMPTY) {
+          continue;
+        }
+        reset(bounds, 0);
+        final int leaf = ~child;
+        for(int i = leafFrom[leaf]; i < leafTo[leaf]; ++i) {
+          final int t = order[i];
+          for(int axis = 0; axis < 3; ++axis) {
+            bounds[axis] = Math.min(bounds[axis], ts.getMin(t, axis));
+            bounds[axis + 3] = Math.max(bounds[axis + 3], ts.getMax(t, axis));
+          }
+        }
+        setBox(node, slot, bounds);
+      }
+    }
+  }
+
+  @Override
+  protected double sahCost() {
+    if(nodeCount == 0) return 0;
+    final double[] bounds = new double[6];
+    reset(bounds, 0);
+    for(int slot = 0; slot < WIDTH; ++slot) {
+      if(children[slot] != EMPTY) {
+        include(bounds, 0, slot);
+      }
+    }
+    final double rootArea = area(bounds, 0);
+    if(!(rootArea > 0)) return 0;
+    double cost = rootArea * TRAVERSAL_COST;
+    for(int node = 0; node < nodeCount; ++node) {
+      for(int slot = 0; slot < WIDTH; ++slot) {
+        final int child = children[node * WIDTH + slot];
+        if(child == EMPTY) {
+          continue;
+        }
+        reset(bounds, 0);
+        include(bounds, node, slot);
+        final double area = area(bounds, 0);
+        cost += child < 0 ? area * (leafTo[~child] - leafFrom[~child])
+            : area * TRAVERSAL_COST;
+      }
+    }
+    return cost / rootArea;
+  }
+
+  /**
+   * Tests the four child boxes of a node against a ray.
+   *
+   * @param node The node.
+   * @param ox The x coordinate of the ray origin.
+   * @param oy The y coordinate of the ray origin.
+   * @param oz The z coordinate of the ray origin.
+   * @param ix The inverse x coordinate of the ray direction.
+   * @param iy The inverse y coordinate of the ray direction.
+   * @param iz The inverse z coordinate of the ray direction.
+   * @param near The minimal distance of the ray.
+   * @param far The maximal distance of the ray.
+   * @param dist Receives the entry distance of every child or a negative value
+   *          if the child is missed.
+   * @param c The test counter.
+   */
+  protected void intersect(final int node,
+      final double ox, final double oy, final double oz,
+      final double ix, final double iy, final double iz,
+      final double near, final double far, final double[] dist,
+      final TestCounter c) {
+    intersect(boxes, node * STRIDE, ox, oy, oz, ix, iy, iz, near, far, dist);
+    countChecks(node, c);
+  }
+
+  /**
+   * Counts a bounding box test for every used child slot of a node.
+   *
+   * @param node The node.
+   * @param c The test counter.
+   */
+  protected void countChecks(final int node, final TestCounter c) {
+    for(int i = 0; i < WIDTH; ++i) {
+      if(children[node * WIDTH + i] != EMPTY) {
+        c.addBBoxCheck();
+      }
+    }
+  }
+
+  /**
+   * Tests four boxes stored in the layout of {@link #boxes} against a ray. The
+   * slabs are intersected with the precomputed inverse direction. A division
+   * by a zero direction component results in infinite slab distances and the
+   * resulting NaN values for origins on a slab plane never restrict the
+   * interval.
+   *
+   * @param bx The box coordinates.
+   * @param b The offset of the boxes.
+   * @param ox The x coordinate of the ray origin.
+   * @param oy The y coordinate of the ray origin.
+   * @param oz The z coordinate of the ray origin.
+   * @param ix The inverse x coordinate of the ray direction.
+   * @param iy The inverse y coordinate of the ray direction.
+   * @param iz The inverse z coordinate of the ray direction.
+   * @param near The minimal distance of the ray.
+   * @param far The maximal distance of the ray.
+   * @param dist Receives the entry distance of every box or a negative value
+   *          if the box is missed.
+   */
+  protected static void intersect(final double[] bx, final int b,
+      final double ox, final double oy, final double oz,
+      final double ix, final double iy, final double iz,
+      final double near, final double far, final double[] dist) {
+    // the near and far planes of every axis depend on the direction sign
+    final int nx = ix >= 0 ? 0 : 3 * WIDTH;
+    final int ny = (iy >= 0 ? 0 : 3 * WIDTH) + WIDTH;
+    final int nz = (iz >= 0 ? 0 : 3 * WIDTH) + 2 * WIDTH;
+    final int fx = ix >= 0 ? 3 * WIDTH : 0;
+    final int fy = (iy >= 0 ? 3 * WIDTH : 0) + WIDTH;
+    final int fz = (iz >= 0 ? 3 * WIDTH : 0) + 2 * WIDTH;
+    for(int i = 0; i < WIDTH; ++i) {
+      final double tx0 = (bx[b + nx + i] - ox) * ix;
+      final double ty0 = (bx[b + ny + i] - oy) * iy;
+      final double tz0 = (bx[b + nz + i] - oz) * iz;
+      final double tx1 = (bx[b + fx + i] - ox) * ix;
+      final double ty1 = (bx[b + fy + i] - oy) * iy;
+      final double tz1 = (bx[b + fz + i] - oz) * iz;
+      double t0 = near;
+      t0 = tx0 > t0 ? tx0 : t0;
+      t0 = ty0 > t0 ? ty0 : t0;
+      t0 = tz0 > t0 ? tz0 : t0;
+      double t1 = far;
+      t1 = tx1 < t1 ? tx1 : t1;
+      t1 = ty1 < t1 ? ty1 : t1;
+      t1 = tz1 < t1 ? tz1 : t1;
+      dist[i] = t0 <= t1 ? t0 : -1;
+    }
+  }
+
+  @Override
+  public Hit getHit(final Ray r, final TestCounter c) {
+    if(nodeCount == 0) return new Hit(r, c);
+    final Traversal tr = traversal.get();
+    tr.nextRay(wideDepth);
+    final int[] nodes = tr.nodes;
+    final double[] distances = tr.distances;
+    final double[] childDist = tr.childDist;
+    final int[] hitSlots = tr.hitSlots;
+    final Vec4 o = r.getOrigin();
+    final Vec4 d = r.getDirection();
+    final double ox = o.getX();
+    final double oy = o.getY();
+    final double oz = o.getZ();
+    final double ix = 1 / d.getX();
+    final double iy = 1 / d.getY();
+    final double iz = 1 / d.getZ();
+    final double near = r.getNear();
+    final double far = r.getFar();
+    double minDist = Double.POSITIVE_INFINITY;
+    int index = -1;
+    int sp = 0;
+    nodes[sp] = 0;
+    distances[sp] = near;
+    ++sp;
+    while(sp > 0) {
+      --sp;
+      final int node = nodes[sp];
+      if(distances[sp] >= minDist) {
+        continue;
+      }
+      if(node < 0) {
+        final int leaf = ~node;
+        for(int i = leafFrom[leaf]; i < leafTo[leaf]; ++i) {
+          final int t = order[i];
+          final double dist = ts.hit(t, ox, oy, oz, d.getX(), d.getY(), d.getZ(), c);
+          if(r.isValidDistance(dist) && dist < minDist) {
+            minDist = dist;
+            index = t;
+          }
+        }
+        continue;
+      }
+      intersect(node, ox, oy, oz, ix, iy, iz, near, far, childDist, c);
+      // sorts the children that got hit by descending distance
+      int hits = 0;
+      for(int i = 0; i < WIDTH; ++i) {
+        final double dist = childDist[i];
+        if(children[node * WIDTH + i] == EMPTY || dist < 0 || dist >= minDist) {
+          continue;
+        }
+        int j = hits++;
+        while(j > 0 && childDist[hitSlots[j - 1]] < dist) {
+          hitSlots[j] = hitSlots[j - 1];
+          --j;
+        }
+        hitSlots[j] = i;
+      }
+      // the nearest child ends up on top of the stack
+      for(int i = 0; i < hits; ++i) {
+        nodes[sp] = children[node * WIDTH + hitSlots[i]];
+        distances[sp] = childDist[hitSlots[i]];
+        ++sp;
+      }
+    }
+    if(index < 0) return new Hit(r, c);
+    return new Hit(r, ts.getTriangle(index), index, minDist, c);
+  }
+
+  /** The collapsed hierarchy traces every ray of a packet on its own. */
+  @Override
+  public void getHits(final Ray[] packet, final TestCounter[] counters, final Hit[] hits) {
+    for(int i = 0; i < packet.length; ++i) {
+      hits[i] = getHit(packet[i], counters[i]);
+    }
+  }
+
+}
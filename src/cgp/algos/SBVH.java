@@ -0,0 +1,769 @@
+package cgp.algos;
+
+import java.util.Arrays;
+
+import cgp.data.BoundingBox;
+import cgp.data.Ray;
+import cgp.data.Vec4;
+import cgp.tracer.Hit;
+import cgp.tracer.TestCounter;
+
+/**
+ * A bounding volume hierarchy with spatial splits. Every node chooses between
+ * the best object split, which partitions the triangle references by their
+ * centroids, and the best spatial split, which cuts the node at a plane and
+ * puts triangles crossing the plane into both children with their bounding
+ * boxes clipped to the respective side. Spatial splits are only considered
+ * when the children of the object split overlap and as long as the number of
+ * additional references stays within the duplication budget. Long and thin
+ * triangles thereby no longer inflate the bounding boxes of whole subtrees.
+ * Since a triangle can be referenced by multiple leafs the traversal uses a
+ * mailbox to test every triangle only once per ray.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class SBVH extends BVH {
+
+  /** The number of bins used to find spatial split candidates. */
+  private static final int SPATIAL_BINS = 32;
+  /**
+   * The overlap of the object split children relative to the surface area of
+   * the root above which spatial splits are tried.
+   */
+  private static final double OVERLAP_THRESHOLD = 1e-5;
+
+  /**
+   * The maximum number of additional references relative to the number of
+   * triangles.
+   */
+  protected final double duplicationBudget;
+
+  /** The traversal state of every thread. */
+  private final ThreadLocal<Traversal> traversal = new ThreadLocal<Traversal>() {
+
+    @Override
+    protected Traversal initialValue() {
+      return new Traversal();
+    }
+
+  };
+
+  /** The bounds of every reference. Only used while building. */
+  private double[] refBounds;
+  /** The triangle of every reference. Only used while building. */
+  private int[] refTris;
+  /** The number of references. Only used while building. */
+  private int refCount;
+  /** The maximum number of references. Only used while building. */
+  private int refLimit;
+  /** Half the surface area of the root. Only used while building. */
+  private double rootArea;
+  /** The number of references in leafs. Only used while building. */
+  private int orderCount;
+
+  /**
+   * Creates a bounding volume hierarchy with spatial splits.
+   *
+   * @param triangleThreshold The triangle threshold.
+   * @param duplicationBudget The maximum number of additional references
+   *          relative to the number of triangles. A budget of <code>0</code>
+   *          disables spatial splits.
+   */
+  public SBVH(final int triangleThreshold, final double duplicationBudget) {
+    super(Integer.MAX_VALUE, triangleThreshold);
+    if(!(duplicationBudget >= 0)) throw new IllegalArgumentException(
+        "" + duplicationBudget);
+    this.duplicationBudget = duplicationBudget;
+  }
+
+  @Override
+  protected void build() {
+    maximumDepth = 0;
+    final int size = ts.size();
+    refLimit = size + (int) (size * duplicationBudget);
+    refBounds = new double[size * 6];
+    refTris = new int[size];
+    refCount = size;
+    final int[] refs = new int[size];
+    for(int i = 0; i < size; ++i) {
+      refs[i] = i;
+      refTris[i] = i;
+      for(int axis = 0; axis < 3; ++axis) {
+        refBounds[i * 6 + axis] = ts.getMin(i, axis);
+        refBounds[i * 6 + axis + 3] = ts.getMax(i, axis);
+      }
+    }
+    final double[] bounds = new double[6];
+    computeBounds(refs, bounds, new double[6]);
+    rootArea = area(bounds, 0);
+    order = new int[size];
+    orderCount = 0;
+    try {
+      root = buildNode(refs, 0);
+      order = Arrays.copyOf(order, orderCount);
+    } finally {
+      refBounds = null;
+      refTris = null;
+    }
+    System.out.println("Depth of SBVH: " + maximumDepth);
+    System.out.println("Bounding boxes in SBVH: " + root.countBoundingBoxes());
+    System.out.println("References in SBVH: " + orderCount + " for " + size + " triangles");
+  }
+
+  /**
+   * Computes the bounds of the references and of their centroids.
+   *
+   * @param refs The references.
+   * @param bounds The minimal and maximal coordinates of the references.
+   * @param cBounds The minimal and maximal coordinates of the centroids.
+   */
+  private void computeBounds(final int[] refs, final double[] bounds,
+      final double[] cBounds) {
+    reset(bounds, 0);
+    reset(cBounds, 0);
+    for(final int ref : refs) {
+      union(bounds, refBounds, ref * 6);
+      for(int axis = 0; axis < 3; ++axis) {
+        final double center = centroid(ref, axis);
+        cBounds[axis] = Math.min(cBounds[axis], center);
+        cBounds[axis + 3] = Math.max(cBounds[axis + 3], center);
+      }
+    }
+  }
+
+  /**
+   * Getter.
+   *
+   * @param ref The reference.
+   * @param axis The axis.
+   * @return The center of the bounds of the reference on the axis.
+   */
+  private double centroid(final int ref, final int axis) {
+    return (refBounds[ref * 6 + axis] + refBounds[ref * 6 + axis + 3]) * 0.5;
+  }
+
+  /**
+   * Builds the subtree for the given references. When neither an object split
+   * nor a spatial split is cheaper than a leaf the references are not split
+   * unless there are more than {@link #MAX_LEAF_SIZE} of them. Then they are
+   * split at the median centroid on the longest axis of the centroid bounds.
+   *
+   * @param refs The references.
+   * @param depth The depth of the node.
+   * @return The node.
+   */
+  private Node buildNode(final int[] refs, final int depth) {
+    maximumDepth = Math.max(depth, maximumDepth);
+    final double[] bounds = new double[6];
+    final double[] cBounds = new double[6];
+    computeBounds(refs, bounds, cBounds);
+    final BoundingBox box = new BoundingBox(
+        new Vec4(bounds[0], bounds[1], bounds[2], true),
+        new Vec4(bounds[3], bounds[4], bounds[5], true));
+    if(refs.length <= triangleThreshold || depth >= depthThreshold) return leaf(box, refs);
+    final ObjectSplit os = new ObjectSplit(refs, bounds, cBounds);
+    SpatialSplit ss = null;
+    if(os.overlap / rootArea > OVERLAP_THRESHOLD && refCount < refLimit) {
+      ss = new SpatialSplit(refs, bounds);
+    }
+    final int[][] parts;
+    if(ss != null && ss.axis >= 0 && ss.cost < os.cost) {
+      parts = ss.partition(refs);
+    } else if(os.axis >= 0) {
+      parts = os.partition(refs);
+    } else {
+      if(refs.length <= MAX_LEAF_SIZE) return leaf(box, refs);
+      parts = medianSplit(refs, cBounds);
+    }
+    if(parts[0].length == 0 || parts[1].length == 0) return leaf(box, refs);
+    final Node node = new Node(box, -1, -1);
+    node.setChildren(buildNode(parts[0], depth + 1), buildNode(parts[1], depth + 1));
+    return node;
+  }
+
+  /**
+   * Splits the references at the median centroid on the longest axis of the
+   * centroid bounds.
+   *
+   * @param refs The references.
+   * @param cBounds The bounds of the centroids.
+   * @return The references of the left and of the right child.
+   */
+  private int[][] medianSplit(final int[] refs, final double[] cBounds) {
+    int axis = 0;
+    for(int a = 1; a < 3; ++a) {
+      if(cBounds[a + 3] - cBounds[a] > cBounds[axis + 3] - cBounds[axis]) {
+        axis = a;
+      }
+    }
+    final int[] sorted = refs.clone();
+    final int mid = sorted.length / 2;
+    // unless all centroids coincide and every split is equally good
+    if(cBounds[axis + 3] > cBounds[axis]) {
+      int lo = 0;
+      int hi = sorted.length - 1;
+      while(lo < hi) {
+        // median of three
+        final int m = (lo + hi) >>> 1;
+        if(less(sorted[m], sorted[lo], axis)) {
+          swap(sorted, m, lo);
+        }
+        if(less(sorted[hi], sorted[lo], axis)) {
+          swap(sorted, hi, lo);
+        }
+        if(less(sorted[hi], sorted[m], axis)) {
+          swap(sorted, hi, m);
+        }
+        final int pivot = sorted[m];
+        int i = lo;
+        int j = hi;
+        while(i <= j) {
+          while(less(sorted[i], pivot, axis)) {
+            ++i;
+          }
+          while(less(pivot, sorted[j], axis)) {
+            --j;
+          }
+          if(i <= j) {
+            swap(sorted, i++, j--);
+          }
+        }
+        if(mid <= j) {
+          hi = j;
+        } else if(mid >= i) {
+          lo = i;
+        } else {
+          break;
+        }
+      }
+    }
+    return new int[][] {
+        Arrays.copyOfRange(sorted, 0, mid), Arrays.copyOfRange(sorted, mid, sorted.length)
+    };
+  }
+
+  /**
+   * Compares two references by their centroid and their index.
+   *
+   * @param a The first reference.
+   * @param b The second reference.
+   * @param axis The axis.
+   * @return Whether the first reference comes before the second.
+   */
+  private boolean less(final int a, final int b, final int axis) {
+    final int cmp = Double.compare(centroid(a, axis), centroid(b, axis));
+    return cmp < 0 || (cmp == 0 && a < b);
+  }
+
+  /**
+   * Swaps two references.
+   *
+   * @param refs The references.
+   * @param a The first position.
+   * @param b The second position.
+   */
+  private static void swap(final int[] refs, final int a, final int b) {
+    final int tmp = refs[a];
+    refs[a] = refs[b];
+    refs[b] = tmp;
+  }
+
+  /**
+   * Creates a leaf.
+   *
+   * @param box The bounding box.
+   * @param refs The references.
+   * @return The leaf.
+   */
+  private Node leaf(final BoundingBox box, final int[] refs) {
+    if(orderCount + refs.length > order.length) {
+      order = Arrays.copyOf(order, Math.max(order.length * 2, orderCount + refs.length));
+    }
+    final int from = orderCount;
+    for(final int ref : refs) {
+      order[orderCount++] = refTris[ref];
+    }
+    return new Node(box, from, orderCount);
+  }
+
+  /**
+   * Adds a reference.
+   *
+   * @param tri The triangle.
+   * @param bounds The bounds.
+   * @return The reference.
+   */
+  private int addRef(final int tri, final double[] bounds) {
+    if(refCount * 6 >= refBounds.length) {
+      final int capacity = Math.min(refLimit, Math.max(refCount * 2, 16));
+      refBounds = Arrays.copyOf(refBounds, capacity * 6);
+      refTris = Arrays.copyOf(refTris, capacity);
+    }
+    final int ref = refCount++;
+    refTris[ref] = tri;
+    System.arraycopy(bounds, 0, refBounds, ref * 6, 6);
+    return ref;
+  }
+
+  /**
+   * The best object split of a node. The references are binned by their
+   * centroids and evaluated with the surface area heuristic.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private final class ObjectSplit {
+
+    /** The cost of the split. */
+    private final double cost;
+    /**
+     * The axis of the split or <code>-1</code> if no split is cheaper than a
+     * leaf.
+     */
+    private final int axis;
+    /** The last bin of the left child. */
+    private final int bin;
+    /** The minimal centroid coordinate on the axis. */
+    private final double cMin;
+    /** The number of bins per unit. */
+    private final double scale;
+    /** Half the surface area of the overlap of both children. */
+    private final double overlap;
+
+    /**
+     * Finds the best object split.
+     *
+     * @param refs The references.
+     * @param bounds The bounds of the references.
+     * @param cBounds The bounds of the centroids.
+     */
+    public ObjectSplit(final int[] refs, final double[] bounds, final double[] cBounds) {
+      final int count = refs.length;
+      final int[] binCount = new int[BINS];
+      final double[] binBounds = new double[BINS * 6];
+      final double[] rightBounds = new double[BINS * 6];
+      final double[] acc = new double[6];
+      final double nodeArea = area(bounds, 0);
+      double bestCost = count;
+      int bestAxis = -1;
+      int bestBin = -1;
+      double bestOverlap = 0;
+      for(int a = 0; a < 3; ++a) {
+        final double min = cBounds[a];
+        final double extent = cBounds[a + 3] - min;
+        if(!(extent > 0)) {
+          continue;
+        }
+        final double s = BINS / extent;
+        Arrays.fill(binCount, 0);
+        for(int b = 0; b < BINS; ++b) {
+          reset(binBounds, b * 6);
+        }
+        for(final int ref : refs) {
+          final int b = bin(centroid(ref, a), min, s, BINS);
+          ++binCount[b];
+          include(binBounds, b * 6, refBounds, ref * 6);
+        }
+        reset(acc, 0);
+        for(int b = BINS - 1; b > 0; --b) {
+          union(acc, binBounds, b * 6);
+          System.arraycopy(acc, 0, rightBounds, b * 6, 6);
+        }
+        reset(acc, 0);
+        int leftCount = 0;
+        for(int b = 0; b < BINS - 1; ++b) {
+          union(acc, binBounds, b * 6);
+          leftCount += binCount[b];
+          final int rightCount = count - leftCount;
+          if(leftCount == 0 || rightCount == 0) {
+            continue;
+          }
+          final double cost = TRAVERSAL_COST + (area(acc, 0) * leftCount
+              + area(rightBounds, (b + 1) * 6) * rightCount) / nodeArea;
+          if(cost < bestCost) {
+            bestCost = cost;
+            bestAxis = a;
+            bestBin = b;
+            bestOverlap = overlap(acc, rightBounds, (b + 1) * 6);
+          }
+        }
+      }
+      cost = bestCost;
+      axis = bestAxis;
+      bin = bestBin;
+      cMin = bestAxis < 0 ? 0 : cBounds[bestAxis];
+      scale = bestAxis < 0 ? 0 : BINS / (cBounds[bestAxis + 3] - cMin);
+      overlap = bestOverlap;
+    }
+
+    /**
+     * Partitions the references.
+     *
+     * @param refs The references.
+     * @return The references of the left and of the right child.
+     */
+    public int[][] partition(final int[] refs) {
+      final int[] left = new int[refs.length];
+      final int[] right = new int[refs.length];
+      int l = 0;
+      int r = 0;
+      for(final int ref : refs) {
+        if(bin(centroid(ref, axis), cMin, scale, BINS) <= bin) {
+          left[l++] = ref;
+        } else {
+          right[r++] = ref;
+        }
+      }
+      return new int[][] { Arrays.copyOf(left, l), Arrays.copyOf(right, r)};
+    }
+
+  } // ObjectSplit
+
+  /**
+   * The best spatial split of a node. The node is divided into slabs along
+   * each axis. Every reference is clipped to each slab it spans and entering
+   * and leaving references are counted to evaluate the split planes between
+   * the slabs with the surface area heuristic.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private final class SpatialSplit {
+
+    /** The cost of the split. */
+    private final double cost;
+    /**
+     * The axis of the split or <code>-1</code> if no split is cheaper than a
+     * leaf.
+     */
+    private final int axis;
+    /** The position of the split plane. */
+    private final double plane;
+
+    /**
+     * Finds the best spatial split.
+     *
+     * @param refs The references.
+     * @param bounds The bounds of the node.
+     */
+    public SpatialSplit(final int[] refs, final double[] bounds) {
+      final int count = refs.length;
+      final int[] entries = new int[SPATIAL_BINS];
+      final int[] exits = new int[SPATIAL_BINS];
+      final double[] binBounds = new double[SPATIAL_BINS * 6];
+      final double[] rightBounds = new double[SPATIAL_BINS * 6];
+      final double[] acc = new double[6];
+      final double[] clipped = new double[6];
+      final double nodeArea = area(bounds, 0);
+      double bestCost = count;
+      int bestAxis = -1;
+      double bestPlane = 0;
+      for(int a = 0; a < 3; ++a) {
+        final double min = bounds[a];
+        final double extent = bounds[a + 3] - min;
+        if(!(extent > 0)) {
+          continue;
+        }
+        final double width = extent / SPATIAL_BINS;
+        final double s = SPATIAL_BINS / extent;
+        Arrays.fill(entries, 0);
+        Arrays.fill(exits, 0);
+        for(int b = 0; b < SPATIAL_BINS; ++b) {
+          reset(binBounds, b * 6);
+        }
+        for(final int ref : refs) {
+          final int first = bin(refBounds[ref * 6 + a], min, s, SPATIAL_BINS);
+          final int last = bin(refBounds[ref * 6 + a + 3], min, s, SPATIAL_BINS);
+          ++entries[first];
+          ++exits[last];
+          for(int b = first; b <= last; ++b) {
+            final double lo = b == 0 ? Double.NEGATIVE_INFINITY : min + b * width;
+            final double hi = b == SPATIAL_BINS - 1
+                ? Double.POSITIVE_INFINITY : min + (b + 1) * width;
+            if(clip(ref, a, lo, hi, clipped)) {
+              include(binBounds, b * 6, clipped, 0);
+            }
+          }
+        }
+        reset(acc, 0);
+        for(int b = SPATIAL_BINS - 1; b > 0; --b) {
+          union(acc, binBounds, b * 6);
+          System.arraycopy(acc, 0, rightBounds, b * 6, 6);
+        }
+        reset(acc, 0);
+        int leftCount = 0;
+        int rightCount = count;
+        for(int b = 0; b < SPATIAL_BINS - 1; ++b) {
+          union(acc, binBounds, b * 6);
+          leftCount += entries[b];
+          rightCount -= exits[b];
+          if(leftCount == 0 || rightCount == 0) {
+            continue;
+          }
+          final double cost = TRAVERSAL_COST + (area(acc, 0) * leftCount
+              + area(rightBounds, (b + 1) * 6) * rightCount) / nodeArea;
+          if(cost < bestCost) {
+            bestCost = cost;
+            bestAxis = a;
+            bestPlane = min + (b + 1) * width;
+          }
+        }
+      }
+      cost = bestCost;
+      axis = bestAxis;
+      plane = bestPlane;
+    }
+
+    /**
+     * Partitions the references. References crossing the plane are put into
+     * both children as long as the duplication budget allows it. Otherwise
+     * they are put into the child containing their centroid.
+     *
+     * @param refs The references.
+     * @return The references of the left and of the right child.
+     */
+    public int[][] partition(final int[] refs) {
+      final int[] left = new int[refs.length];
+      final int[] right = new int[refs.length];
+      final double[] lb = new double[6];
+      final double[] rb = new double[6];
+      int l = 0;
+      int r = 0;
+      for(final int ref : refs) {
+        final double lo = refBounds[ref * 6 + axis];
+        final double hi = refBounds[ref * 6 + axis + 3];
+        if(hi <= plane) {
+          left[l++] = ref;
+          continue;
+        }
+        if(lo >= plane) {
+          right[r++] = ref;
+          continue;
+        }
+        final boolean inLeft = clip(ref, axis, Double.NEGATIVE_INFINITY, plane, lb);
+        final boolean inRight = clip(ref, axis, plane, Double.POSITIVE_INFINITY, rb);
+        if(inLeft && inRight && refCount < refLimit) {
+          System.arraycopy(lb, 0, refBounds, ref * 6, 6);
+          left[l++] = ref;
+          right[r++] = addRef(refTris[ref], rb);
+        } else if(inLeft && (!inRight || centroid(ref, axis) < plane)) {
+          left[l++] = ref;
+        } else {
+          right[r++] = ref;
+        }
+      }
+      return new int[][] { Arrays.copyOf(left, l), Arrays.copyOf(right, r)};
+    }
+
+  } // SpatialSplit
+
+  /**
+   * The state of a traversal. Every thread has its own state.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class Traversal {
+
+    /** The mailbox of already tested triangles. */
+    private final Mailbox mailbox = new Mailbox(0);
+    /** The distance of the closest hit. */
+    private double dist;
+    /** The index of the closest triangle or <code>-1</code>. */
+    private int index;
+
+    /**
+     * Prepares the state for a new ray.
+     *
+     * @param triangles The number of triangles.
+     */
+    public void nextRay(final int triangles) {
+      mailbox.nextRay(triangles);
+      dist = Double.POSITIVE_INFINITY;
+      index = -1;
+    }
+
+  } // Traversal
+
+  @Override
+  public Hit getHit(final Ray r, final TestCounter c) {
+    if(root.getBox().intersects(r, c) < 0) return new Hit(r, c);
+    final Traversal tr = traversal.get();
+    tr.nextRay(ts.size());
+    getHit(root, r, c, tr);
+    if(tr.index < 0) return new Hit(r, c);
+    return new Hit(r, ts.getTriangle(tr.index), tr.index, tr.dist, c);
+  }
+
+  /**
+   * Tests for the closest hit in a subtree. Triangles that have already been
+   * tested for the ray in another leaf are skipped.
+   *
+   * @param node The root of the subtree.
+   * @param r The ray.
+   * @param c The test counter.
+   * @param tr The traversal state. The result is stored here.
+   */
+  private void getHit(final Node node, final Ray r, final TestCounter c,
+      final Traversal tr) {
+    if(node.isLeaf()) {
+      for(int i = node.getFrom(); i < node.getTo(); ++i) {
+        final int index = order[i];
+        if(!tr.mailbox.visit(index)) {
+          continue;
+        }
+        final double dist = ts.hit(index, r, c);
+        if(r.isValidDistance(dist) && dist < tr.dist) {
+          tr.dist = dist;
+          tr.index = index;
+        }
+      }
+      return;
+    }
+    final Node left = node.getLeft();
+    final Node right = node.getRight();
+    final double dl = left.getBox().intersects(r, c);
+    final double dr = right.getBox().intersects(r, c);
+    final boolean leftFirst = dr < 0 || (dl >= 0 && dl <= dr);
+    final double dn = leftFirst ? dl : dr;
+    final double df = leftFirst ? dr : dl;
+    if(dn >= 0 && dn < tr.dist) {
+      getHit(leftFirst ? left : right, r, c, tr);
+    }
+    if(df >= 0 && df < tr.dist) {
+      getHit(leftFirst ? right : left, r, c, tr);
+    }
+  }
+
+  /** The mailbox is per ray so every ray of a packet is traced on its own. */
+  @Override
+  public void getHits(final Ray[] packet, final TestCounter[] counters, final Hit[] hits) {
+    for(int i = 0; i < packet.length; ++i) {
+      hits[i] = getHit(packet[i], counters[i]);
+    }
+  }
+
+  /**
+   * Computes the bounds of the part of the triangle of a reference that lies
+   * within a slab. The result is intersected with the current bounds of the
+   * reference. Intersection points with the slab planes are placed exactly on
+   * the plane.
+   *
+   * @param ref The reference.
+   * @param axis The axis of the slab.
+   * @param lo The lower plane of the slab.
+   * @param hi The upper plane of the slab.
+   * @param out Receives the minimal and maximal coordinates.
+   * @return Whether the triangle intersects the slab within the bounds of the
+   *         reference.
+   */
+  private boolean clip(final int ref, final int axis,
+      final double lo, final double hi, final double[] out) {
+    reset(out, 0);
+    final int tri = refTris[ref];
+    for(int corner = 0; corner < 3; ++corner) {
+      final int v = ts.getVertex(tri, corner);
+      final int w = ts.getVertex(tri, (corner + 1) % 3);
+      final double va = ts.getCoord(v, axis);
+      final double wa = ts.getCoord(w, axis);
+      if(va >= lo && va <= hi) {
+        for(int a = 0; a < 3; ++a) {
+          grow(out, a, ts.getCoord(v, a));
+        }
+      }
+      clipEdge(v, w, va, wa, axis, lo, out);
+      clipEdge(v, w, va, wa, axis, hi, out);
+    }
+    final int b = ref * 6;
+    for(int a = 0; a < 3; ++a) {
+      out[a] = Math.max(out[a], refBounds[b + a]);
+      out[a + 3] = Math.min(out[a + 3], refBounds[b + a + 3]);
+      if(out[a] > out[a + 3]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Grows the bounds by the intersection point of an edge with a plane.
+   *
+   * @param v The first vertex of the edge.
+   * @param w The second vertex of the edge.
+   * @param va The coordinate of the first vertex on the axis.
+   * @param wa The coordinate of the second vertex on the axis.
+   * @param axis The axis.
+   * @param plane The position of the plane. Infinite planes are ignored.
+   * @param out The bounds.
+   */
+  private void clipEdge(final int v, final int w, final double va, final double wa,
+      final int axis, final double plane, final double[] out) {
+    if(!((va < plane && wa > plane) || (va > plane && wa < plane))) return;
+    final double t = (plane - va) / (wa - va);
+    for(int a = 0; a < 3; ++a) {
+      if(a == axis) {
+        grow(out, a, plane);
+        continue;
+      }
+      final double vc = ts.getCoord(v, a);
+      grow(out, a, vc + (ts.getCoord(w, a) - vc) * t);
+    }
+  }
+
+  /**
+   * Grows the bounds by a coordinate.
+   *
+   * @param out The bounds.
+   * @param axis The axis.
+   * @param value The coordinate.
+   */
+  private static void grow(final double[] out, final int axis, final double value) {
+    out[axis] = Math.min(out[axis], value);
+    out[axis + 3] = Math.max(out[axis + 3], value);
+  }
+
+  /**
+   * Grows bounds by other bounds.
+   *
+   * @param dest The bounds array to grow.
+   * @param off The offset of the bounds to grow.
+   * @param src The other bounds array.
+   * @param srcOff The offset of the other bounds.
+   */
+  private static void include(final double[] dest, final int off,
+      final double[] src, final int srcOff) {
+    for(int axis = 0; axis < 3; ++axis) {
+      dest[off + axis] = Math.min(dest[off + axis], src[srcOff + axis]);
+      dest[off + axis + 3] = Math.max(dest[off + axis + 3], src[srcOff + axis + 3]);
+    }
+  }
+
+  /**
+   * Computes the bin of a coordinate.
+   *
+   * @param value The coordinate.
+   * @param min The minimal coordinate.
+   * @param scale The number of bins per unit.
+   * @param bins The number of bins.
+   * @return The bin.
+   */
+  private static int bin(final double value, final double min,
+      final double scale, final int bins) {
+    final int b = (int) ((value - min) * scale);
+    return Math.max(0, Math.min(bins - 1, b));
+  }
+
+  /**
+   * Computes half the surface area of the overlap of two bounds.
+   *
+   * @param a The first bounds.
+   * @param b The second bounds array.
+   * @param off The offset of the second bounds.
+   * @return Half the surface area of the overlap or <code>0</code> if the
+   *         bounds do not overlap.
+   */
+  private static double overlap(final double[] a, final double[] b, final int off) {
+    final double[] o = new double[6];
+    for(int axis = 0; axis < 3; ++axis) {
+      o[axis] = Math.max(a[axis], b[off + axis]);
+      o[axis + 3] = Math.min(a[axis + 3], b[off + axis + 3]);
+    }
+    return area(o, 0);
+  }
+
+}
@@ -0,0 +1,180 @@
+package cgp.algos;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import cgp.data.AffineTransform4;
+import cgp.data.Triangle;
+import cgp.io.MeshLoader;
+
+/**
+ * A scene consisting of instances of meshes. Every mesh is stored only once
+ * in object space no matter how many instances use it.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class Scene {
+
+  /** The unique meshes. */
+  private final List<Triangles> meshes = new ArrayList<>();
+  /** The mesh of every instance. */
+  private final List<Triangles> instanceMeshes = new ArrayList<>();
+  /** The transformation from object space to world space of every instance. */
+  private final List<AffineTransform4> transforms = new ArrayList<>();
+
+  /** Removes all meshes and instances. */
+  public void clear() {
+    meshes.clear();
+    instanceMeshes.clear();
+    transforms.clear();
+  }
+
+  /**
+   * Loads a mesh. The mesh is not visible until an instance of it is added.
+   *
+   * @param loader The mesh loader.
+   * @param aff The transformation applied to the mesh while loading.
+   * @return The mesh.
+   * @throws IOException I/O Exception.
+   */
+  public Triangles addMesh(final MeshLoader loader, final AffineTransform4 aff)
+      throws IOException {
+    final Triangles ts = new Triangles();
+    ts.setTriangles(loader, aff);
+    meshes.add(ts);
+    return ts;
+  }
+
+  /**
+   * Adds an instance of a mesh.
+   *
+   * @param mesh The mesh. The mesh must be loaded by
+   *          {@link #addMesh(MeshLoader, AffineTransform4)}.
+   * @param toWorld The transformation from object space to world space.
+   */
+  public void addInstance(final Triangles mesh, final AffineTransform4 toWorld) {
+    if(!meshes.contains(mesh)) throw new IllegalArgumentException("unknown mesh");
+    instanceMeshes.add(mesh);
+    transforms.add(Objects.requireNonNull(toWorld));
+  }
+
+  /**
+   * Loads a mesh and adds a single instance of it. The mesh is stored in world
+   * space.
+   *
+   * @param loader The mesh loader.
+   * @param aff The transformation applied to the mesh while loading.
+   * @throws IOException I/O Exception.
+   */
+  public void addObject(final MeshLoader loader, final AffineTransform4 aff)
+      throws IOException {
+    addInstance(addMesh(loader, aff), AffineTransform4.IDENTITY);
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of instances.
+   */
+  public int instanceCount() {
+    return instanceMeshes.size();
+  }
+
+  /**
+   * Getter.
+   *
+   * @param instance The instance.
+   * @return The mesh of the instance in object space.
+   */
+  public Triangles getMesh(final int instance) {
+    return instanceMeshes.get(instance);
+  }
+
+  /**
+   * Getter.
+   *
+   * @param instance The instance.
+   * @return The transformation from object space to world space.
+   */
+  public AffineTransform4 getTransform(final int instance) {
+    return transforms.get(instance);
+  }
+
+  /**
+   * Getter.
+   *
+   * @param instance The instance.
+   * @param index The triangle index within the mesh of the instance.
+   * @return The triangle in world space. The triangle is created for every
+   *         call.
+   */
+  public Triangle getTriangle(final int instance, final int index) {
+    final Triangle t = getMesh(instance).getTriangle(index);
+    final AffineTransform4 aff = getTransform(instance);
+    return aff == AffineTransform4.IDENTITY ? t : aff.transform(t);
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of triangles in the scene. Triangles of meshes with
+   *         multiple instances are counted multiple times.
+   */
+  public int size() {
+    int size = 0;
+    for(final Triangles ts : instanceMeshes) {
+      size += ts.size();
+    }
+    return size;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of triangles that are actually stored.
+   */
+  public int storedSize() {
+    int size = 0;
+    for(final Triangles ts : meshes) {
+      size += ts.size();
+    }
+    return size;
+  }
+
+  /**
+   * Creates a data structure for the scene. A scene with a single untransformed
+   * instance is stored directly in a data structure created by the factory.
+   * Otherwise one data structure is built for every mesh that is used by an
+   * instance and an {@link InstanceTree} is built over the instances.
+   *
+   * @param factory Creates the data structures for the meshes.
+   * @param cache The cache used to build the data structures for the meshes.
+   * @return The filled data structure.
+   */
+  public Hitter createHitter(final HitterFactory factory, final HitterCache cache) {
+    if(instanceCount() == 1 && getTransform(0) == AffineTransform4.IDENTITY) {
+      final Hitter ht = factory.create();
+      cache.fromTriangles(ht, getMesh(0));
+      return ht;
+    }
+    final Map<Triangles, Hitter> objects = new IdentityHashMap<>();
+    final InstanceTree tree = new InstanceTree();
+    for(int i = 0; i < instanceCount(); ++i) {
+      final Triangles mesh = getMesh(i);
+      Hitter ht = objects.get(mesh);
+      if(ht == null) {
+        ht = factory.create();
+        cache.fromTriangles(ht, mesh);
+        objects.put(mesh, ht);
+      }
+      tree.addInstance(ht, getTransform(i));
+    }
+    tree.fromInstances();
+    return tree;
+  }
+
+}
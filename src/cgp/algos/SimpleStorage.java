@@ -1,7 +1,6 @@
 package cgp.algos;
 
 import cgp.data.Ray;
-import cgp.data.Triangle;
 import cgp.tracer.Hit;
 import cgp.tracer.TestCounter;
 
@@ -20,15 +19,16 @@ public class SimpleStorage extends Hitter {
   @Override
   public Hit getHit(final Ray r, final TestCounter c) {
     double minDist = Double.POSITIVE_INFINITY;
-    Triangle curBest = null;
-    for(final Triangle t : ts.getList()) {
-      final double dist = t.hit(r, c);
+    int curBest = -1;
+    for(int t = 0; t < ts.size(); ++t) {
+      final double dist = ts.hit(t, r, c);
       if(r.isValidDistance(dist) && dist < minDist) {
         minDist = dist;
         curBest = t;
       }
     }
-    return new Hit(r, curBest, minDist, c);
+    if(curBest < 0) return new Hit(r, c);
+    return new Hit(r, ts.getTriangle(curBest), curBest, minDist, c);
   }
 
 }
@@ -1,6 +1,6 @@
 package cgp.algos;
 
-import cgp.data.Triangle;
+import cgp.data.IndexedMesh;
 
 /**
  * A triangle storage data structure.
@@ -10,10 +10,10 @@ import cgp.data.Triangle;
 public interface TriangleStorage {
 
   /**
-   * Adds a triangles to the storage.
+   * Adds all triangles of a mesh to the storage.
    * 
-   * @param t The triangle to add.
+   * @param mesh The mesh to add.
    */
-  void addTriangle(Triangle t);
+  void addMesh(IndexedMesh mesh);
 
 }
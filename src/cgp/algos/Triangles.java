@@ -1,27 +1,61 @@
 package cgp.algos;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
 
 import cgp.data.AffineTransform4;
+import cgp.data.IndexedMesh;
+import cgp.data.Ray;
 import cgp.data.Triangle;
+import cgp.data.Vec4;
 import cgp.io.MeshLoader;
+import cgp.tracer.TestCounter;
 
 /**
- * Stores the triangles.
+ * Stores the triangles as an indexed mesh. The vertices are stored in flat
+ * arrays and every triangle references its corners by their vertex index.
+ * Additionally the first corner and the two edges of every triangle are
+ * stored consecutively for the intersection test. Triangle objects are only
+ * created on demand.
  *
  * @author Joschi <josua.krause@gmail.com>
  */
 public class Triangles {
 
-  /** The list of triangles. */
-  private List<Triangle> triangles;
+  /** The x, y, and z coordinates of every vertex. */
+  private double[] vertices = new double[0];
+  /**
+   * The x, y, and z coordinates of the normal of every vertex. Vertices of
+   * triangles in {@link #flat} have no normal.
+   */
+  private double[] normals = new double[0];
+  /** The three vertex indices of every triangle. */
+  private int[] faces = new int[0];
+  /**
+   * The first corner, the edge to the second corner, and the edge to the
+   * third corner of every triangle as nine consecutive coordinates.
+   */
+  private double[] edges = new double[0];
+  /** The triangles that use their face normal instead of vertex normals. */
+  private final BitSet flat = new BitSet();
+  /** The number of vertices. */
+  private int vertexCount;
+  /** The number of triangles. */
+  private int size;
 
   /** Clear all triangles. */
   public void clear() {
-    triangles = null;
+    vertices = new double[0];
+    normals = new double[0];
+    faces = new int[0];
+    edges = new double[0];
+    flat.clear();
+    vertexCount = 0;
+    size = 0;
   }
 
   /**
@@ -33,42 +67,275 @@ public class Triangles {
    */
   public void setTriangles(final MeshLoader loader, final AffineTransform4 aff)
       throws IOException {
-    final List<Triangle> triangles;
-    if(this.triangles != null) {
-      triangles = new ArrayList<>(this.triangles);
-    } else {
-      triangles = new ArrayList<>();
-    }
     loader.loadMesh(new TriangleStorage() {
 
       @Override
-      public void addTriangle(final Triangle t) {
-        triangles.add(aff.transform(t));
+      public void addMesh(final IndexedMesh mesh) {
+        add(aff.transform(mesh));
       }
 
     });
-    this.triangles = triangles;
   }
 
   /**
-   * Getter.
+   * Adds a mesh to the end of the arrays.
+   *
+   * @param mesh The mesh.
+   */
+  private void add(final IndexedMesh mesh) {
+    final int vc = mesh.getVertexCount();
+    final int fc = mesh.getFaceCount();
+    if((vertexCount + vc) * 3 > vertices.length) {
+      final int capacity = Math.max(vertexCount * 2, vertexCount + vc) * 3;
+      vertices = Arrays.copyOf(vertices, capacity);
+      normals = Arrays.copyOf(normals, capacity);
+    }
+    if((size + fc) * 3 > faces.length) {
+      final int capacity = Math.max(size * 2, size + fc);
+      faces = Arrays.copyOf(faces, capacity * 3);
+      edges = Arrays.copyOf(edges, capacity * 9);
+    }
+    System.arraycopy(mesh.getVertices(), 0, vertices, vertexCount * 3, vc * 3);
+    if(mesh.hasNormals()) {
+      System.arraycopy(mesh.getNormals(), 0, normals, vertexCount * 3, vc * 3);
+    } else {
+      flat.set(size, size + fc);
+    }
+    final int[] f = mesh.getFaces();
+    for(int i = 0; i < fc * 3; ++i) {
+      faces[size * 3 + i] = f[i] + vertexCount;
+    }
+    vertexCount += vc;
+    size += fc;
+    computeEdges(size - fc, size);
+  }
+
+  /**
+   * Computes the first corner and the edges of the given triangles.
    *
-   * @return A list of all triangles.
+   * @param from The lower inclusive triangle index.
+   * @param to The upper exclusive triangle index.
    */
-  public List<Triangle> getList() {
-    if(triangles == null) return Collections.emptyList();
-    return Collections.unmodifiableList(triangles);
+  private void computeEdges(final int from, final int to) {
+    for(int index = from; index < to; ++index) {
+      final int a = faces[index * 3] * 3;
+      final int b = faces[index * 3 + 1] * 3;
+      final int c = faces[index * 3 + 2] * 3;
+      final int pos = index * 9;
+      for(int axis = 0; axis < 3; ++axis) {
+        final double v = vertices[a + axis];
+        edges[pos + axis] = v;
+        edges[pos + 3 + axis] = vertices[b + axis] - v;
+        edges[pos + 6 + axis] = vertices[c + axis] - v;
+      }
+    }
+  }
+
+  /**
+   * Moves the vertices and turns the normals of all triangles. The faces stay
+   * the same so data structures filled with the triangles can be updated with
+   * {@link Hitter#refit()} instead of being built again.
+   *
+   * @param aff The affine transformation.
+   */
+  public void transform(final AffineTransform4 aff) {
+    final int len = vertexCount * 3;
+    final IndexedMesh mesh = aff.transform(new IndexedMesh(
+        Arrays.copyOf(vertices, len), Arrays.copyOf(normals, len),
+        Arrays.copyOf(faces, size * 3)));
+    System.arraycopy(mesh.getVertices(), 0, vertices, 0, len);
+    System.arraycopy(mesh.getNormals(), 0, normals, 0, len);
+    computeEdges(0, size);
+  }
+
+  /**
+   * Creates a vector from the given array.
+   *
+   * @param arr The array.
+   * @param vertex The vertex index.
+   * @param point Whether the vector is a point.
+   * @return The vector.
+   */
+  private static Vec4 get(final double[] arr, final int vertex, final boolean point) {
+    final int pos = vertex * 3;
+    return new Vec4(arr[pos], arr[pos + 1], arr[pos + 2], point);
   }
 
   /**
    * Getter.
    *
    * @param index The index.
-   * @return The triangle at the given position.
+   * @return The triangle at the given position. The triangle is created for
+   *         every call.
+   */
+  public Triangle getTriangle(final int index) {
+    if(index < 0 || index >= size) throw new IndexOutOfBoundsException("" + index);
+    final int a = faces[index * 3];
+    final int b = faces[index * 3 + 1];
+    final int c = faces[index * 3 + 2];
+    if(flat.get(index)) return new Triangle(
+        get(vertices, a, true), get(vertices, b, true), get(vertices, c, true));
+    return new Triangle(
+        get(vertices, a, true), get(vertices, b, true), get(vertices, c, true),
+        get(normals, a, false), get(normals, b, false), get(normals, c, false));
+  }
+
+  /**
+   * Getter.
+   *
+   * @param index The triangle index.
+   * @param corner The corner of the triangle. Either 0, 1, or 2.
+   * @return The vertex index of the given corner.
+   */
+  public int getVertex(final int index, final int corner) {
+    return faces[index * 3 + corner];
+  }
+
+  /**
+   * Getter.
+   *
+   * @param vertex The vertex index.
+   * @param axis The axis.
+   * @return The coordinate of the vertex on the given axis.
+   */
+  public double getCoord(final int vertex, final int axis) {
+    return vertices[vertex * 3 + axis];
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of vertices.
+   */
+  public int vertexCount() {
+    return vertexCount;
+  }
+
+  /**
+   * Getter.
+   *
+   * @param index The triangle index.
+   * @param axis The axis.
+   * @return The minimal coordinate of the triangle on the given axis.
+   */
+  public double getMin(final int index, final int axis) {
+    final int pos = index * 3;
+    return Math.min(vertices[faces[pos] * 3 + axis], Math.min(
+        vertices[faces[pos + 1] * 3 + axis], vertices[faces[pos + 2] * 3 + axis]));
+  }
+
+  /**
+   * Getter.
+   *
+   * @param index The triangle index.
+   * @param axis The axis.
+   * @return The maximal coordinate of the triangle on the given axis.
+   */
+  public double getMax(final int index, final int axis) {
+    final int pos = index * 3;
+    return Math.max(vertices[faces[pos] * 3 + axis], Math.max(
+        vertices[faces[pos + 1] * 3 + axis], vertices[faces[pos + 2] * 3 + axis]));
+  }
+
+  /**
+   * Returns the relation of a triangle towards the given plane.
+   *
+   * @param index The triangle index.
+   * @param value The value on the axis.
+   * @param axis The axis defining the plane.
+   * @return The relation of the triangle.
+   * @see Triangle#relToPlane(double, int)
    */
-  protected Triangle getTriangle(final int index) {
-    if(triangles == null) throw new IndexOutOfBoundsException("" + index);
-    return triangles.get(index);
+  public int relToPlane(final int index, final double value, final int axis) {
+    final int pos = index * 3;
+    final boolean lowerA = vertices[faces[pos] * 3 + axis] < value;
+    final boolean lowerB = vertices[faces[pos + 1] * 3 + axis] < value;
+    if(lowerA != lowerB) return 0;
+    // lowerA == lowerB
+    final boolean lowerC = vertices[faces[pos + 2] * 3 + axis] < value;
+    return lowerA != lowerC ? 0 : lowerA ? -1 : 1;
+  }
+
+  /**
+   * Computes the traveled distance of the ray until it hit the given triangle.
+   * The test counter gets increased.
+   *
+   * @param index The triangle index.
+   * @param r The ray.
+   * @param tc The test counter.
+   * @return The traveled distance of the ray at the hit position or a negative
+   *         value if the ray didn't hit the triangle in positive direction.
+   */
+  public double hit(final int index, final Ray r, final TestCounter tc) {
+    final Vec4 o = r.getOrigin();
+    final Vec4 d = r.getDirection();
+    return hit(index, o.getX(), o.getY(), o.getZ(), d.getX(), d.getY(), d.getZ(), tc);
+  }
+
+  /**
+   * Computes the traveled distance of the ray until it hit the given triangle.
+   * The test counter gets increased. This method does not allocate any
+   * objects and uses the precomputed edges of the triangle.
+   *
+   * @param index The triangle index.
+   * @param ox The x coordinate of the ray origin.
+   * @param oy The y coordinate of the ray origin.
+   * @param oz The z coordinate of the ray origin.
+   * @param dx The x coordinate of the normalized ray direction.
+   * @param dy The y coordinate of the normalized ray direction.
+   * @param dz The z coordinate of the normalized ray direction.
+   * @param tc The test counter.
+   * @return The traveled distance of the ray at the hit position or a negative
+   *         value if the ray didn't hit the triangle in positive direction.
+   */
+  public double hit(final int index,
+      final double ox, final double oy, final double oz,
+      final double dx, final double dy, final double dz, final TestCounter tc) {
+    final int pos = index * 9;
+    final double[] e = edges;
+    return Triangle.intersect(e[pos], e[pos + 1], e[pos + 2],
+        e[pos + 3], e[pos + 4], e[pos + 5],
+        e[pos + 6], e[pos + 7], e[pos + 8],
+        ox, oy, oz, dx, dy, dz, tc);
+  }
+
+  /**
+   * Computes a hash of the vertex coordinates and the faces. Normals are not
+   * included since they do not influence the geometry.
+   *
+   * @return The hexadecimal SHA-256 hash of the triangles.
+   */
+  public String contentHash() {
+    final MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch(final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    final ByteBuffer buf = ByteBuffer.allocate(8192);
+    buf.putInt(vertexCount);
+    buf.putInt(size);
+    for(int i = 0; i < vertexCount * 3; ++i) {
+      if(buf.remaining() < 8) {
+        md.update(buf.array(), 0, buf.position());
+        buf.clear();
+      }
+      buf.putDouble(vertices[i]);
+    }
+    for(int i = 0; i < size * 3; ++i) {
+      if(buf.remaining() < 4) {
+        md.update(buf.array(), 0, buf.position());
+        buf.clear();
+      }
+      buf.putInt(faces[i]);
+    }
+    md.update(buf.array(), 0, buf.position());
+    final StringBuilder sb = new StringBuilder();
+    for(final byte b : md.digest()) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
   }
 
   /**
@@ -77,8 +344,7 @@ public class Triangles {
    * @return The number of triangles.
    */
   public int size() {
-    if(triangles == null) return 0;
-    return triangles.size();
+    return size;
   }
 
 }
@@ -65,9 +65,6 @@ public class CompareTestCountConsumer extends ImageConsumer {
   public void hitAt(final Hit hit, final int x, final int y) {
     final long v = getCount(hit);
     values[x][y] = v;
-    if(max < v) {
-      max = v;
-    }
   }
 
   @Override
@@ -86,22 +83,55 @@ public class CompareTestCountConsumer extends ImageConsumer {
     return (fresh - old) / max;
   }
 
+  /**
+   * Includes a value into the maximum of all values.
+   *
+   * @param hi The value.
+   */
+  private synchronized void include(final long hi) {
+    if(max < hi) {
+      max = hi;
+    }
+  }
+
   @Override
   public void finished() {
+    // the maximum is computed here since hits may be consumed concurrently
+    forColumns(new ColumnTask() {
+
+      @Override
+      public void columns(final int xFrom, final int xTo) {
+        long hi = 0;
+        for(int x = xFrom; x < xTo; ++x) {
+          for(final long v : values[x]) {
+            hi = Math.max(hi, v);
+          }
+        }
+        include(hi);
+      }
+
+    });
     System.out.println(name() + "[max: " + max + "]");
-    for(int x = 0; x < values.length; ++x) {
-      final long[] row = values[x];
-      final long[] prow = prev != null ? prev[x] : null;
-      for(int y = 0; y < row.length; ++y) {
-        final double d = normalize(row[y], prow != null ? prow[y] : 0);
-        final int add = d <= 0 ? 0 : (int) (d * 0xff);
-        final int sub = d >= 0 ? 0 : (int) (-d * 0xff);
-        final int red = add;
-        final int green = 0;
-        final int blue = sub;
-        setRGB(red << 16 | green << 8 | blue, x, y);
+    forColumns(new ColumnTask() {
+
+      @Override
+      public void columns(final int xFrom, final int xTo) {
+        for(int x = xFrom; x < xTo; ++x) {
+          final long[] row = values[x];
+          final long[] prow = prev != null ? prev[x] : null;
+          for(int y = 0; y < row.length; ++y) {
+            final double d = normalize(row[y], prow != null ? prow[y] : 0);
+            final int add = d <= 0 ? 0 : (int) (d * 0xff);
+            final int sub = d >= 0 ? 0 : (int) (-d * 0xff);
+            final int red = add;
+            final int green = 0;
+            final int blue = sub;
+            setRGB(red << 16 | green << 8 | blue, x, y);
+          }
+        }
       }
-    }
+
+    });
   }
 
 }
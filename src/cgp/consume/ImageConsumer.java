@@ -6,17 +6,81 @@ import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import javax.imageio.ImageIO;
 
 import cgp.tracer.Hit;
 
 /**
- * Produces an image with the results.
+ * Produces an image with the results. The pixels of the image are independent
+ * of each other so subclasses may only write the state of the given pixel in
+ * {@link #hitAt(Hit, int, int)} which allows streaming the results.
  *
  * @author Joschi <josua.krause@gmail.com>
  */
-public abstract class ImageConsumer implements HitConsumer {
+public abstract class ImageConsumer implements StreamingConsumer {
+
+  /**
+   * Processes a range of columns of the image.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  protected interface ColumnTask {
+
+    /**
+     * Processes the columns. Different ranges may be processed at the same
+     * time.
+     *
+     * @param xFrom The lowest inclusive x coordinate.
+     * @param xTo The highest exclusive x coordinate.
+     */
+    void columns(int xFrom, int xTo);
+
+  } // ColumnTask
+
+  /**
+   * Splits the columns of the image in halves until a range is small enough.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class ColumnAction extends RecursiveAction {
+
+    /** The task. */
+    private final ColumnTask task;
+    /** The lowest inclusive x coordinate. */
+    private final int xFrom;
+    /** The highest exclusive x coordinate. */
+    private final int xTo;
+
+    /**
+     * Creates a column action.
+     *
+     * @param task The task.
+     * @param xFrom The lowest inclusive x coordinate.
+     * @param xTo The highest exclusive x coordinate.
+     */
+    public ColumnAction(final ColumnTask task, final int xFrom, final int xTo) {
+      this.task = task;
+      this.xFrom = xFrom;
+      this.xTo = xTo;
+    }
+
+    @Override
+    protected void compute() {
+      if(xTo - xFrom <= COLUMN_GRAIN) {
+        task.columns(xFrom, xTo);
+        return;
+      }
+      final int mid = xFrom + (xTo - xFrom) / 2;
+      invokeAll(new ColumnAction(task, xFrom, mid), new ColumnAction(task, mid, xTo));
+    }
+
+  } // ColumnAction
+
+  /** The number of columns that are not split any further. */
+  private static final int COLUMN_GRAIN = 16;
 
   /** The image. */
   private BufferedImage img;
@@ -46,6 +110,22 @@ public abstract class ImageConsumer implements HitConsumer {
     setRGB(getRGB(hit), x, y);
   }
 
+  /**
+   * Processes all columns of the image. When called from within a fork join
+   * pool the columns are partitioned among the threads of the pool. Otherwise
+   * all columns are processed by the calling thread.
+   *
+   * @param task The task.
+   */
+  protected void forColumns(final ColumnTask task) {
+    final int w = img.getWidth();
+    if(ForkJoinTask.inForkJoinPool()) {
+      new ColumnAction(task, 0, w).invoke();
+    } else {
+      task.columns(0, w);
+    }
+  }
+
   /**
    * Sets a pixel.
    * 
@@ -89,6 +169,12 @@ public abstract class ImageConsumer implements HitConsumer {
     return true;
   }
 
+  @Override
+  public void regionDone(final int xFrom, final int xTo,
+      final int yFrom, final int yTo) {
+    // nothing to do
+  }
+
   @Override
   public void finished() {
     // nothing to do
@@ -0,0 +1,40 @@
+package cgp.consume;
+
+import cgp.tracer.Hit;
+
+/**
+ * A hit consumer that can be fed by the tracing threads as soon as a region
+ * of the image is shot. This lets shading overlap with tracing instead of
+ * running after the whole image is done. The following rules apply when the
+ * ray shooter streams the results:
+ * <ul>
+ * <li>{@link #setSize(int, int)} is called by the thread that shoots the image
+ * before any ray is shot.</li>
+ * <li>{@link #hitAt(Hit, int, int)} is called by the tracing threads. Calls for
+ * different pixels may happen at the same time but every pixel is passed
+ * exactly once. An implementation may write state that belongs to the given
+ * pixel only. Any other shared state has to be synchronized or must be
+ * computed in {@link #finished()} instead.</li>
+ * <li>{@link #regionDone(int, int, int, int)} is called by the same tracing
+ * thread after all pixels of the region were passed. Regions never overlap but
+ * different regions may be done at the same time.</li>
+ * <li>{@link #finished()} is called by the thread that shoots the image after
+ * all regions are done. Everything written by the tracing threads is visible
+ * at this point.</li>
+ * </ul>
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public interface StreamingConsumer extends HitConsumer {
+
+  /**
+   * Is called when all pixels of a region have been consumed.
+   *
+   * @param xFrom The lowest inclusive x coordinate.
+   * @param xTo The highest exclusive x coordinate.
+   * @param yFrom The lowest inclusive y coordinate.
+   * @param yTo The highest exclusive y coordinate.
+   */
+  void regionDone(int xFrom, int xTo, int yFrom, int yTo);
+
+}
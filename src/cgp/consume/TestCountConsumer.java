@@ -65,12 +65,6 @@ public class TestCountConsumer extends ImageConsumer {
   public void hitAt(final Hit hit, final int x, final int y) {
     final long v = getCount(hit);
     values[x][y] = v;
-    if(min > v) {
-      min = v;
-    }
-    if(max < v) {
-      max = v;
-    }
   }
 
   @Override
@@ -78,19 +72,58 @@ public class TestCountConsumer extends ImageConsumer {
     throw new UnsupportedOperationException();
   }
 
+  /**
+   * Includes a value range into the range of all values.
+   *
+   * @param lo The minimal value of the range.
+   * @param hi The maximal value of the range.
+   */
+  private synchronized void include(final long lo, final long hi) {
+    if(min > lo) {
+      min = lo;
+    }
+    if(max < hi) {
+      max = hi;
+    }
+  }
+
   @Override
   public void finished() {
+    // the range is computed here since hits may be consumed concurrently
+    forColumns(new ColumnTask() {
+
+      @Override
+      public void columns(final int xFrom, final int xTo) {
+        long lo = Long.MAX_VALUE;
+        long hi = Long.MIN_VALUE;
+        for(int x = xFrom; x < xTo; ++x) {
+          for(final long v : values[x]) {
+            lo = Math.min(lo, v);
+            hi = Math.max(hi, v);
+          }
+        }
+        include(lo, hi);
+      }
+
+    });
     System.out.println(name() + "[min: " + min + " max: " + max + "]");
-    for(int x = 0; x < values.length; ++x) {
-      final long[] row = values[x];
-      for(int y = 0; y < row.length; ++y) {
-        final int sub = (int) (normalize(row[y]) * 0xff);
-        final int red = triangles ? 0xff : 0;
-        final int green = triangles ? 0xff - sub : sub;
-        final int blue = triangles ? 0xff - sub : 0;
-        setRGB(red << 16 | green << 8 | blue, x, y);
+    forColumns(new ColumnTask() {
+
+      @Override
+      public void columns(final int xFrom, final int xTo) {
+        for(int x = xFrom; x < xTo; ++x) {
+          final long[] row = values[x];
+          for(int y = 0; y < row.length; ++y) {
+            final int sub = (int) (normalize(row[y]) * 0xff);
+            final int red = triangles ? 0xff : 0;
+            final int green = triangles ? 0xff - sub : sub;
+            final int blue = triangles ? 0xff - sub : 0;
+            setRGB(red << 16 | green << 8 | blue, x, y);
+          }
+        }
       }
-    }
+
+    });
   }
 
 }
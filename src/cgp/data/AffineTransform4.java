@@ -141,9 +141,65 @@ public class AffineTransform4 {
     return new AffineTransform4(res);
   }
 
+  /**
+   * Computes the inverse transformation by Gauss-Jordan elimination with
+   * partial pivoting.
+   *
+   * @return The inverse transformation.
+   * @throws IllegalStateException If the transformation is not invertible.
+   */
+  public AffineTransform4 inverse() {
+    final double[][] m = new double[4][];
+    final double[][] res = new double[4][4];
+    for(int r = 0; r < 4; ++r) {
+      m[r] = mat[r].clone();
+      res[r][r] = 1;
+    }
+    for(int c = 0; c < 4; ++c) {
+      int pivot = c;
+      for(int r = c + 1; r < 4; ++r) {
+        if(Math.abs(m[r][c]) > Math.abs(m[pivot][c])) {
+          pivot = r;
+        }
+      }
+      if(m[pivot][c] == 0) throw new IllegalStateException("singular transformation");
+      swapRows(m, c, pivot);
+      swapRows(res, c, pivot);
+      final double p = m[c][c];
+      for(int i = 0; i < 4; ++i) {
+        m[c][i] /= p;
+        res[c][i] /= p;
+      }
+      for(int r = 0; r < 4; ++r) {
+        final double f = m[r][c];
+        if(r == c || f == 0) {
+          continue;
+        }
+        for(int i = 0; i < 4; ++i) {
+          m[r][i] -= f * m[c][i];
+          res[r][i] -= f * res[c][i];
+        }
+      }
+    }
+    return new AffineTransform4(res);
+  }
+
+  /**
+   * Swaps two rows of a matrix.
+   *
+   * @param m The matrix.
+   * @param a The first row.
+   * @param b The second row.
+   */
+  private static void swapRows(final double[][] m, final int a, final int b) {
+    final double[] tmp = m[a];
+    m[a] = m[b];
+    m[b] = tmp;
+  }
+
   /**
    * Transforms the given vector according to the affine transformation.
-   * 
+   *
    * @param vec The vector to transform.
    * @return The transformed vector.
    */
@@ -178,4 +234,60 @@ public class AffineTransform4 {
         transform(tri.getCNormal()));
   }
 
+  /**
+   * Transforms the given mesh according to the affine transformation. The
+   * vertex normals are normalized after the transformation.
+   *
+   * @param mesh The mesh to transform.
+   * @return The transformed mesh. The faces are shared with the original mesh.
+   */
+  public IndexedMesh transform(final IndexedMesh mesh) {
+    final double[] vertices = mesh.getVertices();
+    final double[] tv = new double[vertices.length];
+    for(int pos = 0; pos < vertices.length; pos += 3) {
+      transform(vertices, tv, pos, true);
+    }
+    double[] tn = null;
+    if(mesh.hasNormals()) {
+      final double[] normals = mesh.getNormals();
+      tn = new double[normals.length];
+      for(int pos = 0; pos < normals.length; pos += 3) {
+        transform(normals, tn, pos, false);
+        final double x = tn[pos];
+        final double y = tn[pos + 1];
+        final double z = tn[pos + 2];
+        final double len = Math.sqrt(x * x + y * y + z * z);
+        if(len != 0) {
+          tn[pos] = x / len;
+          tn[pos + 1] = y / len;
+          tn[pos + 2] = z / len;
+        }
+      }
+    }
+    return new IndexedMesh(tv, tn, mesh.getFaces());
+  }
+
+  /**
+   * Transforms the coordinates at the given position.
+   *
+   * @param src The source coordinates.
+   * @param dest The destination coordinates.
+   * @param pos The position of the x coordinate.
+   * @param point Whether the coordinates are a point or a direction.
+   */
+  private void transform(final double[] src, final double[] dest,
+      final int pos, final boolean point) {
+    final double x = src[pos];
+    final double y = src[pos + 1];
+    final double z = src[pos + 2];
+    final double w = point ? 1 : 0;
+    final double[] m3 = mat[3];
+    final double rw = x * m3[0] + y * m3[1] + z * m3[2] + w * m3[3];
+    for(int r = 0; r < 3; ++r) {
+      final double[] m = mat[r];
+      final double v = x * m[0] + y * m[1] + z * m[2] + w * m[3];
+      dest[pos + r] = rw == 0 ? v : v / rw;
+    }
+  }
+
 }
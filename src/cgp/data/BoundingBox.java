@@ -83,19 +83,47 @@ public class BoundingBox {
   public double intersects(final Ray r, final TestCounter tc) {
     // we don't count empty boxes
     if(mins == null || maxs == null) return -1;
+    return intersects(r, mins.getX(), mins.getY(), mins.getZ(),
+        maxs.getX(), maxs.getY(), maxs.getZ(), tc);
+  }
+
+  /**
+   * Checks whether the given ray intersects the bounding box given by its
+   * coordinates. This method does not need a bounding box object.
+   *
+   * @param r The ray.
+   * @param minX The minimal x coordinate.
+   * @param minY The minimal y coordinate.
+   * @param minZ The minimal z coordinate.
+   * @param maxX The maximal x coordinate.
+   * @param maxY The maximal y coordinate.
+   * @param maxZ The maximal z coordinate.
+   * @param tc The test counter.
+   * @return When the ray intersects the bounding box or a negative value if it
+   *         doesn't.
+   */
+  public static double intersects(final Ray r,
+      final double minX, final double minY, final double minZ,
+      final double maxX, final double maxY, final double maxZ,
+      final TestCounter tc) {
     tc.addBBoxCheck();
     // taken from
     // An Efficient and Robust Ray–Box Intersection Algorithm
     // Williams et al.
+    final Vec4 o = r.getOrigin();
     final Vec4 d = r.getDirection();
-    final boolean sx = d.getX() > 0;
-    final boolean sy = d.getY() > 0;
-    final boolean vx = d.getX() != 0;
-    final boolean vy = d.getY() != 0;
-    double tmin = r.hitCoord(sx ? mins : maxs, X);
-    double tmax = r.hitCoord(!sx ? mins : maxs, X);
-    final double tymin = r.hitCoord(sy ? mins : maxs, Y);
-    final double tymax = r.hitCoord(!sy ? mins : maxs, Y);
+    final double dx = d.getX();
+    final double dy = d.getY();
+    final double dz = d.getZ();
+    final boolean sx = dx > 0;
+    final boolean sy = dy > 0;
+    final boolean vx = dx != 0;
+    final boolean vy = dy != 0;
+    // for d == 0 the result is +/-Inf
+    double tmin = ((sx ? minX : maxX) - o.getX()) / dx;
+    double tmax = ((!sx ? minX : maxX) - o.getX()) / dx;
+    final double tymin = ((sy ? minY : maxY) - o.getY()) / dy;
+    final double tymax = ((!sy ? minY : maxY) - o.getY()) / dy;
     if(vx && vy && (tmin > tymax || tymin > tmax)) return -1;
     if(!vx || (vy && tymin > tmin)) {
       tmin = tymin;
@@ -103,10 +131,10 @@ public class BoundingBox {
     if(!vx || (vy && tymax < tmax)) {
       tmax = tymax;
     }
-    final boolean sz = d.getZ() > 0;
-    final boolean vz = d.getZ() != 0;
-    final double tzmin = r.hitCoord(sz ? mins : maxs, Z);
-    final double tzmax = r.hitCoord(!sz ? mins : maxs, Z);
+    final boolean sz = dz > 0;
+    final boolean vz = dz != 0;
+    final double tzmin = ((sz ? minZ : maxZ) - o.getZ()) / dz;
+    final double tzmax = ((!sz ? minZ : maxZ) - o.getZ()) / dz;
     if(vz && (vx || vy) && (tmin > tzmax || tzmin > tmax)) return -1;
     if((!vx && !vy) || (vz && tzmin > tmin)) {
       tmin = tzmin;
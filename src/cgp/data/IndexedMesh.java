@@ -0,0 +1,105 @@
+package cgp.data;
+
+import java.util.Objects;
+
+/**
+ * A triangle mesh with shared vertices. The vertices are stored in one array
+ * and every face references its three corners by their vertex index. The
+ * arrays are not copied.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class IndexedMesh {
+
+  /** The x, y, and z coordinates of every vertex. */
+  private final double[] vertices;
+  /**
+   * The x, y, and z coordinates of the normal of every vertex or
+   * <code>null</code> if the mesh has no normals.
+   */
+  private final double[] normals;
+  /** The three vertex indices of every face. */
+  private final int[] faces;
+
+  /**
+   * Creates an indexed mesh.
+   *
+   * @param vertices The x, y, and z coordinates of every vertex.
+   * @param normals The x, y, and z coordinates of the normal of every vertex
+   *          or <code>null</code> if the face normals should be used.
+   * @param faces The three vertex indices of every face. The corners of a face
+   *          need to be in counter clock-wise order.
+   */
+  public IndexedMesh(final double[] vertices, final double[] normals, final int[] faces) {
+    this.vertices = Objects.requireNonNull(vertices);
+    this.normals = normals;
+    this.faces = Objects.requireNonNull(faces);
+    if(vertices.length % 3 != 0) throw new IllegalArgumentException("" + vertices.length);
+    if(faces.length % 3 != 0) throw new IllegalArgumentException("" + faces.length);
+    if(normals != null && normals.length != vertices.length) throw new IllegalArgumentException(
+        normals.length + " != " + vertices.length);
+    final int count = getVertexCount();
+    for(final int f : faces) {
+      if(f < 0 || f >= count) throw new IndexOutOfBoundsException("" + f);
+    }
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of vertices.
+   */
+  public int getVertexCount() {
+    return vertices.length / 3;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of faces.
+   */
+  public int getFaceCount() {
+    return faces.length / 3;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The x, y, and z coordinates of every vertex. The array must not be
+   *         modified.
+   */
+  public double[] getVertices() {
+    return vertices;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return Whether the mesh has vertex normals.
+   */
+  public boolean hasNormals() {
+    return normals != null;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The x, y, and z coordinates of the normal of every vertex or
+   *         <code>null</code> if the mesh has no normals. The array must not
+   *         be modified.
+   */
+  public double[] getNormals() {
+    return normals;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The three vertex indices of every face. The array must not be
+   *         modified.
+   */
+  public int[] getFaces() {
+    return faces;
+  }
+
+}
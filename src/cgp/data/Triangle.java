@@ -21,6 +21,24 @@ public class Triangle {
   private final Vec4 nb;
   /** The normal at the third corner. */
   private final Vec4 nc;
+  /** The x coordinate of the first corner. */
+  private final double ax;
+  /** The y coordinate of the first corner. */
+  private final double ay;
+  /** The z coordinate of the first corner. */
+  private final double az;
+  /** The x coordinate of the edge from the first to the second corner. */
+  private final double e1x;
+  /** The y coordinate of the edge from the first to the second corner. */
+  private final double e1y;
+  /** The z coordinate of the edge from the first to the second corner. */
+  private final double e1z;
+  /** The x coordinate of the edge from the first to the third corner. */
+  private final double e2x;
+  /** The y coordinate of the edge from the first to the third corner. */
+  private final double e2y;
+  /** The z coordinate of the edge from the first to the third corner. */
+  private final double e2z;
 
   /**
    * Creates a triangle and computes the normals accordingly. The points need to
@@ -35,6 +53,15 @@ public class Triangle {
     this.b = b.expectPoint();
     this.c = c.expectPoint();
     nc = nb = na = b.sub(a).cross(c.sub(a)).normalized();
+    ax = a.getX();
+    ay = a.getY();
+    az = a.getZ();
+    e1x = b.getX() - ax;
+    e1y = b.getY() - ay;
+    e1z = b.getZ() - az;
+    e2x = c.getX() - ax;
+    e2y = c.getY() - ay;
+    e2z = c.getZ() - az;
   }
 
   /**
@@ -55,6 +82,15 @@ public class Triangle {
     this.na = na.expectDirection().normalized();
     this.nb = nb.expectDirection().normalized();
     this.nc = nc.expectDirection().normalized();
+    ax = a.getX();
+    ay = a.getY();
+    az = a.getZ();
+    e1x = b.getX() - ax;
+    e1y = b.getY() - ay;
+    e1z = b.getZ() - az;
+    e2x = c.getX() - ax;
+    e2y = c.getY() - ay;
+    e2z = c.getZ() - az;
   }
 
   /** A small value. */
@@ -66,34 +102,87 @@ public class Triangle {
    *
    * @param r The ray.
    * @param tc The test counter.
-   * @return The squared traveled distance of the ray at the hit position or a
-   *         negative value if the ray didn't hit the triangle in positive
-   *         direction.
+   * @return The traveled distance of the ray at the hit position or a negative
+   *         value if the ray didn't hit the triangle in positive direction.
    */
   public double hit(final Ray r, final TestCounter tc) {
+    final Vec4 o = r.getOrigin();
+    final Vec4 d = r.getDirection();
+    return hit(o.getX(), o.getY(), o.getZ(), d.getX(), d.getY(), d.getZ(), tc);
+  }
+
+  /**
+   * Computes the traveled distance of the ray given by its coordinates until
+   * it hit the triangle. The test counter gets increased. This method does not
+   * allocate any objects.
+   *
+   * @param ox The x coordinate of the ray origin.
+   * @param oy The y coordinate of the ray origin.
+   * @param oz The z coordinate of the ray origin.
+   * @param dx The x coordinate of the normalized ray direction.
+   * @param dy The y coordinate of the normalized ray direction.
+   * @param dz The z coordinate of the normalized ray direction.
+   * @param tc The test counter.
+   * @return The traveled distance of the ray at the hit position or a negative
+   *         value if the ray didn't hit the triangle in positive direction.
+   */
+  public double hit(final double ox, final double oy, final double oz,
+      final double dx, final double dy, final double dz, final TestCounter tc) {
+    return intersect(ax, ay, az, e1x, e1y, e1z, e2x, e2y, e2z,
+        ox, oy, oz, dx, dy, dz, tc);
+  }
+
+  /**
+   * Computes the traveled distance of the ray until it hit the triangle given
+   * by its first corner and its two edges from that corner. The test counter
+   * gets increased. This method does not allocate any objects.
+   *
+   * @param ax The x coordinate of the first corner.
+   * @param ay The y coordinate of the first corner.
+   * @param az The z coordinate of the first corner.
+   * @param e1x The x coordinate of the edge to the second corner.
+   * @param e1y The y coordinate of the edge to the second corner.
+   * @param e1z The z coordinate of the edge to the second corner.
+   * @param e2x The x coordinate of the edge to the third corner.
+   * @param e2y The y coordinate of the edge to the third corner.
+   * @param e2z The z coordinate of the edge to the third corner.
+   * @param ox The x coordinate of the ray origin.
+   * @param oy The y coordinate of the ray origin.
+   * @param oz The z coordinate of the ray origin.
+   * @param dx The x coordinate of the normalized ray direction.
+   * @param dy The y coordinate of the normalized ray direction.
+   * @param dz The z coordinate of the normalized ray direction.
+   * @param tc The test counter.
+   * @return The traveled distance of the ray at the hit position or a negative
+   *         value if the ray didn't hit the triangle in positive direction.
+   */
+  public static double intersect(
+      final double ax, final double ay, final double az,
+      final double e1x, final double e1y, final double e1z,
+      final double e2x, final double e2y, final double e2z,
+      final double ox, final double oy, final double oz,
+      final double dx, final double dy, final double dz, final TestCounter tc) {
     tc.addCheck();
-    final Vec4 edge1 = b.sub(a);
-    final Vec4 edge2 = c.sub(a);
-    edge1.expectDirection();
-    edge2.expectDirection();
-    final Vec4 norm = edge1.cross(edge2);
-    norm.expectDirection();
-    final Vec4 dir = r.getDirection();
-    dir.expectDirection();
-    final double det = dir.dot(norm);
+    // Fast, Minimum Storage Ray/Triangle Intersection
+    // Moeller and Trumbore
+    final double px = dy * e2z - dz * e2y;
+    final double py = dz * e2x - dx * e2z;
+    final double pz = dx * e2y - dy * e2x;
+    final double det = e1x * px + e1y * py + e1z * pz;
     if(det > -EPS && det < EPS) return -1;
-    final Vec4 oa = a.sub(r.getOrigin());
-    oa.expectDirection();
-    final double pos = oa.dot(norm) / det;
+    final double inv = 1 / det;
+    final double tx = ox - ax;
+    final double ty = oy - ay;
+    final double tz = oz - az;
+    final double u = (tx * px + ty * py + tz * pz) * inv;
+    if(u < 0 || u > 1) return -1;
+    final double qx = ty * e1z - tz * e1y;
+    final double qy = tz * e1x - tx * e1z;
+    final double qz = tx * e1y - ty * e1x;
+    final double v = (dx * qx + dy * qy + dz * qz) * inv;
+    if(v < 0 || u + v > 1) return -1;
+    final double pos = (e2x * qx + e2y * qy + e2z * qz) * inv;
     if(pos <= 0) return -1;
-    final Vec4 p = r.getPosition(pos);
-    p.expectPoint();
-    final double u = norm.dot(c.sub(b).cross(p.sub(b)));
-    if(u < 0) return -1;
-    final double v = norm.dot(a.sub(c).cross(p.sub(c)));
-    if(v < 0) return -1;
-    final double w = norm.dot(edge1.cross(p.sub(a)));
-    if(w < 0) return -1;
     return pos;
   }
 
@@ -114,6 +203,20 @@ public class Triangle {
     return new BarycentricCoordinates(this, p, u, v, w);
   }
 
+  /**
+   * Getter.
+   *
+   * @param u The u coordinate corresponding to the corner a.
+   * @param v The v coordinate corresponding to the corner b.
+   * @return The barycentric coordinate.
+   */
+  public BarycentricCoordinates getAt(final double u, final double v) {
+    final double w = Math.max(Math.min(1 - u - v, 1), 0);
+    final Vec4 p = a.mul(u).addMul(b, v).addMul(c, w);
+    return new BarycentricCoordinates(this,
+        new Vec4(p.getX(), p.getY(), p.getZ(), true), u, v, w);
+  }
+
   /**
    * Computes the normal of the triangle at the given position.
    *
@@ -0,0 +1,229 @@
+package cgp.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import cgp.algos.TriangleStorage;
+import cgp.data.IndexedMesh;
+
+/**
+ * Loads meshes from a compact binary file. The file is memory mapped and the
+ * arrays are copied in bulk so no parsing is necessary. The file consists of a
+ * header followed by the meshes:
+ *
+ * <pre>
+ * int    magic number
+ * int    version
+ * long   size of the source file
+ * long   last modification time of the source file
+ * int    number of meshes
+ * int    padding
+ * for every mesh:
+ *   int      number of vertices
+ *   int      number of faces
+ *   int      flags (1 if the mesh has normals)
+ *   int      padding
+ *   double[] x, y, and z coordinates of the vertices
+ *   double[] x, y, and z coordinates of the normals (if present)
+ *   int[]    vertex indices of the faces (padded to a multiple of 8 bytes)
+ * </pre>
+ *
+ * Coordinates are stored with double precision so meshes loaded from the
+ * binary file are identical to the meshes of the source file.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class BinaryMeshLoader implements MeshLoader {
+
+  /** The magic number identifying binary mesh files. */
+  private static final int MAGIC = 0x4347504D;
+  /** The version of the file format. */
+  private static final int VERSION = 1;
+  /** The size of the file header in bytes. */
+  private static final int HEADER_SIZE = 32;
+  /** The size of the mesh header in bytes. */
+  private static final int MESH_HEADER_SIZE = 16;
+  /** The flag for meshes with normals. */
+  private static final int HAS_NORMALS = 1;
+
+  /** The binary file. */
+  private final Path file;
+
+  /**
+   * Creates a loader for a binary mesh file.
+   *
+   * @param file The binary file.
+   */
+  public BinaryMeshLoader(final String file) {
+    this.file = Paths.get(file);
+  }
+
+  /**
+   * Loads the meshes. The storage only gets the meshes after the whole file
+   * has been read successfully so a malformed file never results in a partial
+   * mesh.
+   *
+   * @param storage The storage.
+   * @throws IOException If the file cannot be read or is malformed.
+   */
+  @Override
+  public void loadMesh(final TriangleStorage storage) throws IOException {
+    final List<IndexedMesh> res = new ArrayList<>();
+    try (final FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long size = fc.size();
+      if(size > Integer.MAX_VALUE) throw new IOException("file too large: " + file);
+      final ByteBuffer buf = fc.map(MapMode.READ_ONLY, 0, size);
+      readHeader(buf);
+      final int meshes = buf.getInt(24);
+      if(meshes < 0) throw new IOException("invalid mesh count " + meshes + ": " + file);
+      buf.position(HEADER_SIZE);
+      for(int m = 0; m < meshes; ++m) {
+        if(buf.remaining() < MESH_HEADER_SIZE) throw new IOException(
+            "truncated file: " + file);
+        final int vertexCount = buf.getInt();
+        final int faceCount = buf.getInt();
+        final int flags = buf.getInt();
+        buf.getInt();
+        if(vertexCount < 0 || faceCount < 0) throw new IOException(
+            "invalid counts " + vertexCount + " " + faceCount + ": " + file);
+        final long bytes = vertexCount * 3L * 8 * ((flags & HAS_NORMALS) != 0 ? 2 : 1)
+            + pad(faceCount * 3L * 4);
+        if(bytes > buf.remaining()) throw new IOException("truncated file: " + file);
+        final double[] vertices = new double[vertexCount * 3];
+        buf.asDoubleBuffer().get(vertices);
+        buf.position(buf.position() + vertices.length * 8);
+        final double[] normals;
+        if((flags & HAS_NORMALS) != 0) {
+          normals = new double[vertexCount * 3];
+          buf.asDoubleBuffer().get(normals);
+          buf.position(buf.position() + normals.length * 8);
+        } else {
+          normals = null;
+        }
+        final int[] faces = new int[faceCount * 3];
+        buf.asIntBuffer().get(faces);
+        buf.position(buf.position() + (int) pad(faces.length * 4L));
+        res.add(new IndexedMesh(vertices, normals, faces));
+      }
+    } catch(final RuntimeException e) {
+      // buffer underflows or invalid face indices
+      throw new IOException(e);
+    }
+    for(final IndexedMesh m : res) {
+      storage.addMesh(m);
+    }
+  }
+
+  /**
+   * Checks the magic number and the version of the file.
+   *
+   * @param buf The content of the file.
+   * @throws IOException If the file is no binary mesh file of the current
+   *           version.
+   */
+  private void readHeader(final ByteBuffer buf) throws IOException {
+    if(buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) throw new IOException(
+        "no binary mesh file: " + file);
+    if(buf.getInt(4) != VERSION) throw new IOException(
+        "unsupported version " + buf.getInt(4) + ": " + file);
+  }
+
+  /**
+   * Checks whether the binary file was created from the given source file in
+   * its current state.
+   *
+   * @param source The source file.
+   * @return Whether the binary file exists and matches the size and the
+   *         modification time of the source file.
+   */
+  public boolean isUpToDate(final String source) {
+    final Path src = Paths.get(source);
+    if(!Files.isRegularFile(file)) return false;
+    try (final FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+      final ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+      while(buf.hasRemaining() && fc.read(buf) >= 0) {
+        // read the header
+      }
+      buf.flip();
+      readHeader(buf);
+      return buf.getLong(8) == Files.size(src)
+          && buf.getLong(16) == Files.getLastModifiedTime(src).toMillis();
+    } catch(final IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Writes meshes to the binary file. The file is written to a temporary file
+   * first and then moved in place so other processes never see a partial
+   * file.
+   *
+   * @param source The source file the meshes were loaded from.
+   * @param meshes The meshes.
+   * @throws IOException I/O Exception.
+   */
+  public void write(final String source, final List<IndexedMesh> meshes) throws IOException {
+    final Path src = Paths.get(source);
+    long size = HEADER_SIZE;
+    for(final IndexedMesh m : meshes) {
+      size += MESH_HEADER_SIZE + m.getVertexCount() * 3L * 8
+          * (m.hasNormals() ? 2 : 1) + pad(m.getFaceCount() * 3L * 4);
+    }
+    if(size > Integer.MAX_VALUE) throw new IOException("meshes too large: " + source);
+    final ByteBuffer buf = ByteBuffer.allocate((int) size);
+    buf.putInt(MAGIC);
+    buf.putInt(VERSION);
+    buf.putLong(Files.size(src));
+    buf.putLong(Files.getLastModifiedTime(src).toMillis());
+    buf.putInt(meshes.size());
+    buf.putInt(0);
+    for(final IndexedMesh m : meshes) {
+      buf.putInt(m.getVertexCount());
+      buf.putInt(m.getFaceCount());
+      buf.putInt(m.hasNormals() ? HAS_NORMALS : 0);
+      buf.putInt(0);
+      buf.asDoubleBuffer().put(m.getVertices());
+      buf.position(buf.position() + m.getVertices().length * 8);
+      if(m.hasNormals()) {
+        buf.asDoubleBuffer().put(m.getNormals());
+        buf.position(buf.position() + m.getNormals().length * 8);
+      }
+      buf.asIntBuffer().put(m.getFaces());
+      buf.position(buf.position() + (int) pad(m.getFaces().length * 4L));
+    }
+    buf.flip();
+    final Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(),
+        file.getFileName().toString(), ".tmp");
+    try {
+      try (final FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        while(buf.hasRemaining()) {
+          fc.write(buf);
+        }
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Pads a number of bytes to a multiple of 8.
+   *
+   * @param bytes The number of bytes.
+   * @return The padded number of bytes.
+   */
+  private static long pad(final long bytes) {
+    return (bytes + 7) & ~7;
+  }
+
+}
@@ -0,0 +1,73 @@
+package cgp.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import cgp.algos.TriangleStorage;
+import cgp.data.IndexedMesh;
+
+/**
+ * Caches the meshes of a source file in a binary mesh file next to it. The
+ * first load reads the source file and writes the cache. Later loads memory
+ * map the cache as long as the source file does not change. A damaged cache
+ * is ignored and written again from the source file.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ * @see BinaryMeshLoader
+ */
+public class CachedMeshLoader implements MeshLoader {
+
+  /** The file extension of the cache. */
+  public static final String EXTENSION = ".mesh";
+
+  /** The source file. */
+  private final String source;
+  /** The loader for the source file. */
+  private final MeshLoader loader;
+  /** The loader for the cache. */
+  private final BinaryMeshLoader cache;
+
+  /**
+   * Creates a cached mesh loader.
+   *
+   * @param source The source file.
+   * @param loader The loader for the source file.
+   */
+  public CachedMeshLoader(final String source, final MeshLoader loader) {
+    this.source = Objects.requireNonNull(source);
+    this.loader = Objects.requireNonNull(loader);
+    cache = new BinaryMeshLoader(source + EXTENSION);
+  }
+
+  @Override
+  public void loadMesh(final TriangleStorage storage) throws IOException {
+    if(cache.isUpToDate(source)) {
+      try {
+        cache.loadMesh(storage);
+        return;
+      } catch(final IOException e) {
+        // the cache is damaged and gets replaced
+        System.err.println("could not load mesh cache for " + source + ": " + e);
+      }
+    }
+    final List<IndexedMesh> meshes = new ArrayList<>();
+    loader.loadMesh(new TriangleStorage() {
+
+      @Override
+      public void addMesh(final IndexedMesh mesh) {
+        meshes.add(mesh);
+        storage.addMesh(mesh);
+      }
+
+    });
+    try {
+      cache.write(source, meshes);
+    } catch(final IOException e) {
+      // the mesh is loaded anyway
+      System.err.println("could not write mesh cache for " + source + ": " + e);
+    }
+  }
+
+}
@@ -1,8 +1,7 @@
 package cgp.io;
 
 import cgp.algos.TriangleStorage;
-import cgp.data.Triangle;
-import cgp.data.Vec4;
+import cgp.data.IndexedMesh;
 
 /**
  * Loads an example mesh.
@@ -13,18 +12,31 @@ public class ExampleMesh implements MeshLoader {
 
   @Override
   public void loadMesh(final TriangleStorage ts) {
-    final Vec4 lbb = new Vec4(0, 0, 0, true);
-    final Vec4 lbf = new Vec4(0, 0, 5, true);
-    final Vec4 ltb = new Vec4(0, 5, 0, true);
-    final Vec4 ltf = new Vec4(0, 5, 5, true);
-    final Vec4 rbb = new Vec4(5, 0, 0, true);
-    final Vec4 rbf = new Vec4(5, 0, 5, true);
-    final Vec4 rtb = new Vec4(5, 5, 0, true);
-    final Vec4 rtf = new Vec4(5, 5, 5, true);
-    ts.addTriangle(new Triangle(lbf, rbb, ltb));
-    ts.addTriangle(new Triangle(lbb, rbb, rtf));
-    ts.addTriangle(new Triangle(ltf, rbb, rtb));
-    ts.addTriangle(new Triangle(rtb, rbf, ltb));
+    final int lbb = 0;
+    final int lbf = 1;
+    final int ltb = 2;
+    final int ltf = 3;
+    final int rbb = 4;
+    final int rbf = 5;
+    final int rtb = 6;
+    final int rtf = 7;
+    final double[] vertices = {
+        0, 0, 0,
+        0, 0, 5,
+        0, 5, 0,
+        0, 5, 5,
+        5, 0, 0,
+        5, 0, 5,
+        5, 5, 0,
+        5, 5, 5,
+    };
+    final int[] faces = {
+        lbf, rbb, ltb,
+        lbb, rbb, rtf,
+        ltf, rbb, rtb,
+        rtb, rbf, ltb,
+    };
+    ts.addMesh(new IndexedMesh(vertices, null, faces));
   }
 
 }
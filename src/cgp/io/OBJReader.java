@@ -1,35 +1,45 @@
 package cgp.io;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import cgp.Main;
 import cgp.algos.TriangleStorage;
-import cgp.data.Triangle;
-import cgp.data.Vec4;
+import cgp.data.IndexedMesh;
 
 /**
  * @author Timothy Chu
  */
 public class OBJReader implements MeshLoader {
   /**
-   * Filepath of the object file to be read in
+   * Minimal number of bytes per chunk when reading in parallel
    */
-  private final String objectFile;
+  private static final int MIN_CHUNK_SIZE = 1 << 18;
   /**
-   * Stored vertices from the object file
+   * Number of chunks per core when reading in parallel
    */
-  private final List<Vec4> vertices = new ArrayList<>();
+  private static final int CHUNKS_PER_CORE = 4;
   /**
-   * Stored vertex normals from the object file
+   * Number of bytes of the file that are mapped at once
    */
-  private final List<Vec4> vertexNormals = new ArrayList<>();
+  private static final int WINDOW_SIZE = 1 << 26;
   /**
-   * Indices of the vertices that make up each face
+   * Filepath of the object file to be read in
    */
-  private final List<int[]> faces = new ArrayList<>();
+  private final String objectFile;
+  /**
+   * Whether to parse the object file on all cores
+   */
+  private final boolean parallel;
 
   /**
    * Constructor
@@ -37,112 +47,359 @@ public class OBJReader implements MeshLoader {
    * @param filename filepath for the object file
    */
   public OBJReader(final String filename) {
+    this(filename, false);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param filename filepath for the object file
+   * @param parallel whether to parse chunks of the file on all cores
+   */
+  public OBJReader(final String filename, final boolean parallel) {
     objectFile = filename;
+    this.parallel = parallel;
   }
 
   @Override
   public void loadMesh(final TriangleStorage ts) throws IOException {
+    try (final FileChannel fc = FileChannel.open(Paths.get(objectFile),
+        StandardOpenOption.READ)) {
+      final long size = fc.size();
+      if(parallel && size >= 2 * MIN_CHUNK_SIZE && loadParallel(fc, size, ts)) return;
+      loadSequential(fc, size, ts);
+    }
+  }
+
+  /**
+   * Maps the next part of the file. Unless the part reaches the end of the
+   * file its limit is set to the end of the last complete line so lines are
+   * never split between parts.
+   *
+   * @param fc The file
+   * @param start The offset of the part in the file
+   * @param size The size of the file
+   * @return The part of the file
+   * @throws IOException If the part cannot be mapped
+   */
+  private ByteBuffer window(final FileChannel fc, final long start, final long size)
+      throws IOException {
+    long len = Math.min(WINDOW_SIZE, size - start);
+    for(;;) {
+      final ByteBuffer buf = fc.map(MapMode.READ_ONLY, start, len);
+      if(start + len == size) return buf;
+      int end = (int) len;
+      while(end > 0 && buf.get(end - 1) != '\n') {
+        --end;
+      }
+      if(end > 0) {
+        buf.limit(end);
+        return buf;
+      }
+      // the line does not fit into the part
+      if(len > Integer.MAX_VALUE / 2) throw new IOException("line too long in "
+          + objectFile);
+      len = Math.min(len * 2, size - start);
+    }
+  }
+
+  /**
+   * Parses the object file line by line. The file is mapped in parts of
+   * {@link #WINDOW_SIZE} bytes so files of any size can be read.
+   *
+   * @param fc The file
+   * @param size The size of the file
+   * @param ts Data structure to store the triangles in
+   * @throws IOException If the file is malformed
+   */
+  private void loadSequential(final FileChannel fc, final long size,
+      final TriangleStorage ts) throws IOException {
     boolean shouldReset = false;
-    try (final BufferedReader in = new BufferedReader(new FileReader(objectFile))) {
-      vertices.clear();
-      vertexNormals.clear();
-      faces.clear();
-      String line;
-      while((line = in.readLine()) != null) {
-        final String[] coords = line.split("\\s+");
-        switch(coords[0]) {
-          case "v":
-            // Add vertices
-            vertices.add(new Vec4(
-                Double.parseDouble(coords[1]), Double.parseDouble(coords[2]),
-                Double.parseDouble(coords[3]), true));
-            break;
-          case "vn":
-            // Add vertex normals
-            vertexNormals.add(new Vec4(
-                Double.parseDouble(coords[1]), Double.parseDouble(coords[2]),
-                Double.parseDouble(coords[3]), false));
-            break;
-          case "f":
-            // Add faces
-            if(coords.length == 4) {
-              // Triangle face
-              final int[] face = {
-                  Integer.parseInt(coords[1]),
-                  Integer.parseInt(coords[2]),
-                  Integer.parseInt(coords[3])
-              };
-              faces.add(face);
-            } else if(coords.length == 5) {
-              // Quadrilateral face
-              final int[] face = {
-                  Integer.parseInt(coords[1]),
-                  Integer.parseInt(coords[2]),
-                  Integer.parseInt(coords[3]),
-                  Integer.parseInt(coords[4])
-              };
-              faces.add(face);
-            }
-            if(vertices.size() <= 4) {
-              // If OBJ file keeps faces in relation to only 3 or 4 vertices,
-              // keep resetting the arrayLists.
-              shouldReset = true;
-              constructTriangles(ts);
-              vertices.clear();
-              vertexNormals.clear();
-              faces.clear();
-            }
-            break;
-          default:
-            // ignore other lines
+    final Chunk chunk = new Chunk(null);
+    int line = 1;
+    long start = 0;
+    while(start < size) {
+      final ByteBuffer buf = window(fc, start, size);
+      final OBJTokenizer in = new OBJTokenizer(buf, line);
+      for(; in.hasMoreLines(); in.nextLine()) {
+        if(chunk.parseLine(in) == OBJTokenizer.FACE && chunk.vertexCount <= 4) {
+          // If OBJ file keeps faces in relation to only 3 or 4 vertices,
+          // keep resetting the arrays.
+          shouldReset = true;
+          constructTriangles(ts, chunk);
+          chunk.clear();
+        }
+      }
+      line = in.getLine();
+      start += buf.limit();
+    }
+    if(!shouldReset) {
+      constructTriangles(ts, chunk);
+    }
+  }
+
+  /**
+   * Parses newline aligned chunks of the object file concurrently and
+   * stitches the results together. Face indices in object files are global
+   * so only the vertices and normals of the chunks need to be placed at their
+   * global offsets. The file is mapped in parts of {@link #WINDOW_SIZE} bytes
+   * that are split into chunks. Chunks of a part are parsed while the next
+   * part is mapped.
+   *
+   * @param fc The file
+   * @param size The size of the file
+   * @param ts Data structure to store the triangles in
+   * @return Whether the file could be read in parallel. Files with faces that
+   *         reference only the last 3 or 4 vertices and malformed files are
+   *         left to the sequential reader.
+   * @throws IOException If the file cannot be mapped
+   */
+  private boolean loadParallel(final FileChannel fc, final long size,
+      final TriangleStorage ts) throws IOException {
+    final ForkJoinPool fjp = Main.SINGLE_THREAD ? new ForkJoinPool(1) : new ForkJoinPool();
+    final List<Chunk> chunks = new ArrayList<>();
+    try {
+      long pos = 0;
+      while(pos < size) {
+        final ByteBuffer buf = window(fc, pos, size);
+        final int len = buf.limit();
+        final int count = Math.max(1, Math.min(len / MIN_CHUNK_SIZE,
+            fjp.getParallelism() * CHUNKS_PER_CORE));
+        int start = 0;
+        for(int i = 0; i < count; ++i) {
+          int end = i == count - 1 ? len : (int) ((long) len * (i + 1) / count);
+          while(end < len && buf.get(end - 1) != '\n') {
+            ++end;
+          }
+          final ByteBuffer part = buf.duplicate();
+          part.limit(Math.max(start, end));
+          part.position(start);
+          final Chunk c = new Chunk(part);
+          fjp.execute(c);
+          chunks.add(c);
+          start = Math.max(start, end);
         }
+        pos += len;
       }
-      if(!shouldReset) {
-        constructTriangles(ts);
-        vertices.clear();
-        vertexNormals.clear();
-        faces.clear();
+      for(final Chunk c : chunks) {
+        c.join();
+      }
+    } finally {
+      fjp.shutdown();
+    }
+    int vertexCount = 0;
+    int normalCount = 0;
+    int faceCount = 0;
+    boolean firstFace = true;
+    for(final Chunk c : chunks) {
+      if(c.error != null) return false;
+      if(firstFace && c.firstFace >= 0) {
+        if(vertexCount + c.firstFace <= 4) return false;
+        firstFace = false;
       }
+      vertexCount += c.vertexCount;
+      normalCount += c.normalCount;
+      faceCount += c.faceCount;
     }
+    final Chunk all = new Chunk(null);
+    all.vertices = new double[vertexCount * 3];
+    all.vertexNormals = new double[normalCount * 3];
+    all.faces = new int[faceCount * 3];
+    for(final Chunk c : chunks) {
+      System.arraycopy(c.vertices, 0, all.vertices, all.vertexCount * 3, c.vertexCount * 3);
+      System.arraycopy(c.vertexNormals, 0, all.vertexNormals,
+          all.normalCount * 3, c.normalCount * 3);
+      System.arraycopy(c.faces, 0, all.faces, all.faceCount * 3, c.faceCount * 3);
+      all.vertexCount += c.vertexCount;
+      all.normalCount += c.normalCount;
+      all.faceCount += c.faceCount;
+    }
+    try {
+      constructTriangles(ts, all);
+    } catch(final IOException e) {
+      return false;
+    }
+    return true;
   }
 
   /**
    * @param ts Data structure to store the triangles in
+   * @param chunk The parsed vertices, normals, and faces
+   * @throws IOException If the vertex normals do not match the vertices.
+   */
+  private void constructTriangles(final TriangleStorage ts, final Chunk chunk)
+      throws IOException {
+    final double[] normals;
+    if(chunk.normalCount == 0) {
+      // No normals
+      normals = null;
+    } else if(chunk.normalCount >= chunk.vertexCount) {
+      // Has normals
+      normals = Arrays.copyOf(chunk.vertexNormals, chunk.vertexCount * 3);
+    } else throw new IOException("missing vertex normals in " + objectFile);
+    ts.addMesh(new IndexedMesh(Arrays.copyOf(chunk.vertices, chunk.vertexCount * 3),
+        normals, Arrays.copyOf(chunk.faces, chunk.faceCount * 3)));
+  }
+
+  /**
+   * The vertices, normals, and faces of a part of the object file.
+   *
+   * @author Joschi <josua.krause@gmail.com>
    */
-  private void constructTriangles(final TriangleStorage ts) {
-    for(final int[] face : faces) {
-      if(face.length == 3) {
-        // No normals
-        if(vertexNormals.isEmpty()) {
-          ts.addTriangle(new Triangle(vertices.get(face[0] - 1),
-              vertices.get(face[1] - 1), vertices.get(face[2] - 1)));
-        } else {
-          // Has normals
-          ts.addTriangle(new Triangle(
-              vertices.get(face[0] - 1), vertices.get(face[1] - 1),
-              vertices.get(face[2] - 1), vertexNormals.get(face[0] - 1),
-              vertexNormals.get(face[1] - 1), vertexNormals.get(face[2] - 1)));
+  private static final class Chunk extends RecursiveAction {
+
+    /**
+     * The part of the file or <code>null</code> if the chunk is filled by the
+     * caller
+     */
+    private final ByteBuffer buf;
+    /**
+     * Stored vertices from the object file
+     */
+    double[] vertices = new double[0];
+    /**
+     * Number of stored vertices
+     */
+    int vertexCount;
+    /**
+     * Stored vertex normals from the object file
+     */
+    double[] vertexNormals = new double[0];
+    /**
+     * Number of stored vertex normals
+     */
+    int normalCount;
+    /**
+     * Indices of the vertices that make up each triangle
+     */
+    int[] faces = new int[0];
+    /**
+     * Number of stored triangles
+     */
+    int faceCount;
+    /**
+     * Number of vertices before the first face or -1 if there are no faces
+     */
+    int firstFace = -1;
+    /**
+     * The exception if the part of the file is malformed
+     */
+    IOException error;
+
+    /**
+     * Constructor
+     *
+     * @param buf the part of the file or <code>null</code>
+     */
+    public Chunk(final ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    protected void compute() {
+      final OBJTokenizer in = new OBJTokenizer(buf, 0);
+      try {
+        for(; in.hasMoreLines(); in.nextLine()) {
+          if(parseLine(in) == OBJTokenizer.FACE && firstFace < 0) {
+            firstFace = vertexCount;
+          }
         }
-      } else {
-        // No normals
-        if(vertexNormals.isEmpty()) {
-          ts.addTriangle(new Triangle(vertices.get(face[0] - 1),
-              vertices.get(face[1] - 1), vertices.get(face[2] - 1)));
-          ts.addTriangle(new Triangle(vertices.get(face[2] - 1),
-              vertices.get(face[3] - 1), vertices.get(face[0] - 1)));
-        } else {
-          // Has normals
-          ts.addTriangle(new Triangle(
-              vertices.get(face[0] - 1), vertices.get(face[1] - 1),
-              vertices.get(face[2] - 1), vertexNormals.get(face[0] - 1),
-              vertexNormals.get(face[1] - 1), vertexNormals.get(face[2] - 1)));
-          ts.addTriangle(new Triangle(
-              vertices.get(face[2] - 1), vertices.get(face[3] - 1),
-              vertices.get(face[0] - 1), vertexNormals.get(face[2] - 1),
-              vertexNormals.get(face[3] - 1), vertexNormals.get(face[0] - 1)));
+      } catch(final IOException e) {
+        // the sequential reader reports the correct line
+        error = e;
+      }
+    }
+
+    /**
+     * Parses the current line.
+     *
+     * @param in The tokenizer
+     * @return The keyword of the line
+     * @throws IOException If the line is malformed
+     */
+    public int parseLine(final OBJTokenizer in) throws IOException {
+      final int keyword = in.keyword();
+      switch(keyword) {
+        case OBJTokenizer.VERTEX:
+          // Add vertices
+          vertices = add(vertices, vertexCount++,
+              in.nextDouble(), in.nextDouble(), in.nextDouble());
+          break;
+        case OBJTokenizer.NORMAL:
+          // Add vertex normals
+          vertexNormals = add(vertexNormals, normalCount++,
+              in.nextDouble(), in.nextDouble(), in.nextDouble());
+          break;
+        case OBJTokenizer.FACE: {
+          // Add faces
+          final int a = in.nextInt();
+          final int b = in.nextInt();
+          final int c = in.nextInt();
+          if(!in.hasToken()) {
+            // Triangle face
+            addFace(a, b, c);
+          } else {
+            final int d = in.nextInt();
+            if(!in.hasToken()) {
+              // Quadrilateral face
+              addFace(a, b, c);
+              addFace(c, d, a);
+            }
+          }
+          break;
         }
+        default:
+          // ignore other lines
       }
+      return keyword;
     }
-  }
+
+    /**
+     * Clears the stored vertices, normals, and faces.
+     */
+    public void clear() {
+      vertexCount = 0;
+      normalCount = 0;
+      faceCount = 0;
+    }
+
+    /**
+     * Adds a triangle.
+     *
+     * @param a The one based index of the first corner.
+     * @param b The one based index of the second corner.
+     * @param c The one based index of the third corner.
+     */
+    private void addFace(final int a, final int b, final int c) {
+      if((faceCount + 1) * 3 > faces.length) {
+        faces = Arrays.copyOf(faces, Math.max(16, faceCount * 2) * 3);
+      }
+      faces[faceCount * 3] = a - 1;
+      faces[faceCount * 3 + 1] = b - 1;
+      faces[faceCount * 3 + 2] = c - 1;
+      ++faceCount;
+    }
+
+    /**
+     * Adds coordinates to an array.
+     *
+     * @param arr The array.
+     * @param index The index of the new coordinates.
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param z The z coordinate.
+     * @return The array or a bigger copy if the capacity was not sufficient.
+     */
+    private static double[] add(final double[] arr, final int index,
+        final double x, final double y, final double z) {
+      final double[] res = (index + 1) * 3 > arr.length
+          ? Arrays.copyOf(arr, Math.max(16, index * 2) * 3) : arr;
+      res[index * 3] = x;
+      res[index * 3 + 1] = y;
+      res[index * 3 + 2] = z;
+      return res;
+    }
+
+  } // Chunk
 
 }
@@ -0,0 +1,310 @@
+package cgp.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the content of an object file into tokens. The tokenizer works
+ * directly on the bytes of the buffer and parses numbers without creating
+ * intermediate strings.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+final class OBJTokenizer {
+
+  /** A line starting with an unknown keyword or an empty line. */
+  public static final int OTHER = 0;
+  /** A line starting with <code>v</code>. */
+  public static final int VERTEX = 1;
+  /** A line starting with <code>vn</code>. */
+  public static final int NORMAL = 2;
+  /** A line starting with <code>f</code>. */
+  public static final int FACE = 3;
+
+  /** The powers of ten that can be represented exactly. */
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+  };
+  /** The largest mantissa that can be represented exactly. */
+  private static final long MAX_EXACT = 1L << 53;
+
+  /** The buffer. */
+  private final ByteBuffer buf;
+  /** The current position. */
+  private int pos;
+  /** The end of the content. */
+  private final int end;
+  /** The line number of the current line. */
+  private int line;
+
+  /**
+   * Creates a tokenizer for the remaining content of the buffer.
+   *
+   * @param buf The buffer. The position of the buffer is not changed.
+   * @param line The line number of the first line.
+   */
+  public OBJTokenizer(final ByteBuffer buf, final int line) {
+    this.buf = buf;
+    pos = buf.position();
+    end = buf.limit();
+    this.line = line;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The line number of the current line.
+   */
+  public int getLine() {
+    return line;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return Whether there are more lines.
+   */
+  public boolean hasMoreLines() {
+    return pos < end;
+  }
+
+  /**
+   * Reads the keyword of the current line.
+   *
+   * @return The keyword. One of {@link #VERTEX}, {@link #NORMAL},
+   *         {@link #FACE}, or {@link #OTHER}.
+   */
+  public int keyword() {
+    skipSpaces();
+    final int start = pos;
+    while(pos < end && !isSeparator(buf.get(pos))) {
+      ++pos;
+    }
+    final int len = pos - start;
+    if(len == 1) {
+      final byte b = buf.get(start);
+      if(b == 'v') return VERTEX;
+      if(b == 'f') return FACE;
+    } else if(len == 2 && buf.get(start) == 'v' && buf.get(start + 1) == 'n') return NORMAL;
+    return OTHER;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return Whether the current line has more tokens.
+   */
+  public boolean hasToken() {
+    skipSpaces();
+    return pos < end && !isNewline(buf.get(pos));
+  }
+
+  /**
+   * Skips to the beginning of the next line.
+   */
+  public void nextLine() {
+    while(pos < end) {
+      final byte b = buf.get(pos++);
+      if(b == '\n') {
+        break;
+      }
+    }
+    ++line;
+  }
+
+  /**
+   * Parses the next token as integer. Additional indices of the token
+   * separated by <code>/</code> are ignored.
+   *
+   * @return The integer.
+   * @throws IOException If the token is not an integer.
+   */
+  public int nextInt() throws IOException {
+    skipSpaces();
+    final int start = pos;
+    boolean neg = false;
+    if(pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+      neg = buf.get(pos++) == '-';
+    }
+    long res = 0;
+    final int digits = pos;
+    while(pos < end) {
+      final int d = buf.get(pos) - '0';
+      if(d < 0 || d > 9) {
+        break;
+      }
+      res = res * 10 + d;
+      if(res > Integer.MAX_VALUE) throw error(start);
+      ++pos;
+    }
+    if(pos == digits) throw error(start);
+    // skip texture and normal indices
+    while(pos < end && !isSeparator(buf.get(pos))) {
+      if(buf.get(pos) != '/') throw error(start);
+      ++pos;
+      while(pos < end) {
+        final int d = buf.get(pos) - '0';
+        if(d < 0 || d > 9) {
+          break;
+        }
+        ++pos;
+      }
+    }
+    return (int) (neg ? -res : res);
+  }
+
+  /**
+   * Parses the next token as floating point number. Numbers that cannot be
+   * parsed exactly by the fast path are delegated to
+   * {@link Double#parseDouble(String)}. The results are always identical.
+   *
+   * @return The number.
+   * @throws IOException If the token is not a number.
+   */
+  public double nextDouble() throws IOException {
+    skipSpaces();
+    final int start = pos;
+    boolean neg = false;
+    if(pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+      neg = buf.get(pos++) == '-';
+    }
+    long mantissa = 0;
+    int exp = 0;
+    int digits = 0;
+    boolean exact = true;
+    boolean dot = false;
+    while(pos < end) {
+      final byte b = buf.get(pos);
+      if(b == '.' && !dot) {
+        dot = true;
+      } else {
+        final int d = b - '0';
+        if(d < 0 || d > 9) {
+          break;
+        }
+        ++digits;
+        if(mantissa < MAX_EXACT) {
+          mantissa = mantissa * 10 + d;
+          if(dot) {
+            --exp;
+          }
+        } else {
+          exact = false;
+        }
+      }
+      ++pos;
+    }
+    if(digits == 0) return slowDouble(start);
+    if(pos < end && (buf.get(pos) == 'e' || buf.get(pos) == 'E')) {
+      ++pos;
+      boolean negExp = false;
+      if(pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+        negExp = buf.get(pos++) == '-';
+      }
+      int e = 0;
+      final int expDigits = pos;
+      while(pos < end) {
+        final int d = buf.get(pos) - '0';
+        if(d < 0 || d > 9) {
+          break;
+        }
+        if(e < 10000) {
+          e = e * 10 + d;
+        }
+        ++pos;
+      }
+      if(pos == expDigits) return slowDouble(start);
+      exp += negExp ? -e : e;
+    }
+    if(pos < end && !isSeparator(buf.get(pos))) return slowDouble(start);
+    if(!exact || mantissa > MAX_EXACT || exp < -22 || exp > 22) return slowDouble(start);
+    // both the mantissa and the power of ten are exact
+    // so the result is rounded correctly
+    final double res = exp < 0 ? mantissa / POWERS_OF_TEN[-exp]
+        : mantissa * POWERS_OF_TEN[exp];
+    return neg ? -res : res;
+  }
+
+  /**
+   * Parses the token starting at the given position with
+   * {@link Double#parseDouble(String)}.
+   *
+   * @param start The start of the token.
+   * @return The number.
+   * @throws IOException If the token is not a number.
+   */
+  private double slowDouble(final int start) throws IOException {
+    pos = start;
+    while(pos < end && !isSeparator(buf.get(pos))) {
+      ++pos;
+    }
+    try {
+      return Double.parseDouble(token(start));
+    } catch(final NumberFormatException e) {
+      throw new IOException("line " + line + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Creates an exception for a malformed token.
+   *
+   * @param start The start of the token.
+   * @return The exception.
+   */
+  private IOException error(final int start) {
+    pos = start;
+    while(pos < end && !isSeparator(buf.get(pos))) {
+      ++pos;
+    }
+    return new IOException("line " + line + ": invalid token '" + token(start) + "'");
+  }
+
+  /**
+   * Creates a string from the bytes from the given start to the current
+   * position.
+   *
+   * @param start The start.
+   * @return The string.
+   */
+  private String token(final int start) {
+    final byte[] bytes = new byte[pos - start];
+    for(int i = 0; i < bytes.length; ++i) {
+      bytes[i] = buf.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+
+  /** Skips spaces but not line breaks. */
+  private void skipSpaces() {
+    while(pos < end) {
+      final byte b = buf.get(pos);
+      if(b != ' ' && b != '\t' && b != '\r' && b != '\f') {
+        break;
+      }
+      ++pos;
+    }
+  }
+
+  /**
+   * Whether the byte ends a token.
+   *
+   * @param b The byte.
+   * @return Whether the byte is a white space.
+   */
+  private static boolean isSeparator(final byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\f';
+  }
+
+  /**
+   * Whether the byte ends a line.
+   *
+   * @param b The byte.
+   * @return Whether the byte is a line break.
+   */
+  private static boolean isNewline(final byte b) {
+    return b == '\n';
+  }
+
+}
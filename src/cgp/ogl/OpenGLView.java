@@ -14,7 +14,7 @@ import org.lwjgl.opengl.Display;
 import org.lwjgl.opengl.DisplayMode;
 import org.lwjgl.util.glu.GLU;
 
-import cgp.algos.Triangles;
+import cgp.algos.Scene;
 import cgp.data.Triangle;
 import cgp.data.Vec4;
 
@@ -25,8 +25,8 @@ import cgp.data.Vec4;
  */
 public class OpenGLView {
 
-  /** The triangle storage. */
-  private final Triangles storage;
+  /** The scene. */
+  private final Scene scene;
   /** The camera. */
   private final Camera cam;
   /** Whether to destroy the frame. */
@@ -39,14 +39,14 @@ public class OpenGLView {
    *
    * @param name The name of the model.
    * @param cam The camera.
-   * @param storage The triangle storage.
+   * @param scene The scene.
    * @param isRunning Whether a ray-tracing computation is currently running.
    * @param requestRefresh Can be used to request an OpenGL refresh.
    */
-  public OpenGLView(final String name, final Camera cam, final Triangles storage,
+  public OpenGLView(final String name, final Camera cam, final Scene scene,
       final AtomicBoolean isRunning, final AtomicBoolean requestRefresh) {
     this.cam = Objects.requireNonNull(cam);
-    this.storage = Objects.requireNonNull(storage);
+    this.scene = Objects.requireNonNull(scene);
     final AtomicBoolean k = kill = new AtomicBoolean(false);
     final Thread t = new Thread() {
 
@@ -156,15 +156,19 @@ public class OpenGLView {
    */
   void draw(final int list) {
     glNewList(list, GL_COMPILE);
-    for(final Triangle t : storage.getList()) {
-      glBegin(GL_TRIANGLES);
-      viewColor(t.getA(), t.getANormal());
-      vertex(t.getA());
-      viewColor(t.getB(), t.getBNormal());
-      vertex(t.getB());
-      viewColor(t.getC(), t.getCNormal());
-      vertex(t.getC());
-      glEnd();
+    for(int inst = 0; inst < scene.instanceCount(); ++inst) {
+      final int size = scene.getMesh(inst).size();
+      for(int i = 0; i < size; ++i) {
+        final Triangle t = scene.getTriangle(inst, i);
+        glBegin(GL_TRIANGLES);
+        viewColor(t.getA(), t.getANormal());
+        vertex(t.getA());
+        viewColor(t.getB(), t.getBNormal());
+        vertex(t.getB());
+        viewColor(t.getC(), t.getCNormal());
+        vertex(t.getC());
+        glEnd();
+      }
     }
     glEndList();
     glMatrixMode(GL_PROJECTION);
@@ -0,0 +1,194 @@
+package cgp.tracer;
+
+import cgp.algos.Hitter;
+import cgp.data.BarycentricCoordinates;
+import cgp.data.Ray;
+import cgp.data.Triangle;
+
+/**
+ * Stores the results of an image in flat primitive arrays instead of hit
+ * objects. The value of the pixel at <code>x</code> and <code>y</code> is
+ * stored at the position <code>y * width + x</code> of every array. The
+ * tracing threads write the pixels directly. Every pixel is written by
+ * exactly one thread.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class GBuffer {
+
+  /** The width. */
+  private final int width;
+  /** The height. */
+  private final int height;
+  /** The travel distance of every pixel or <code>-1</code> if nothing got hit. */
+  private final float[] distances;
+  /**
+   * The index of the triangle of every pixel or <code>-1</code> if nothing got
+   * hit.
+   *
+   * @see Hitter#getTriangle(int)
+   */
+  private final int[] triangles;
+  /** The barycentric u coordinate of every pixel. */
+  private final float[] us;
+  /** The barycentric v coordinate of every pixel. */
+  private final float[] vs;
+  /** The triangle test count of every pixel. */
+  private final int[] tests;
+  /** The bounding box test count of every pixel. */
+  private final int[] bboxes;
+
+  /**
+   * Creates a G-buffer.
+   *
+   * @param width The width.
+   * @param height The height.
+   */
+  public GBuffer(final int width, final int height) {
+    if(width < 0) throw new IllegalArgumentException("" + width);
+    if(height < 0) throw new IllegalArgumentException("" + height);
+    this.width = width;
+    this.height = height;
+    final int size = width * height;
+    distances = new float[size];
+    triangles = new int[size];
+    us = new float[size];
+    vs = new float[size];
+    tests = new int[size];
+    bboxes = new int[size];
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The width.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The height.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Getter.
+   *
+   * @param x The x coordinate.
+   * @param y The y coordinate.
+   * @return The position of the pixel in the arrays.
+   */
+  public int index(final int x, final int y) {
+    return y * width + x;
+  }
+
+  /**
+   * Stores a hit.
+   *
+   * @param x The x coordinate.
+   * @param y The y coordinate.
+   * @param hit The hit. Hits without a triangle index are stored as misses.
+   */
+  void set(final int x, final int y, final Hit hit) {
+    final int i = index(x, y);
+    tests[i] = (int) hit.getTestCount();
+    bboxes[i] = (int) hit.getBBoxCount();
+    if(!hit.hasHit() || hit.getIndex() < 0) {
+      distances[i] = -1;
+      triangles[i] = -1;
+      us[i] = 0;
+      vs[i] = 0;
+      return;
+    }
+    final BarycentricCoordinates b = hit.getBarycentric();
+    distances[i] = (float) hit.getDistance();
+    triangles[i] = hit.getIndex();
+    us[i] = (float) b.getU();
+    vs[i] = (float) b.getV();
+  }
+
+  /**
+   * Creates a hit object for a pixel.
+   *
+   * @param x The x coordinate.
+   * @param y The y coordinate.
+   * @param ray The ray of the pixel.
+   * @param hitter The data structure the image was shot with.
+   * @return The hit.
+   */
+  public Hit getHit(final int x, final int y, final Ray ray, final Hitter hitter) {
+    final int i = index(x, y);
+    final int index = triangles[i];
+    if(index < 0) return new Hit(ray, null, -1, -1, tests[i], bboxes[i]);
+    final Triangle tri = hitter.getTriangle(index);
+    final Hit hit = new Hit(ray, tri, index, distances[i], tests[i], bboxes[i]);
+    hit.setBarycentric(tri.getAt(us[i], vs[i]));
+    return hit;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The travel distance of every pixel or <code>-1</code> if nothing
+   *         got hit. The array is not copied.
+   */
+  public float[] getDistances() {
+    return distances;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The index of the triangle of every pixel or <code>-1</code> if
+   *         nothing got hit. The array is not copied.
+   * @see Hitter#getTriangle(int)
+   */
+  public int[] getTriangles() {
+    return triangles;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The barycentric u coordinate of every pixel. The array is not
+   *         copied.
+   */
+  public float[] getUs() {
+    return us;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The barycentric v coordinate of every pixel. The array is not
+   *         copied.
+   */
+  public float[] getVs() {
+    return vs;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The triangle test count of every pixel. The array is not copied.
+   */
+  public int[] getTestCounts() {
+    return tests;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The bounding box test count of every pixel. The array is not
+   *         copied.
+   */
+  public int[] getBBoxCounts() {
+    return bboxes;
+  }
+
+}
@@ -17,6 +17,11 @@ public class Hit {
   private final Ray ray;
   /** The triangle that got hit or <code>null</code>. */
   private final Triangle tri;
+  /**
+   * The index of the triangle in the data structure or <code>-1</code> if
+   * unknown or no triangle got hit.
+   */
+  private final int index;
   /**
    * The travel distance of the ray. This value is positive iff {@link #tri} is
    * not <code>null</code>.
@@ -50,14 +55,49 @@ public class Hit {
    */
   public Hit(final Ray ray, final Triangle tri,
       final double distance, final TestCounter testCount) {
+    this(ray, tri, -1, distance, testCount);
+  }
+
+  /**
+   * Creates a new hit.
+   * 
+   * @param ray The ray.
+   * @param tri The triangle that got hit or <code>null</code>.
+   * @param index The index of the triangle in the data structure.
+   * @param distance The travel distance or a negative value if no triangle got
+   *          hit. The travel distance is measured in direction vectors. If the
+   *          triangle is <code>null</code> the distance is automatically set to
+   *          a negative value.
+   * @param testCount The test count.
+   * @see cgp.algos.Hitter#getTriangle(int)
+   */
+  public Hit(final Ray ray, final Triangle tri, final int index,
+      final double distance, final TestCounter testCount) {
+    this(ray, tri, index, distance, testCount.getCount(), testCount.getBBoxCount());
+  }
+
+  /**
+   * Creates a new hit.
+   * 
+   * @param ray The ray.
+   * @param tri The triangle that got hit or <code>null</code>.
+   * @param index The index of the triangle in the data structure.
+   * @param distance The travel distance.
+   * @param testCount The triangle test count.
+   * @param bboxCount The bounding box test count.
+   */
+  Hit(final Ray ray, final Triangle tri, final int index,
+      final double distance, final long testCount, final long bboxCount) {
     this.ray = Objects.requireNonNull(ray);
-    this.testCount = testCount.getCount();
-    bboxCount = testCount.getBBoxCount();
+    this.testCount = testCount;
+    this.bboxCount = bboxCount;
     if(tri != null) {
       this.tri = tri;
+      this.index = index;
       this.distance = distance;
     } else {
       this.tri = null;
+      this.index = -1;
       this.distance = -1;
     }
   }
@@ -96,6 +136,15 @@ public class Hit {
     return bary;
   }
 
+  /**
+   * Setter.
+   * 
+   * @param bary The already known barycentric coordinate of the hit.
+   */
+  void setBarycentric(final BarycentricCoordinates bary) {
+    this.bary = bary;
+  }
+
   /**
    * Getter.
    * 
@@ -131,4 +180,14 @@ public class Hit {
     return tri;
   }
 
+  /**
+   * Getter.
+   * 
+   * @return The index of the triangle in the data structure or <code>-1</code>
+   *         if unknown or no triangle got hit.
+   */
+  public int getIndex() {
+    return index;
+  }
+
 }
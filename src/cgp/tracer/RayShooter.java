@@ -1,6 +1,7 @@
 package cgp.tracer;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.ForkJoinPool;
@@ -9,6 +10,7 @@ import java.util.concurrent.RecursiveAction;
 import cgp.Main;
 import cgp.algos.Hitter;
 import cgp.consume.HitConsumer;
+import cgp.consume.StreamingConsumer;
 import cgp.data.Ray;
 
 /**
@@ -24,6 +26,20 @@ public class RayShooter {
   private final RayProducer prod;
   /** The triangle hit tester. */
   private Hitter hitter;
+  /** The width and height of the ray packets. */
+  private int packetSize = 1;
+  /** The tile scheduler or <code>null</code> if the image is split in halves. */
+  private TileScheduler tiles;
+  /** Whether the results are written to a G-buffer instead of hit objects. */
+  private boolean useGBuffer;
+  /** The G-buffer of the last image or <code>null</code>. */
+  private GBuffer gbuffer;
+  /** Whether streaming consumers are fed by the tracing threads. */
+  private boolean streaming;
+  /** Whether the consumers are notified concurrently after shooting. */
+  private boolean parallelConsumers;
+  /** The consumers that are fed by the tracing threads for the current image. */
+  private List<StreamingConsumer> streamed = Collections.emptyList();
 
   /**
    * Creates a new ray shooter.
@@ -45,6 +61,96 @@ public class RayShooter {
     this.hitter = Objects.requireNonNull(hitter);
   }
 
+  /**
+   * Getter.
+   * 
+   * @return The triangle hit tester.
+   */
+  public Hitter getHitter() {
+    return hitter;
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param packetSize The width and height of the square ray packets. Each
+   *          packet is passed to {@link Hitter#getHits(Ray[], TestCounter[], Hit[])}
+   *          at once. A size of <code>1</code> shoots single rays.
+   */
+  public void setPacketSize(final int packetSize) {
+    if(packetSize < 1) throw new IllegalArgumentException("" + packetSize);
+    this.packetSize = packetSize;
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param tiles The tile scheduler or <code>null</code> if the image should
+   *          be split in halves recursively.
+   */
+  public void setTileScheduler(final TileScheduler tiles) {
+    this.tiles = tiles;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The tile scheduler or <code>null</code> if the image is split in
+   *         halves recursively.
+   */
+  public TileScheduler getTileScheduler() {
+    return tiles;
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param useGBuffer Whether the tracing threads write the results to a
+   *          {@link GBuffer} instead of keeping a hit object for every pixel.
+   *          Consumers get a short lived hit object per pixel that is created
+   *          from the G-buffer.
+   */
+  public void setGBufferMode(final boolean useGBuffer) {
+    this.useGBuffer = useGBuffer;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The G-buffer of the last image or <code>null</code> if the last
+   *         image was not shot in G-buffer mode. The same G-buffer is reused
+   *         and overwritten by the next image of the same size.
+   */
+  public GBuffer getGBuffer() {
+    return gbuffer;
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param streaming Whether {@link StreamingConsumer}s are fed by the tracing
+   *          threads as soon as a region of the image is shot. Other consumers
+   *          are still notified after the whole image is shot.
+   */
+  public void setStreaming(final boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param parallelConsumers Whether the consumers are notified concurrently
+   *          by the threads of the fork join pool after shooting. The columns
+   *          of the image are partitioned among the threads for
+   *          {@link StreamingConsumer}s. Other consumers get all hits from a
+   *          single thread that is not necessarily the calling thread.
+   *          Afterwards {@link HitConsumer#finished()} is called concurrently
+   *          for all consumers.
+   */
+  public void setParallelConsumers(final boolean parallelConsumers) {
+    this.parallelConsumers = parallelConsumers;
+  }
+
   /**
    * Adds a consumer.
    * 
@@ -65,7 +171,7 @@ public class RayShooter {
    */
   private class ShootingAction extends RecursiveAction {
 
-    /** The hit array. */
+    /** The hit array or <code>null</code> in G-buffer mode. */
     private final Hit[][] hits;
     /** The personal test counter. */
     private final TestCounter counter;
@@ -81,7 +187,7 @@ public class RayShooter {
     /**
      * Creates a shooting action.
      * 
-     * @param hits The hit array.
+     * @param hits The hit array or <code>null</code> in G-buffer mode.
      * @param xFrom The lowest inclusive x coordinate.
      * @param xTo The highest exclusive x coordinate.
      * @param yFrom The lowest inclusive y coordinate.
@@ -99,12 +205,7 @@ public class RayShooter {
 
     /** Actually computes the rays. */
     private void doCompute() {
-      for(int x = xFrom; x < xTo; ++x) {
-        final Hit[] col = hits[x];
-        for(int y = yFrom; y < yTo; ++y) {
-          shootRay(col, x, y, counter);
-        }
-      }
+      shootRegion(hits, xFrom, xTo, yFrom, yTo, counter);
     }
 
     /** The ray threshold. */
@@ -164,45 +265,333 @@ public class RayShooter {
 
   } // ShootingAction
 
+  /**
+   * Feeds a range of columns to consumers.
+   * 
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private final class ConsumeAction extends RecursiveAction {
+
+    /** The hit array or <code>null</code> in G-buffer mode. */
+    private final Hit[][] hits;
+    /** The consumers. */
+    private final List<HitConsumer> cs;
+    /** The height of the image. */
+    private final int h;
+    /** The lowest inclusive x coordinate. */
+    private final int xFrom;
+    /** The highest exclusive x coordinate. */
+    private final int xTo;
+    /** Whether the columns may be split among multiple threads. */
+    private final boolean split;
+
+    /**
+     * Creates a consume action.
+     * 
+     * @param hits The hit array or <code>null</code> in G-buffer mode.
+     * @param cs The consumers.
+     * @param h The height of the image.
+     * @param xFrom The lowest inclusive x coordinate.
+     * @param xTo The highest exclusive x coordinate.
+     * @param split Whether the columns may be split among multiple threads.
+     */
+    public ConsumeAction(final Hit[][] hits, final List<HitConsumer> cs,
+        final int h, final int xFrom, final int xTo, final boolean split) {
+      this.hits = hits;
+      this.cs = cs;
+      this.h = h;
+      this.xFrom = xFrom;
+      this.xTo = xTo;
+      this.split = split;
+    }
+
+    @Override
+    protected void compute() {
+      if(!split || xTo - xFrom <= CONSUME_COLUMNS) {
+        for(int x = xFrom; x < xTo; ++x) {
+          for(int y = 0; y < h; ++y) {
+            final Hit hit = hits != null ? hits[x][y]
+                : gbuffer.getHit(x, y, prod.getFor(x, y), hitter);
+            for(final HitConsumer hc : cs) {
+              hc.hitAt(hit, x, y);
+            }
+          }
+        }
+        return;
+      }
+      final int mid = xFrom + (xTo - xFrom) / 2;
+      invokeAll(new ConsumeAction(hits, cs, h, xFrom, mid, true),
+          new ConsumeAction(hits, cs, h, mid, xTo, true));
+    }
+
+  } // ConsumeAction
+
+  /** The number of columns that are not split any further. */
+  private static final int CONSUME_COLUMNS = 16;
+
+  /**
+   * Notifies all consumers that the image is finished.
+   * 
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private static final class FinishedAction extends RecursiveAction {
+
+    /** The consumer. */
+    private final HitConsumer hc;
+
+    /**
+     * Creates a finished action.
+     * 
+     * @param hc The consumer.
+     */
+    public FinishedAction(final HitConsumer hc) {
+      this.hc = hc;
+    }
+
+    @Override
+    protected void compute() {
+      hc.finished();
+    }
+
+  } // FinishedAction
+
+  /**
+   * Feeds all consumers concurrently and notifies them afterwards.
+   * 
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private final class FinishingAction extends RecursiveAction {
+
+    /** The hit array or <code>null</code> in G-buffer mode. */
+    private final Hit[][] hits;
+    /** The consumers whose columns can be split among threads. */
+    private final List<HitConsumer> split;
+    /** The consumers that are fed by a single thread. */
+    private final List<HitConsumer> serial;
+    /** The width of the image. */
+    private final int w;
+    /** The height of the image. */
+    private final int h;
+
+    /**
+     * Creates a finishing action.
+     * 
+     * @param hits The hit array or <code>null</code> in G-buffer mode.
+     * @param split The consumers whose columns can be split among threads.
+     * @param serial The consumers that are fed by a single thread.
+     * @param w The width of the image.
+     * @param h The height of the image.
+     */
+    public FinishingAction(final Hit[][] hits, final List<HitConsumer> split,
+        final List<HitConsumer> serial, final int w, final int h) {
+      this.hits = hits;
+      this.split = split;
+      this.serial = serial;
+      this.w = w;
+      this.h = h;
+    }
+
+    @Override
+    protected void compute() {
+      final List<RecursiveAction> feeds = new ArrayList<>();
+      if(!split.isEmpty()) {
+        feeds.add(new ConsumeAction(hits, split, h, 0, w, true));
+      }
+      for(final HitConsumer hc : serial) {
+        feeds.add(new ConsumeAction(hits, Collections.singletonList(hc), h, 0, w, false));
+      }
+      invokeAll(feeds);
+      final List<RecursiveAction> finishers = new ArrayList<>();
+      for(final HitConsumer hc : consumers) {
+        finishers.add(new FinishedAction(hc));
+      }
+      invokeAll(finishers);
+    }
+
+  } // FinishingAction
+
   /**
    * Shoots all rays. The consumers get notified after the shooting is
-   * completed.
+   * completed. In streaming mode streaming consumers get notified by the
+   * tracing threads instead.
    * 
    * @return The number of triangle checks.
    */
   public long[] shootRays() {
     final int w = prod.getWidth();
     final int h = prod.getHeight();
-    final Hit[][] res = new Hit[w][h];
-    final ShootingAction sa = new ShootingAction(res, 0, w, 0, h);
-    fjp.invoke(sa);
-    finish(res);
-    return new long[] { sa.getTotalTestCount(), sa.getTotalBBoxCount()};
+    final Hit[][] res;
+    if(useGBuffer) {
+      if(gbuffer == null || gbuffer.getWidth() != w || gbuffer.getHeight() != h) {
+        gbuffer = new GBuffer(w, h);
+      }
+      res = null;
+    } else {
+      gbuffer = null;
+      res = new Hit[w][h];
+    }
+    final List<StreamingConsumer> sc = new ArrayList<>();
+    if(streaming) {
+      for(final HitConsumer hc : consumers) {
+        if(hc instanceof StreamingConsumer) {
+          final StreamingConsumer s = (StreamingConsumer) hc;
+          s.setSize(w, h);
+          sc.add(s);
+        }
+      }
+    }
+    streamed = sc;
+    final TileScheduler ts = tiles;
+    final long[] checks;
+    if(ts != null) {
+      checks = ts.shoot(this, fjp, res, w, h);
+    } else {
+      final ShootingAction sa = new ShootingAction(res, 0, w, 0, h);
+      fjp.invoke(sa);
+      checks = new long[] { sa.getTotalTestCount(), sa.getTotalBBoxCount()};
+    }
+    if(parallelConsumers) {
+      finishParallel(res, w, h);
+    } else if(res != null) {
+      finish(res);
+    } else {
+      finish(gbuffer);
+    }
+    streamed = Collections.emptyList();
+    return checks;
+  }
+
+  /**
+   * Shoots the rays of a rectangular region either as single rays or as
+   * packets. The results are streamed afterwards.
+   * 
+   * @param hits The hit array or <code>null</code> in G-buffer mode.
+   * @param xFrom The lowest inclusive x coordinate.
+   * @param xTo The highest exclusive x coordinate.
+   * @param yFrom The lowest inclusive y coordinate.
+   * @param yTo The highest exclusive y coordinate.
+   * @param all The total triangle check counter.
+   */
+  void shootRegion(final Hit[][] hits, final int xFrom, final int xTo,
+      final int yFrom, final int yTo, final TestCounter all) {
+    final int size = packetSize;
+    if(size > 1) {
+      for(int x = xFrom; x < xTo; x += size) {
+        for(int y = yFrom; y < yTo; y += size) {
+          shootPacket(hits, x, Math.min(x + size, xTo),
+              y, Math.min(y + size, yTo), all);
+        }
+      }
+    } else {
+      for(int x = xFrom; x < xTo; ++x) {
+        for(int y = yFrom; y < yTo; ++y) {
+          shootRay(hits, x, y, all);
+        }
+      }
+    }
+    stream(hits, xFrom, xTo, yFrom, yTo);
+  }
+
+  /**
+   * Feeds the results of a finished region to the streaming consumers. This
+   * is called by the tracing threads.
+   * 
+   * @param hits The hit array or <code>null</code> in G-buffer mode.
+   * @param xFrom The lowest inclusive x coordinate.
+   * @param xTo The highest exclusive x coordinate.
+   * @param yFrom The lowest inclusive y coordinate.
+   * @param yTo The highest exclusive y coordinate.
+   */
+  private void stream(final Hit[][] hits, final int xFrom, final int xTo,
+      final int yFrom, final int yTo) {
+    final List<StreamingConsumer> sc = streamed;
+    if(sc.isEmpty()) return;
+    for(int x = xFrom; x < xTo; ++x) {
+      for(int y = yFrom; y < yTo; ++y) {
+        final Hit hit = hits != null ? hits[x][y]
+            : gbuffer.getHit(x, y, prod.getFor(x, y), hitter);
+        for(final StreamingConsumer s : sc) {
+          s.hitAt(hit, x, y);
+        }
+      }
+    }
+    for(final StreamingConsumer s : sc) {
+      s.regionDone(xFrom, xTo, yFrom, yTo);
+    }
   }
 
   /**
    * Shoots a single ray.
    * 
-   * @param hits A column of the hit array.
+   * @param hits The hit array or <code>null</code> in G-buffer mode.
    * @param x The x coordinate.
    * @param y The y coordinate.
    * @param all The total triangle check counter.
    */
-  void shootRay(final Hit[] hits, final int x, final int y, final TestCounter all) {
+  void shootRay(final Hit[][] hits, final int x, final int y, final TestCounter all) {
     final Ray r = prod.getFor(x, y);
     final TestCounter c = new TestCounter();
     final Hit h = hitter.getHit(r, c);
     all.addChecks(c);
-    hits[y] = h;
+    store(hits, x, y, h);
+  }
+
+  /**
+   * Stores the result of a pixel.
+   * 
+   * @param hits The hit array or <code>null</code> in G-buffer mode.
+   * @param x The x coordinate.
+   * @param y The y coordinate.
+   * @param h The hit.
+   */
+  private void store(final Hit[][] hits, final int x, final int y, final Hit h) {
+    if(hits != null) {
+      hits[x][y] = h;
+    } else {
+      gbuffer.set(x, y, h);
+    }
+  }
+
+  /**
+   * Shoots a packet of neighboring rays.
+   * 
+   * @param hits The hit array or <code>null</code> in G-buffer mode.
+   * @param xFrom The lowest inclusive x coordinate.
+   * @param xTo The highest exclusive x coordinate.
+   * @param yFrom The lowest inclusive y coordinate.
+   * @param yTo The highest exclusive y coordinate.
+   * @param all The total triangle check counter.
+   */
+  void shootPacket(final Hit[][] hits, final int xFrom, final int xTo,
+      final int yFrom, final int yTo, final TestCounter all) {
+    final int w = xTo - xFrom;
+    final int size = w * (yTo - yFrom);
+    final Ray[] packet = new Ray[size];
+    final TestCounter[] counters = new TestCounter[size];
+    final Hit[] res = new Hit[size];
+    for(int i = 0; i < size; ++i) {
+      packet[i] = prod.getFor(xFrom + i % w, yFrom + i / w);
+      counters[i] = new TestCounter();
+    }
+    hitter.getHits(packet, counters, res);
+    for(int i = 0; i < size; ++i) {
+      all.addChecks(counters[i]);
+      store(hits, xFrom + i % w, yFrom + i / w, res[i]);
+    }
   }
 
   /**
-   * Notifies the consumers of the result.
+   * Notifies the consumers of the result. Streamed consumers only get
+   * notified that the image is finished.
    * 
    * @param hits The filled hit array.
    */
   private void finish(final Hit[][] hits) {
     for(final HitConsumer hc : consumers) {
+      if(streamed.contains(hc)) {
+        hc.finished();
+        continue;
+      }
       for(int x = 0; x < hits.length; ++x) {
         final Hit[] col = hits[x];
         if(x == 0) {
@@ -216,4 +605,62 @@ public class RayShooter {
     }
   }
 
+  /**
+   * Notifies the consumers of the result concurrently. Streamed consumers
+   * only get notified that the image is finished.
+   * 
+   * @param hits The filled hit array or <code>null</code> in G-buffer mode.
+   * @param w The width of the image.
+   * @param h The height of the image.
+   */
+  private void finishParallel(final Hit[][] hits, final int w, final int h) {
+    final List<HitConsumer> split = new ArrayList<>();
+    final List<HitConsumer> serial = new ArrayList<>();
+    for(final HitConsumer hc : consumers) {
+      if(streamed.contains(hc)) {
+        continue;
+      }
+      hc.setSize(w, h);
+      if(hc instanceof StreamingConsumer) {
+        split.add(hc);
+      } else {
+        serial.add(hc);
+      }
+    }
+    fjp.invoke(new FinishingAction(hits, split, serial, w, h));
+  }
+
+  /**
+   * Notifies the consumers of the result. The hit object of a pixel is
+   * created from the G-buffer and passed to all consumers before the next
+   * pixel is created. Streamed consumers only get notified that the image is
+   * finished.
+   * 
+   * @param gb The filled G-buffer.
+   */
+  private void finish(final GBuffer gb) {
+    final int w = gb.getWidth();
+    final int h = gb.getHeight();
+    final List<HitConsumer> rest = new ArrayList<>();
+    for(final HitConsumer hc : consumers) {
+      if(!streamed.contains(hc)) {
+        hc.setSize(w, h);
+        rest.add(hc);
+      }
+    }
+    if(!rest.isEmpty()) {
+      for(int x = 0; x < w; ++x) {
+        for(int y = 0; y < h; ++y) {
+          final Hit hit = gb.getHit(x, y, prod.getFor(x, y), hitter);
+          for(final HitConsumer hc : rest) {
+            hc.hitAt(hit, x, y);
+          }
+        }
+      }
+    }
+    for(final HitConsumer hc : consumers) {
+      hc.finished();
+    }
+  }
+
 }
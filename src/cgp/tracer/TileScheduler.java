@@ -0,0 +1,287 @@
+package cgp.tracer;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Divides the image into square tiles and shoots them in the order of a space
+ * filling curve. Either the Z-order curve or the Hilbert curve is used. The
+ * fork join pool splits the sequence of tiles in halves so every thread works
+ * on tiles that are close on the screen and touch the same parts of the data
+ * structure. Idle threads steal the remaining halves of busy threads. The time
+ * spent on every tile is recorded to show the load imbalance across the
+ * image.
+ *
+ * @author Joschi <josua.krause@gmail.com>
+ */
+public class TileScheduler {
+
+  /**
+   * Shoots a range of the tile sequence.
+   *
+   * @author Joschi <josua.krause@gmail.com>
+   */
+  private final class TileAction extends RecursiveAction {
+
+    /** The ray shooter. */
+    private final RayShooter rs;
+    /** The hit array or <code>null</code> in G-buffer mode. */
+    private final Hit[][] hits;
+    /** The lower inclusive position in the tile sequence. */
+    private final int from;
+    /** The upper exclusive position in the tile sequence. */
+    private final int to;
+    /** The personal test counter. */
+    private final TestCounter counter;
+
+    /**
+     * Creates a tile action.
+     *
+     * @param rs The ray shooter.
+     * @param hits The hit array or <code>null</code> in G-buffer mode.
+     * @param from The lower inclusive position in the tile sequence.
+     * @param to The upper exclusive position in the tile sequence.
+     */
+    public TileAction(final RayShooter rs, final Hit[][] hits,
+        final int from, final int to) {
+      this.rs = rs;
+      this.hits = hits;
+      this.from = from;
+      this.to = to;
+      counter = new TestCounter();
+    }
+
+    @Override
+    protected void compute() {
+      if(to - from <= 1) {
+        for(int i = from; i < to; ++i) {
+          shootTile(rs, hits, order[i], counter);
+        }
+        return;
+      }
+      final int mid = from + (to - from) / 2;
+      final TileAction sa = new TileAction(rs, hits, from, mid);
+      final TileAction sb = new TileAction(rs, hits, mid, to);
+      invokeAll(sa, sb);
+      counter.addChecks(sa.counter);
+      counter.addChecks(sb.counter);
+    }
+
+  } // TileAction
+
+  /** The width and height of the tiles. */
+  private final int tileSize;
+  /** Whether the tiles are ordered along the Hilbert curve. */
+  private final boolean hilbert;
+  /** The number of tiles in x direction. */
+  private int tilesX;
+  /** The number of tiles in y direction. */
+  private int tilesY;
+  /** The width of the image. */
+  private int width;
+  /** The height of the image. */
+  private int height;
+  /** The tiles in the order of the curve. A tile is <code>y * tilesX + x</code>. */
+  private int[] order;
+  /** The nano seconds spent on every tile of the last image. */
+  private long[] tileTimes;
+
+  /**
+   * Creates a tile scheduler.
+   *
+   * @param tileSize The width and height of the tiles.
+   * @param hilbert Whether the tiles are ordered along the Hilbert curve
+   *          instead of the Z-order curve.
+   */
+  public TileScheduler(final int tileSize, final boolean hilbert) {
+    if(tileSize < 1) throw new IllegalArgumentException("" + tileSize);
+    this.tileSize = tileSize;
+    this.hilbert = hilbert;
+    tilesX = 0;
+    tilesY = 0;
+    order = new int[0];
+    tileTimes = new long[0];
+  }
+
+  /**
+   * Shoots all rays of the image.
+   *
+   * @param rs The ray shooter.
+   * @param fjp The fork join pool.
+   * @param hits The hit array or <code>null</code> in G-buffer mode.
+   * @param w The width of the image.
+   * @param h The height of the image.
+   * @return The number of triangle and bounding box checks.
+   */
+  long[] shoot(final RayShooter rs, final ForkJoinPool fjp, final Hit[][] hits,
+      final int w, final int h) {
+    width = w;
+    height = h;
+    final int tx = (w + tileSize - 1) / tileSize;
+    final int ty = (h + tileSize - 1) / tileSize;
+    if(tx != tilesX || ty != tilesY) {
+      tilesX = tx;
+      tilesY = ty;
+      order = computeOrder(tx, ty, hilbert);
+    }
+    tileTimes = new long[tx * ty];
+    final TileAction ta = new TileAction(rs, hits, 0, order.length);
+    fjp.invoke(ta);
+    printTimes();
+    return new long[] { ta.counter.getCount(), ta.counter.getBBoxCount()};
+  }
+
+  /**
+   * Shoots the rays of a tile and records the time.
+   *
+   * @param rs The ray shooter.
+   * @param hits The hit array or <code>null</code> in G-buffer mode.
+   * @param tile The tile.
+   * @param counter The test counter.
+   */
+  void shootTile(final RayShooter rs, final Hit[][] hits,
+      final int tile, final TestCounter counter) {
+    final long nano = System.nanoTime();
+    final int x = (tile % tilesX) * tileSize;
+    final int y = (tile / tilesX) * tileSize;
+    rs.shootRegion(hits, x, Math.min(x + tileSize, width),
+        y, Math.min(y + tileSize, height), counter);
+    tileTimes[tile] = System.nanoTime() - nano;
+  }
+
+  /** Prints the minimal, average, and maximal time per tile. */
+  private void printTimes() {
+    if(tileTimes.length == 0) return;
+    long min = Long.MAX_VALUE;
+    long max = 0;
+    long sum = 0;
+    for(final long t : tileTimes) {
+      min = Math.min(min, t);
+      max = Math.max(max, t);
+      sum += t;
+    }
+    final double avg = (double) sum / tileTimes.length;
+    System.out.println("Tiles: " + tileTimes.length + " of " + tileSize + "x" + tileSize
+        + " in " + (hilbert ? "Hilbert" : "Z") + "-order");
+    System.out.println("Time per tile: min " + min * 1e-6 + "ms avg " + avg * 1e-6
+        + "ms max " + max * 1e-6 + "ms (max/avg " + (avg > 0 ? max / avg : 0) + ")");
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The width and height of the tiles.
+   */
+  public int getTileSize() {
+    return tileSize;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of tiles in x direction of the last image.
+   */
+  public int getTilesX() {
+    return tilesX;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of tiles in y direction of the last image.
+   */
+  public int getTilesY() {
+    return tilesY;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The nano seconds spent on every tile of the last image. The tile
+   *         at <code>x</code> and <code>y</code> has the index
+   *         <code>y * getTilesX() + x</code>.
+   */
+  public long[] getTileTimes() {
+    return tileTimes.clone();
+  }
+
+  /**
+   * Computes the order of the tiles along the curve. The curve covers the
+   * smallest power of two square containing all tiles and tiles outside of
+   * the image are skipped.
+   *
+   * @param tx The number of tiles in x direction.
+   * @param ty The number of tiles in y direction.
+   * @param hilbert Whether to use the Hilbert curve.
+   * @return The tiles in the order of the curve.
+   */
+  private static int[] computeOrder(final int tx, final int ty, final boolean hilbert) {
+    int n = 1;
+    while(n < tx || n < ty) {
+      n <<= 1;
+    }
+    final long[] keys = new long[tx * ty];
+    for(int y = 0; y < ty; ++y) {
+      for(int x = 0; x < tx; ++x) {
+        final long d = hilbert ? hilbertIndex(n, x, y) : mortonIndex(x, y);
+        // the curve position in the upper and the tile in the lower bits
+        keys[y * tx + x] = d << 32 | (y * tx + x);
+      }
+    }
+    Arrays.sort(keys);
+    final int[] res = new int[keys.length];
+    for(int i = 0; i < keys.length; ++i) {
+      res[i] = (int) keys[i];
+    }
+    return res;
+  }
+
+  /**
+   * Computes the position on the Z-order curve by interleaving the bits.
+   *
+   * @param x The x coordinate.
+   * @param y The y coordinate.
+   * @return The position on the curve.
+   */
+  private static long mortonIndex(final int x, final int y) {
+    long d = 0;
+    for(int bit = 0; bit < 16; ++bit) {
+      d |= (long) ((x >> bit) & 1) << (2 * bit);
+      d |= (long) ((y >> bit) & 1) << (2 * bit + 1);
+    }
+    return d;
+  }
+
+  /**
+   * Computes the position on the Hilbert curve.
+   *
+   * @param n The size of the square covered by the curve. Must be a power of
+   *          two.
+   * @param px The x coordinate.
+   * @param py The y coordinate.
+   * @return The position on the curve.
+   */
+  private static long hilbertIndex(final int n, final int px, final int py) {
+    int x = px;
+    int y = py;
+    long d = 0;
+    for(int s = n / 2; s > 0; s /= 2) {
+      final int rx = (x & s) > 0 ? 1 : 0;
+      final int ry = (y & s) > 0 ? 1 : 0;
+      d += (long) s * s * ((3 * rx) ^ ry);
+      // rotates the quadrant
+      if(ry == 0) {
+        if(rx == 1) {
+          x = n - 1 - x;
+          y = n - 1 - y;
+        }
+        final int t = x;
+        x = y;
+        y = t;
+      }
+    }
+    return d;
+  }
+
+}